@@ -0,0 +1,126 @@
+/*
+ * Copyright 2017-2020 Brambolt ehf.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brambolt.util.jar;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the per-jar hot paths: removing signing data, checking signing
+ * data and signing. Each invocation works on a fresh copy of the same
+ * signed synthetic jar. Signing is measured with the entry digests computed
+ * on the signing thread and on a pool of four threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class JarBenchmark {
+
+    @Param({"1"})
+    public long seed;
+
+    @Param({"100", "2000"})
+    public int entries;
+
+    @Param({"1024", "16384"})
+    public int entrySize;
+
+    @Param({"3"})
+    public int depth;
+
+    @Param({"1", "4"})
+    public int digestParallelism;
+
+    private File dir;
+
+    private File signed;
+
+    private File jar;
+
+    private SignInProcess signer;
+
+    private ForkJoinPool pool;
+
+    @Setup(Level.Trial)
+    public void setupTrial() throws Exception {
+        dir = Files.createTempDirectory("jmh").toFile();
+        pool = digestParallelism > 1 ? new ForkJoinPool(digestParallelism) : null;
+        signer = SyntheticArchives.createSigner(dir).setPool(pool);
+        signed = SyntheticArchives.createJar(
+            new File(dir, "signed.jar"), new Random(seed), entries, entrySize, depth);
+        signer.apply(signed);
+        jar = new File(dir, "jar.jar");
+    }
+
+    @Setup(Level.Invocation)
+    public void setupInvocation() throws IOException {
+        SyntheticArchives.copy(signed, jar);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        if (null != pool)
+            pool.shutdown();
+        RewriteArchive.delete(dir.toPath());
+    }
+
+    @Benchmark
+    public File removeSigningData() throws IOException {
+        return new RemoveSigningData().apply(jar);
+    }
+
+    @Benchmark
+    public boolean addAttributes() throws IOException {
+        return new RewriteJar(false, new AddAttributes(Attributes.ALL_PERMISSIONS)).apply(jar);
+    }
+
+    @Benchmark
+    public ZipArchive checkSigningData() throws IOException {
+        try (ZipArchive archive = ZipArchive.map(jar)) {
+            return new CheckSigningData(SyntheticArchives.PREFIX).apply(archive);
+        }
+    }
+
+    @Benchmark
+    public ZipArchive verifySigningData() throws IOException {
+        try (ZipArchive archive = ZipArchive.map(jar)) {
+            return new VerifySigningData(SyntheticArchives.PREFIX).apply(archive);
+        }
+    }
+
+    @Benchmark
+    public File signSinglePass() throws Exception {
+        signer.apply(jar, true, Collections.singletonList(Attributes.ALL_PERMISSIONS));
+        return jar;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2017-2020 Brambolt ehf.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brambolt.util.jar;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks adding and checking manifest attributes on the manifest of a
+ * signed jar, with one digest section per entry.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ManifestBenchmark {
+
+    @Param({"1"})
+    public long seed;
+
+    @Param({"100", "10000"})
+    public int entries;
+
+    @Param({"3"})
+    public int depth;
+
+    private byte[] manifest;
+
+    private List<String> lines;
+
+    private final AddAttributes adder = new AddAttributes(Attributes.ALL_PERMISSIONS);
+
+    private final CheckAttributes checker = new CheckAttributes(Attributes.ALL_PERMISSIONS);
+
+    @Setup
+    public void setup() {
+        Random random = new Random(seed);
+        JarManifest jar = JarManifest.create("warsigner-jmh");
+        for (int i = 0; i < entries; ++i) {
+            byte[] digest = new byte[32];
+            random.nextBytes(digest);
+            jar.putAttribute(SyntheticArchives.entryName(i, depth), "SHA-256-Digest",
+                Base64.getEncoder().encodeToString(digest));
+        }
+        jar.addMainAttributes(Collections.singletonList(Attributes.ALL_PERMISSIONS));
+        manifest = jar.toBytes();
+        lines = Arrays.asList(new String(manifest, StandardCharsets.UTF_8).split("\r\n"));
+    }
+
+    @Benchmark
+    public List<String> addAttributesToLines() {
+        return adder.apply(lines);
+    }
+
+    @Benchmark
+    public boolean addAttributesToManifest() {
+        return adder.apply(JarManifest.parse(manifest));
+    }
+
+    @Benchmark
+    public JarManifest checkAttributes() {
+        JarManifest parsed = JarManifest.parse(manifest);
+        checker.throwIf(parsed);
+        return parsed;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2017-2020 Brambolt ehf.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brambolt.util.jar;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Checks the per-jar memory budget of single-pass signing. The jars have
+ * the same number of entries and grow only in entry size, up to half a
+ * gigabyte, and are signed in a JVM with a 64 MB heap; if the heap use
+ * depended on the jar size the largest jars would fail with an
+ * <code>OutOfMemoryError</code>.</p>
+ *
+ * <p>The bytes allocated per signed jar are reported as an auxiliary
+ * counter. They should stay flat as the entry size grows, and grow only with
+ * the number of entries.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx64m")
+public class SigningMemoryBenchmark {
+
+    @Param({"1"})
+    public long seed;
+
+    @Param({"2000"})
+    public int entries;
+
+    @Param({"1024", "65536", "262144"})
+    public int entrySize;
+
+    private File dir;
+
+    private File unsigned;
+
+    private File jar;
+
+    private SignInProcess signer;
+
+    /**
+     * The bytes allocated by the benchmark thread while signing the last jar
+     * of the iteration.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Allocation {
+
+        public long allocatedBytes;
+    }
+
+    @Setup(Level.Trial)
+    public void setupTrial() throws Exception {
+        dir = Files.createTempDirectory("jmh").toFile();
+        signer = SyntheticArchives.createSigner(dir);
+        unsigned = SyntheticArchives.createJar(
+            new File(dir, "unsigned.jar"), new Random(seed), entries, entrySize, 3);
+        jar = new File(dir, "jar.jar");
+    }
+
+    @Setup(Level.Invocation)
+    public void setupInvocation() throws IOException {
+        SyntheticArchives.copy(unsigned, jar);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        RewriteArchive.delete(dir.toPath());
+    }
+
+    @Benchmark
+    public File sign(Allocation allocation) throws Exception {
+        long start = getAllocatedBytes();
+        signer.apply(jar, true, Collections.singletonList(Attributes.ALL_PERMISSIONS));
+        allocation.allocatedBytes = getAllocatedBytes() - start;
+        return jar;
+    }
+
+    private static long getAllocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+            .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2017-2020 Brambolt ehf.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brambolt.util.jar;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Random;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * <p>Generates synthetic jars and WAR files for the benchmarks. The content
+ * is derived from a seed, so every run benchmarks the same archives.</p>
+ *
+ * <p>Entry content is half random and half repeated bytes, which compresses
+ * roughly like class files do.</p>
+ */
+final class SyntheticArchives {
+
+    /**
+     * The key store password, alias and key password used by the benchmarks.
+     */
+    static final String NAME = "warsigner";
+
+    /**
+     * The signature file name prefix used by the benchmarks.
+     */
+    static final String PREFIX = "JMH";
+
+    private SyntheticArchives() {}
+
+    /**
+     * Writes a synthetic jar.
+     * @param file The jar file to write
+     * @param random The content source
+     * @param entries The number of entries
+     * @param entrySize The uncompressed size of each entry, in bytes
+     * @param depth The directory depth of the entries
+     * @return The jar file
+     * @throws IOException If unable to write
+     */
+    static File createJar(File file, Random random, int entries, int entrySize, int depth)
+        throws IOException {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().putValue("Created-By", "warsigner-jmh");
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(file), manifest)) {
+            for (int i = 0; i < entries; ++i) {
+                out.putNextEntry(new ZipEntry(entryName(i, depth)));
+                out.write(content(random, entrySize));
+                out.closeEntry();
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Writes a synthetic WAR file with application jars and a few web
+     * resources.
+     * @param file The WAR file to write
+     * @param seed The content seed
+     * @param jars The number of application jars
+     * @param entries The number of entries per jar
+     * @param entrySize The uncompressed size of each jar entry, in bytes
+     * @param depth The directory depth of the jar entries
+     * @return The WAR file
+     * @throws IOException If unable to write
+     */
+    static File createWar(File file, long seed, int jars, int entries, int entrySize, int depth)
+        throws IOException {
+        Random random = new Random(seed);
+        Path tmpDir = Files.createTempDirectory("synthetic");
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file))) {
+            write(out, "WEB-INF/web.xml", "<web-app/>".getBytes(StandardCharsets.UTF_8));
+            write(out, "index.html", content(random, 4096));
+            for (int i = 0; i < jars; ++i) {
+                File jar = createJar(tmpDir.resolve(i + ".jar").toFile(), random, entries, entrySize, depth);
+                write(out, "application-jars/jar" + i + ".jar", Files.readAllBytes(jar.toPath()));
+            }
+        } finally {
+            RewriteArchive.delete(tmpDir);
+        }
+        return file;
+    }
+
+    /**
+     * Creates a key store with an RSA signing key, using the
+     * <code>keytool</code> executable from the running JVM.
+     * @param dir The directory to create the key store in
+     * @return The key store file
+     * @throws IOException If <code>keytool</code> fails
+     * @throws InterruptedException If interrupted while waiting
+     */
+    static File createKeyStore(File dir) throws IOException, InterruptedException {
+        File keyStore = new File(dir, NAME + ".keystore");
+        String keytool = new File(System.getProperty("java.home"), "bin/keytool").getPath();
+        Process process = new ProcessBuilder(keytool, "-genkeypair",
+            "-keystore", keyStore.getPath(), "-storepass", NAME, "-keypass", NAME,
+            "-alias", NAME, "-keyalg", "RSA", "-keysize", "2048", "-validity", "30",
+            "-dname", "CN=" + NAME)
+            .redirectErrorStream(true)
+            .redirectOutput(new File(dir, "keytool.log"))
+            .start();
+        if (0 != process.waitFor())
+            throw new IOException("Unable to create key store " + keyStore);
+        return keyStore;
+    }
+
+    /**
+     * @param dir The key store directory
+     * @return A signer for the generated key store
+     * @throws IOException If the key store can not be created
+     * @throws InterruptedException If interrupted while waiting
+     */
+    static SignInProcess createSigner(File dir) throws IOException, InterruptedException {
+        return new SignInProcess(PREFIX, createKeyStore(dir), NAME, NAME, NAME);
+    }
+
+    static String entryName(int index, int depth) {
+        StringBuilder name = new StringBuilder();
+        for (int d = 0; d < depth; ++d)
+            name.append("p").append((index >> d) % 4).append('/');
+        return name.append("Entry").append(index).append(".class").toString();
+    }
+
+    static byte[] content(Random random, int size) {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        for (int i = size / 2; i < size; ++i)
+            bytes[i] = (byte) (i % 31);
+        return bytes;
+    }
+
+    private static void write(ZipOutputStream out, String name, byte[] bytes) throws IOException {
+        out.putNextEntry(new ZipEntry(name));
+        out.write(bytes);
+        out.closeEntry();
+    }
+
+    static void copy(File source, File target) throws IOException {
+        Files.copy(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2017-2020 Brambolt ehf.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brambolt.util.jar;
+
+import com.brambolt.gradle.warsigner.tasks.SignWar;
+import groovy.lang.Closure;
+import org.gradle.api.Project;
+import org.gradle.testfixtures.ProjectBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks checking a signed WAR file and signing a WAR file end to end
+ * with the <code>SignWar</code> task.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class WarBenchmark {
+
+    @Param({"1"})
+    public long seed;
+
+    @Param({"20"})
+    public int jars;
+
+    @Param({"500"})
+    public int entries;
+
+    @Param({"4096"})
+    public int entrySize;
+
+    @Param({"3"})
+    public int depth;
+
+    @Param({"false", "true"})
+    public boolean streaming;
+
+    @Param({"keep"})
+    public String jarCompression;
+
+    @Param({"1"})
+    public int compressionParallelism;
+
+    private File dir;
+
+    private File keyStore;
+
+    private File unsigned;
+
+    private File signed;
+
+    private File war;
+
+    private Project project;
+
+    @Setup(Level.Trial)
+    public void setupTrial() throws Exception {
+        dir = Files.createTempDirectory("jmh").toFile();
+        keyStore = SyntheticArchives.createKeyStore(dir);
+        unsigned = SyntheticArchives.createWar(
+            new File(dir, "unsigned.war"), seed, jars, entries, entrySize, depth);
+        project = ProjectBuilder.builder().withProjectDir(new File(dir, "project")).build();
+        signed = new File(dir, "signed.war");
+        SyntheticArchives.copy(unsigned, signed);
+        createTask("prepare").apply();
+        war = new File(dir, "war.war");
+    }
+
+    @Setup(Level.Invocation)
+    public void setupInvocation() throws IOException {
+        SyntheticArchives.copy(unsigned, war);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        RewriteArchive.delete(dir.toPath());
+    }
+
+    private SignWar createTask(String name) {
+        Map<String, Object> options = new HashMap<>();
+        options.put("type", SignWar.class);
+        SignWar task = (SignWar) project.task(options, name);
+        task.setSignatureFileNamePrefix(SyntheticArchives.PREFIX);
+        task.setSigningStore(keyStore);
+        task.setSigningStorePassword(SyntheticArchives.NAME);
+        task.setSigningAlias(SyntheticArchives.NAME);
+        task.setSigningKeyPassword(SyntheticArchives.NAME);
+        task.setAttributes(Collections.singletonList(Attributes.ALL_PERMISSIONS));
+        task.setStreaming(streaming);
+        task.setJarCompression(jarCompression);
+        task.setCompressionParallelism(compressionParallelism);
+        task.setWar("prepare".equals(name) ? signed : war);
+        task.configure(new Closure<Void>(this) {
+            @SuppressWarnings("unused")
+            public Void doCall(Object task) {
+                return null; // Configured above
+            }
+        });
+        return task;
+    }
+
+    @Benchmark
+    public File checkWar() throws IOException {
+        return new CheckWar(SyntheticArchives.PREFIX,
+            Collections.singletonList(Attributes.ALL_PERMISSIONS)).apply(signed);
+    }
+
+    @Benchmark
+    public File signWar() {
+        createTask("sign" + System.nanoTime()).apply();
+        return war;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2017-2020 Brambolt ehf.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brambolt.gradle.warsigner
+
+import com.brambolt.util.jar.SigningCredentials
+import org.gradle.api.Project
+import org.gradle.api.provider.Provider
+import org.gradle.api.services.BuildService
+import org.gradle.api.services.BuildServiceParameters
+
+import java.security.GeneralSecurityException
+
+/**
+ * <p>Unlocks signing keys once per build and shares them between the
+ * signing tasks. The credentials are looked up by key store file, alias and
+ * passwords, so tasks with different signing configurations get different
+ * keys. A key store that changes during the build is unlocked again.</p>
+ *
+ * <p>Gradle closes the service when the build finishes, which releases the
+ * key material.</p>
+ */
+abstract class SigningCredentialService
+  implements BuildService<BuildServiceParameters.None>, SigningCredentials.Source, AutoCloseable {
+
+  /**
+   * The name the service is registered with.
+   */
+  static final String NAME = 'warsignerSigningCredentials'
+
+  private final Map<List, SigningCredentials> credentials = [:]
+
+  private int unlocks = 0
+
+  /**
+   * Registers the service with the build, unless already registered.
+   * @param project The project the service is used from
+   * @return The service provider
+   */
+  static Provider<SigningCredentialService> register(Project project) {
+    project.gradle.sharedServices.registerIfAbsent(NAME, SigningCredentialService) {}
+  }
+
+  /**
+   * Unlocks the credentials for a key store alias, or returns the
+   * credentials unlocked earlier in the build.
+   * @param signingStore The key store file
+   * @param signingStorePassword The key store password
+   * @param signingAlias The alias of the signing key
+   * @param signingKeyPassword The signing key password
+   * @return The credentials
+   * @throws GeneralSecurityException If the key can not be recovered
+   * @throws IOException If unable to read the key store
+   */
+  @Override
+  synchronized SigningCredentials unlock(
+    File signingStore, String signingStorePassword,
+    String signingAlias, String signingKeyPassword)
+    throws GeneralSecurityException, IOException {
+    if (null == signingStore)
+      throw new IllegalStateException('No signing store provided')
+    List key = [
+      signingStore.canonicalPath, signingStore.lastModified(), signingStore.length(),
+      signingStorePassword, signingAlias, signingKeyPassword]
+    SigningCredentials found = credentials[key]
+    if (null == found || found.released) {
+      found = SigningCredentials.unlock(
+        signingStore, signingStorePassword, signingAlias, signingKeyPassword)
+      credentials[key] = found
+      ++unlocks
+    }
+    found
+  }
+
+  /**
+   * @return The number of times a key store was unlocked in this build
+   */
+  synchronized int getUnlocks() {
+    unlocks
+  }
+
+  /**
+   * Releases the key material. Called by Gradle when the build finishes.
+   */
+  @Override
+  synchronized void close() {
+    credentials.values().each { SigningCredentials unlocked -> unlocked.release() }
+    credentials.clear()
+  }
+}
@@ -16,36 +16,78 @@
 
 package com.brambolt.gradle.warsigner.tasks
 
-import org.gradle.api.tasks.Input
-
-import java.nio.file.FileSystem
+import com.brambolt.util.jar.RewriteJar
 import org.gradle.api.DefaultTask
+import org.gradle.api.GradleException
 import org.gradle.api.Task
+import org.gradle.api.tasks.CacheableTask
+import org.gradle.api.tasks.Input
+import org.gradle.api.tasks.InputFile
+import org.gradle.api.tasks.Internal
+import org.gradle.api.tasks.Optional
+import org.gradle.api.tasks.OutputFile
+import org.gradle.api.tasks.PathSensitive
+import org.gradle.api.tasks.PathSensitivity
 import org.gradle.api.tasks.TaskAction
 
 import static com.brambolt.gradle.SpecObjects.asFile
-import static com.brambolt.nio.file.ZipFileSystems.process
 
 /**
- * This task adds attributes to the manifest of an existing jar file, by
- * opening a zip file system and replacing the manifest with an edited version.
+ * This task adds attributes to the manifest of an existing jar file. The jar
+ * is rewritten with an edited manifest, and every other entry is copied as
+ * raw compressed bytes, so the cost is about one sequential copy of the jar.
  * If a requested attribute is already present, it not overwritten. To replace
  * attribute values, first remove and then add.
+ *
+ * If <code>outputJar</code> is set, the edited jar is written there instead,
+ * the input jar is unchanged and the task can be up-to-date or taken from
+ * the build cache.
  */
+@CacheableTask
 class AddAttributes extends DefaultTask {
 
   /**
    * The jar to add attributes to. The value may be a string path, a file, a
    * path object or a closure that produces any of these.
    */
-  @Input
+  @Internal
   Object jar
 
+  /**
+   * The jar to write. If not set, the jar is edited in place. The value may
+   * be a string path, a file, a path object or a closure that produces any
+   * of these.
+   */
+  @Internal
+  Object outputJar
+
   /**
    * The attributes to add.
    */
+  @Optional
+  @Input
   List<String> attributes
 
+  /**
+   * The jar to add attributes to, as a task input.
+   * @return The jar file
+   */
+  @InputFile
+  @PathSensitive(PathSensitivity.NONE)
+  File getJarFile() {
+    asFile(jar)
+  }
+
+  /**
+   * The edited jar, as a task output.
+   * @return The output jar file, or null if the jar is edited in place
+   */
+  @Optional
+  @OutputFile
+  File getOutputJarFile() {
+    null != outputJar ? asFile(outputJar) : null
+  }
+
   /**
    * Configures the task. This method is re-entrant, the task should be
    * configured at least once.
@@ -64,11 +106,15 @@ class AddAttributes extends DefaultTask {
    */
   @TaskAction
   void apply() {
-    if (null == attributes || attributes.isEmpty())
-      return // Nothing to do
-    process(asFile(jar), "Unable to add attributes") {
-      FileSystem fs ->
-        new com.brambolt.util.jar.AddAttributes(attributes).apply(fs) }
+    File jarFile = getJarFile()
+    File outputJarFile = getOutputJarFile() ?: jarFile
+    try {
+      new RewriteJar(false, attributes
+        ? new com.brambolt.util.jar.AddAttributes(attributes) : null)
+        .apply(jarFile, outputJarFile)
+    } catch (Exception x) {
+      throw new GradleException("Unable to add attributes: ${jarFile}", x)
+    }
   }
 }
 
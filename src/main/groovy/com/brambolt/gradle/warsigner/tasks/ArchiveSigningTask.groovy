@@ -0,0 +1,926 @@
+/*
+ * Copyright 2017-2020 Brambolt ehf.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brambolt.gradle.warsigner.tasks
+
+import com.brambolt.util.jar.AddAttributes
+import com.brambolt.util.jar.Compression
+import com.brambolt.util.jar.Metrics
+import com.brambolt.util.jar.PlanJar
+import com.brambolt.util.jar.RemoveSigningData
+import com.brambolt.util.jar.RewriteArchive
+import com.brambolt.util.jar.RewriteJar
+import com.brambolt.util.jar.RewriteNested
+import com.brambolt.util.jar.SignInProcess
+import com.brambolt.util.jar.SignWithJarsigner
+import com.brambolt.util.jar.Signer
+import com.brambolt.util.jar.ZipArchive
+import com.brambolt.util.jar.ZipWriter
+import org.gradle.api.GradleException
+import org.gradle.api.tasks.Input
+import org.gradle.api.tasks.Internal
+import org.gradle.api.tasks.Optional
+import org.gradle.api.tasks.options.Option
+import org.gradle.workers.ProcessWorkerSpec
+import org.gradle.workers.WorkQueue
+import org.gradle.workers.WorkerExecutionException
+import org.gradle.workers.WorkerExecutor
+
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.function.Consumer
+import java.util.function.Function
+import java.util.function.Supplier
+import javax.inject.Inject
+
+import static com.brambolt.gradle.SpecObjects.asFile
+import static com.brambolt.nio.file.ZipFileSystems.unzip
+
+/**
+ * <p>Shared implementation for tasks that remove signing data, add manifest
+ * attributes and sign jars, either on their own or inside WAR and EAR
+ * files.</p>
+ *
+ * <p>Each jar is processed by {@link #applyToJar}, which consults the signed
+ * jar cache, records metrics and, when signing in-process with the default
+ * cleaner and attribute adder, does all the work in a single pass.</p>
+ */
+abstract class ArchiveSigningTask extends SigningTask {
+
+  /**
+   * Indicates whether signing data should be removed before signing.
+   */
+  @Input
+  Boolean unsign = true
+
+  /**
+   * Lists jar manifest attributes to be added. Empty by default.
+   */
+  @Input
+  List<String> attributes = []
+
+  /**
+   * Indicates whether to sign application jar files.
+   */
+  @Input
+  Boolean sign = true
+
+  /**
+   * The maximum number of jars to process at the same time. The
+   * jars are independent, so each jar is cleaned, given attributes and
+   * signed on its own worker thread. Defaults to the number of available
+   * processors; the value 1 processes the jars one after another.
+   */
+  @Internal
+  Integer maxParallelJars = Runtime.runtime.availableProcessors()
+
+  /**
+   * Indicates whether a JSON metrics report is written, with the duration and
+   * bytes of each phase, the slowest jars, the throughput and the peak
+   * temporary disk usage. Defaults to true.
+   */
+  @Internal
+  Boolean recordMetrics = true
+
+  /**
+   * The metrics report file. Defaults to
+   * <code>build/reports/warsigner/&lt;task name&gt;.json</code>. The value
+   * can be a string path, a file, a path object or a closure that produces
+   * any of these.
+   */
+  @Internal
+  Object metricsFile
+
+  /**
+   * The metrics collected by the last execution.
+   */
+  @Internal
+  Metrics metrics = new Metrics()
+
+  /**
+   * The jar signer implementation used for signing. Defaults to signing
+   * in-process, see <code>inProcess</code>.
+   */
+  @Internal
+  Signer signer
+
+  /**
+   * The signing data cleaner used for removing existing signing data.
+   */
+  @Internal
+  RemoveSigningData cleaner
+
+  /**
+   * The add-attributes implementation.
+   */
+  @Internal
+  AddAttributes adder
+
+  /**
+   * The Gradle worker isolation mode to process jars with:
+   * <code>none</code>, <code>classLoader</code> or <code>process</code>. If
+   * set, each jar is submitted to the Gradle worker executor instead of the
+   * task's own threads, so Gradle can schedule the work alongside other
+   * tasks and, with process isolation, keep it out of the daemon heap.
+   * Workers use the default cleaner, attribute adder and signers. Not set by
+   * default.
+   */
+  @Internal
+  String workerIsolation
+
+  /**
+   * The maximum heap size of each worker process, like <code>512m</code>,
+   * with process isolation. Defaults to the Gradle default.
+   */
+  @Internal
+  String workerMaxHeapSize
+
+  /**
+   * How processed jars are compressed when a WAR or EAR file is written:
+   * <code>keep</code> keeps the method each jar had, <code>store</code>
+   * stores the jars and <code>deflate</code> deflates them. Jars are already
+   * compressed, so deflating them again spends CPU for little gain. Defaults
+   * to <code>keep</code>.
+   */
+  @Input
+  String jarCompression = 'keep'
+
+  /**
+   * The deflate level, from 0 to 9, for entries deflated when a WAR or EAR
+   * file is written. Defaults to the zlib default.
+   */
+  @Input
+  @Optional
+  Integer compressionLevel
+
+  /**
+   * The number of entries compressed at the same time when a WAR or EAR
+   * file is written. The entries are still written in order, so the output
+   * does not change. Defaults to 1, compressing each entry as it is written.
+   */
+  @Internal
+  Integer compressionParallelism = 1
+
+  /**
+   * Indicates whether WAR, EAR and jar files are written reproducibly: every
+   * entry gets the same fixed time and the entries are sorted by name, with
+   * the manifest and signature files first. The same inputs and key then
+   * give the same bytes, when signing in-process with an RSA key. Defaults
+   * to false.
+   */
+  @Input
+  Boolean reproducible = false
+
+  /**
+   * Patterns selecting the jars to process inside nested archives, with one
+   * glob per level separated by <code>!/</code>, like
+   * <code>*.war!/WEB-INF/lib/*.jar</code> for the jars in the WAR files of
+   * an EAR file, or <code>WEB-INF/lib/*.jar</code> for the jars in a WAR
+   * file. If set, WAR and EAR files are rewritten in one streaming pass per
+   * level, without extracting anything to disk, and the patterns replace
+   * the <code>application-jars</code> convention. The nested archives and
+   * processed jars are held in memory. Jars are signed in-process, without
+   * Gradle workers or the signed jar cache. Empty by default.
+   */
+  @Input
+  List<String> nestedPatterns = []
+
+  /**
+   * Indicates whether jars that need no work are left as they are. Each jar
+   * is planned from its manifest and signature files first, see
+   * <code>PlanJar</code>, and a jar that has every attribute and is signed
+   * under the signature file name prefix by the signing certificate is not
+   * rewritten. Ignored when writing reproducibly, since a jar left as it is
+   * keeps its entry times. Defaults to false.
+   */
+  @Input
+  Boolean skipCompliant = false
+
+  /**
+   * Indicates whether the task only plans the work for each jar, without
+   * changing anything. The plans are logged and written to the
+   * <code>planFile</code>. Can be set from the command line with
+   * <code>--plan-only</code>. Defaults to false.
+   */
+  @Input
+  @Option(option = 'plan-only', description = 'Reports the work planned for each jar without changing anything.')
+  Boolean planOnly = false
+
+  /**
+   * The plan report file. Defaults to
+   * <code>build/reports/warsigner/&lt;task name&gt;-plan.txt</code>. The
+   * value can be a string path, a file, a path object or a closure that
+   * produces any of these.
+   */
+  @Internal
+  Object planFile
+
+  /**
+   * The planner for the current execution, created on first use.
+   */
+  protected PlanJar planner
+
+  /**
+   * The plans made in the current execution, by jar path.
+   */
+  protected final Map<String, PlanJar.Plan> plans = new ConcurrentHashMap<>()
+
+  /**
+   * The names of the jars extracted from archives in the current execution,
+   * by extracted path.
+   */
+  protected final Map<Path, String> jarNames = new ConcurrentHashMap<>()
+
+  /**
+   * The running <code>jarsigner</code> processes, cancelled if the task is
+   * interrupted.
+   */
+  protected final Queue<Future<?>> processes = new ConcurrentLinkedQueue<>()
+
+  /**
+   * The Gradle worker executor, injected by Gradle.
+   * @return The worker executor
+   */
+  @Inject
+  abstract WorkerExecutor getWorkerExecutor()
+
+  /**
+   * Checks whether a signing store is configured. If not, the task does
+   * nothing.
+   * @return True if and only if the task should execute
+   */
+  boolean shouldExecute() {
+    null != signingStore && (
+      (signingStore instanceof String && !signingStore.trim().isEmpty()) ||
+      (signingStore instanceof File))
+  }
+
+  /**
+   * Configures defaults.
+   */
+  void configureDefaults() {
+    configureJarsigner()
+    configureCleaner()
+    configureAdder()
+  }
+
+  /**
+   * Initializes the jar signer implementation if an implementation was not
+   * provided during configuration. Subsequent invocations do nothing unless
+   * the value is explicitly cleared.
+   */
+  void configureJarsigner() {
+    if (null == signer)
+      signer = createSigner()
+  }
+
+  /**
+   * Initializes the attribute cleaner if an implementation was not provided
+   * during configuration. Subsequent invocations do nothing unless the value
+   * is explicitly cleared.
+   */
+  void configureCleaner() {
+    if (null == cleaner)
+      cleaner = new RemoveSigningData()
+  }
+
+  /**
+   * Initializes the attribute adder if an implementation was not provided
+   * during configuration. Subsequent invocations do nothing unless the value
+   * is explicitly cleared.
+   */
+  void configureAdder() {
+    if (null == adder)
+      adder = new AddAttributes(attributes)
+  }
+
+  /**
+   * Checks whether the parameter WAR entry is an application jar.
+   * @param entryName The WAR entry name
+   * @return True if and only if the entry should be processed
+   */
+  protected boolean isApplicationJar(String entryName) {
+    entryName.startsWith('application-jars/') && entryName.endsWith('.jar')
+  }
+
+  /**
+   * Creates the compression for writing WAR and EAR files.
+   * @return The compression
+   * @throws GradleException If the compression is not valid
+   */
+  protected Compression createCompression() {
+    try {
+      Compression compression = new Compression()
+        .setJarMethod(Compression.JarMethod.parse(jarCompression))
+        .setParallelism(compressionParallelism ?: 1)
+      null != compressionLevel ? compression.setLevel(compressionLevel) : compression
+    } catch (IllegalArgumentException x) {
+      throw new GradleException(x.message, x)
+    }
+  }
+
+  /**
+   * Checks whether WAR and EAR files are rewritten by nested patterns.
+   * @return True if and only if nested patterns are set
+   */
+  @Internal
+  protected boolean isNested() {
+    null != nestedPatterns && !nestedPatterns.isEmpty()
+  }
+
+  /**
+   * Rewrites the parameter WAR or EAR file, processing the jars selected by
+   * the nested patterns. Compliant jars are copied as they are when
+   * <code>skipCompliant</code> is set.
+   * @param archive The archive to rewrite
+   * @param executor The executor to process jars on, or null for a pool of
+   *  <code>maxParallelJars</code> threads
+   * @throws GradleException If the configuration does not support nested
+   *  patterns, or processing fails for any jar
+   */
+  protected void applyNested(File archive, ExecutorService executor) {
+    RewriteNested rewrite
+    try {
+      rewrite = null != executor
+        ? new RewriteNested(nestedPatterns, createNestedProcessor(), executor, maxParallelJars ?: 1)
+        : new RewriteNested(nestedPatterns, createNestedProcessor(), maxParallelJars ?: 1)
+    } catch (IllegalArgumentException x) {
+      throw new GradleException(x.message, x)
+    }
+    try {
+      if (skipping)
+        rewrite.setFilter({ ZipArchive jar ->
+          !plan(jar, "${archive.name}!/${jar.name}".toString()).compliant } as RewriteNested.Filter)
+      rewrite.setCompression(createCompression()).setReproducible(reproducible ?: false)
+        .setMetrics(metrics).apply(archive)
+    } catch (IllegalStateException x) {
+      throw new GradleException(x.message, x.cause ?: x)
+    }
+  }
+
+  /**
+   * Creates the processor for the jars selected by the nested patterns. The
+   * jars are read from and written to memory, so only the in-process signer
+   * and the default cleaner and attribute adder can be used.
+   * @return The processor
+   * @throws GradleException If workers, <code>jarsigner</code> or a custom
+   *  implementation is configured
+   */
+  protected RewriteNested.Processor createNestedProcessor() {
+    if (useWorkers)
+      throw new GradleException('Nested patterns can not be used with Gradle workers')
+    if (signing) {
+      if (!isSinglePass())
+        throw new GradleException(
+          'Nested patterns require in-process signing with the default cleaner and attribute adder')
+      SignInProcess inProcess = signer as SignInProcess
+      return { ZipArchive jar, ZipWriter writer ->
+        inProcess.apply(jar, writer, unsign, attributes ?: []) } as RewriteNested.Processor
+    }
+    if ((unsign && RemoveSigningData != cleaner?.getClass()) ||
+        (attributes && AddAttributes != adder?.getClass()))
+      throw new GradleException('Nested patterns require the default cleaner and attribute adder')
+    RewriteJar rewrite = new RewriteJar(unsign, attributes ? new AddAttributes(attributes) : null)
+      .setReproducible(reproducible ?: false)
+    return { ZipArchive jar, ZipWriter writer -> rewrite.apply(jar, writer) } as RewriteNested.Processor
+  }
+
+  /**
+   * Creates the planner for the configured work. Jars are planned for
+   * signing only if a signer is configured.
+   * @return The planner
+   */
+  protected PlanJar createPlanner() {
+    new PlanJar(
+      signing ? signatureFileNamePrefix : null,
+      signing ? (certificateFingerprint ?: unlockCredentials().fingerprint) : null,
+      attributes ?: [], unsign)
+  }
+
+  /**
+   * Plans the work for the parameter jar and records the plan.
+   * @param jar The jar
+   * @param path The jar path to report
+   * @return The plan
+   */
+  protected PlanJar.Plan plan(ZipArchive jar, String path) {
+    if (null == planner)
+      planner = createPlanner()
+    long start = metrics.start()
+    PlanJar.Plan plan = planner.apply(jar, path)
+    metrics.record('plan', start, jar.length())
+    plans[path] = plan
+    plan
+  }
+
+  /**
+   * Checks whether compliant jars are left as they are.
+   * @return True if and only if jars are planned before they are processed
+   */
+  @Internal
+  protected boolean isSkipping() {
+    skipCompliant && !reproducible
+  }
+
+  /**
+   * Plans the work for the jars in the parameter archive without changing
+   * it. The jars are selected by the nested patterns if set, and otherwise
+   * by the <code>application-jars</code> convention; a jar file is planned
+   * on its own.
+   * @param archive The jar, WAR or EAR file
+   * @throws GradleException If a jar can not be read
+   */
+  protected void planArchive(File archive) {
+    String name = archive.name.toLowerCase(Locale.ENGLISH)
+    if (name.endsWith('.jar')) {
+      new ZipArchive(archive).withCloseable { ZipArchive jar -> plan(jar, archive.name) }
+      return
+    }
+    List<String> patterns = nested ? nestedPatterns
+      : name.endsWith('.ear') ? ['**.war!/application-jars/**.jar'] : ['application-jars/**.jar']
+    try {
+      new RewriteNested(patterns, null, 1).visit(archive,
+        { ZipArchive jar, String path -> plan(jar, "${archive.name}!/${path}".toString()) }
+          as RewriteNested.Visitor)
+    } catch (IllegalArgumentException | IllegalStateException x) {
+      throw new GradleException(x.message, x.cause ?: x)
+    }
+  }
+
+  /**
+   * Clears the plans and jar names of an earlier execution.
+   */
+  protected void configurePlanning() {
+    planner = null
+    plans.clear()
+    jarNames.clear()
+  }
+
+  /**
+   * Reports the plans made in this execution. When only planning, the plans
+   * are written sorted by jar path and logged; otherwise the number of jars
+   * left as they were is logged.
+   */
+  protected void reportPlans() {
+    if (planOnly)
+      PlanReport.write(this, plans.keySet().sort().collect { plans[it] },
+        null != planFile ? asFile(planFile) : PlanReport.getDefaultFile(this))
+    else if (skipping)
+      logger.lifecycle("Left ${plans.values().count { it.compliant }} compliant jar(s) as they were")
+  }
+
+  /**
+   * Passes the reproducible setting to the in-process signer.
+   */
+  protected void configureReproducible() {
+    if (signer instanceof SignInProcess)
+      (signer as SignInProcess).setReproducible(reproducible ?: false)
+  }
+
+  /**
+   * Writes the metrics report, if enabled.
+   */
+  protected void writeMetrics() {
+    if (recordMetrics)
+      MetricsReport.write(this, metrics,
+        null != metricsFile ? asFile(metricsFile) : MetricsReport.getDefaultFile(this))
+  }
+
+  /**
+   * Processes the parameter jars on a bounded worker pool. Every jar is
+   * processed even if some fail, and the failures are reported together.
+   * @param jarPaths The jars to process
+   * @throws GradleException If processing fails for any jar
+   */
+  protected void applyToJars(List<Path> jarPaths) {
+    if (jarPaths.isEmpty())
+      return // Nothing to do
+    if (useWorkers) {
+      throwIfFailed(applyToJarsWithWorkers(jarPaths))
+      return
+    }
+    int threads = Math.max(1, Math.min(maxParallelJars ?: 1, jarPaths.size()))
+    ExecutorService executor = Executors.newFixedThreadPool(threads)
+    try {
+      throwIfFailed(applyToJars(jarPaths, executor))
+    } finally {
+      executor.shutdownNow()
+    }
+  }
+
+  /**
+   * Processes the parameter jars on the parameter executor and waits for
+   * all of them to complete. If interrupted, the remaining work is cancelled
+   * and any <code>jarsigner</code> processes are destroyed.
+   * @param jarPaths The jars to process
+   * @param executor The executor to process the jars on
+   * @return The failures, by jar, or an empty map if every jar succeeded
+   */
+  protected Map<Path, Throwable> applyToJars(List<Path> jarPaths, ExecutorService executor) {
+    if (useWorkers)
+      return applyToJarsWithWorkers(jarPaths)
+    Map<Path, Future<Void>> futures = jarPaths.collectEntries { Path jarPath ->
+      [(jarPath): applyToJarAsync(jarPath, executor)]
+    }
+    Map<Path, Throwable> failures = [:]
+    try {
+      futures.each { Path jarPath, Future<Void> future ->
+        try {
+          future.get()
+        } catch (ExecutionException x) {
+          failures[jarPath] = unwrap(x.cause)
+        }
+      }
+    } catch (InterruptedException x) {
+      futures.values()*.cancel(true)
+      processes*.cancel(true)
+      Thread.currentThread().interrupt()
+      throw new GradleException('Interrupted while processing jars', x)
+    } finally {
+      processes.clear()
+    }
+    failures
+  }
+
+  /**
+   * Throws an exception listing the parameter failures, if there are any.
+   * @param failures The failures, by jar
+   * @throws GradleException If there are failures
+   */
+  protected void throwIfFailed(Map<Path, Throwable> failures) {
+    if (!failures.isEmpty())
+      throw new GradleException(formatFailures(failures), failures.values().first())
+  }
+
+  /**
+   * Checks whether jars are processed by Gradle workers.
+   * @return True if and only if a worker isolation mode is set
+   */
+  @Internal
+  protected boolean isUseWorkers() {
+    null != workerIsolation
+  }
+
+  /**
+   * Processes the parameter jars with Gradle workers and waits for all of
+   * them. Each jar gets its own work queue, so failures can be reported by
+   * jar. Work can only be submitted from the task thread.
+   * @param jarPaths The jars to process
+   * @return The failures, by jar, or an empty map if every jar succeeded
+   * @throws GradleException If a custom cleaner, adder or signer is set
+   */
+  protected Map<Path, Throwable> applyToJarsWithWorkers(List<Path> jarPaths) {
+    checkWorkerConfiguration()
+    Map<Path, Map> work = [:]
+    Map<Path, WorkQueue> queues = [:]
+    jarPaths.each { Path jarPath ->
+      work[jarPath] = prepareJar(jarPath)
+      if (!work[jarPath].done) {
+        WorkQueue queue = createWorkQueue()
+        queue.submit(SignJarAction) { SignJarParameters parameters ->
+          configureWork(parameters, jarPath) }
+        queues[jarPath] = queue
+      }
+    }
+    Map<Path, Throwable> failures = [:]
+    jarPaths.each { Path jarPath ->
+      try {
+        queues[jarPath]?.await()
+        if (queues.containsKey(jarPath))
+          metrics.record('worker', work[jarPath].start as long, work[jarPath].bytes as long)
+        finishJar(jarPath, work[jarPath])
+      } catch (WorkerExecutionException x) {
+        failures[jarPath] = findCause(x)
+      }
+    }
+    failures
+  }
+
+  /**
+   * Processes an application jar extracted from a WAR file, unless Gradle
+   * workers are used. Workers process the extracted jars together instead,
+   * see <code>createWorkerBatch</code>.
+   * @param jarFile The extracted jar
+   * @param warName The WAR file path to report the jar under
+   * @param rewrite The rewrite that extracted the jar
+   */
+  protected void applyToExtractedJar(File jarFile, String warName, RewriteArchive rewrite) {
+    jarNames[jarFile.toPath()] = "${warName}!/${rewrite.getEntryName(jarFile)}".toString()
+    if (!useWorkers)
+      applyToJar(jarFile.toPath())
+  }
+
+  /**
+   * Creates the batch step for rewriting a WAR file with Gradle workers,
+   * which submits the extracted jars from the task thread.
+   * @return The batch step, or null if workers are not used
+   */
+  protected RewriteArchive.Batch createWorkerBatch() {
+    if (!useWorkers)
+      return null
+    return { List<File> jarFiles ->
+      throwIfFailed(applyToJarsWithWorkers(jarFiles.collect { it.toPath() }))
+    } as RewriteArchive.Batch
+  }
+
+  /**
+   * Creates a work queue with the configured isolation mode.
+   * @return The work queue
+   * @throws GradleException If the isolation mode is not supported
+   */
+  protected WorkQueue createWorkQueue() {
+    switch (workerIsolation) {
+      case 'none':
+        return workerExecutor.noIsolation()
+      case 'classLoader':
+        return workerExecutor.classLoaderIsolation()
+      case 'process':
+        return workerExecutor.processIsolation { ProcessWorkerSpec spec ->
+          if (workerMaxHeapSize)
+            spec.forkOptions.maxHeapSize = workerMaxHeapSize
+        }
+      default:
+        throw new GradleException(
+          "Unsupported worker isolation: ${workerIsolation}; use none, classLoader or process")
+    }
+  }
+
+  /**
+   * Checks that workers can do the configured work. Workers create the
+   * default cleaner, attribute adder and signers from the task properties,
+   * so custom implementations can not be used with them.
+   * @throws GradleException If a custom implementation is configured
+   */
+  protected void checkWorkerConfiguration() {
+    if ((unsign && RemoveSigningData != cleaner?.getClass()) ||
+        (attributes && AddAttributes != adder?.getClass()) ||
+        (signing && !(signer?.getClass() in [SignInProcess, SignWithJarsigner])))
+      throw new GradleException(
+        'Gradle workers require the default cleaner, attribute adder and signer')
+  }
+
+  /**
+   * Sets the work parameters for one jar. Workers without isolation share
+   * the task's credential service; isolated workers unlock the key store
+   * themselves.
+   * @param parameters The parameters to set
+   * @param jarPath The jar to process
+   */
+  protected void configureWork(SignJarParameters parameters, Path jarPath) {
+    parameters.jar.set(jarPath.toFile())
+    parameters.unsign.set(unsign)
+    parameters.attributes.set(attributes ?: [])
+    parameters.sign.set(signing)
+    parameters.inProcess.set(signer instanceof SignInProcess)
+    parameters.signatureFileNamePrefix.set(signatureFileNamePrefix)
+    parameters.signingStore.set(asFile(signingStore))
+    parameters.signingStorePassword.set(signingStorePassword)
+    parameters.signingAlias.set(signingAlias)
+    parameters.signingKeyPassword.set(signingKeyPassword)
+    parameters.javaHome.set(findJavaHome())
+    parameters.jarsignerTimeout.set(jarsignerTimeout ?: 0L)
+    parameters.reproducible.set(reproducible ?: false)
+    parameters.digestParallelism.set(digestParallelism)
+    if ('none' == workerIsolation)
+      parameters.credentialService.set(credentialService)
+  }
+
+  /**
+   * Finds the exception thrown by the work action, below the exceptions
+   * Gradle wraps it in.
+   * @param x The worker exception
+   * @return The cause
+   */
+  protected static Throwable findCause(WorkerExecutionException x) {
+    Throwable cause = x.causes ? x.causes.first() : x
+    while (null != cause.cause && cause.cause != cause &&
+      cause.message?.startsWith('A failure occurred while executing'))
+      cause = cause.cause
+    cause
+  }
+
+  protected static Throwable unwrap(Throwable x) {
+    x instanceof CompletionException && null != x.cause ? unwrap(x.cause) : x
+  }
+
+  /**
+   * Starts processing the parameter jar on the parameter executor. When
+   * signing with <code>jarsigner</code>, the jar is cleaned and given
+   * attributes on the executor, but the <code>jarsigner</code> process runs
+   * without holding an executor thread, so more processes can run than
+   * there are threads, up to <code>maxJarsignerProcesses</code>.
+   * @param jarPath The jar to process
+   * @param executor The executor to process the jar on
+   * @return The future of the processed jar
+   */
+  protected CompletableFuture<Void> applyToJarAsync(Path jarPath, ExecutorService executor) {
+    if (!(signer instanceof SignWithJarsigner))
+      return CompletableFuture.runAsync({ applyToJar(jarPath) } as Runnable, executor)
+    SignWithJarsigner jarsigner = signer as SignWithJarsigner
+    CompletableFuture.supplyAsync({
+      Map work = prepareJar(jarPath)
+      if (!work.done)
+        applyInSteps(jarPath, work.bytes as long, false)
+      work
+    } as Supplier<Map>, executor).thenCompose({ Map work ->
+      if (work.done)
+        return CompletableFuture.completedFuture(work)
+      long start = metrics.start()
+      CompletableFuture<SignWithJarsigner.Output> signing = jarsigner.applyAsync(jarPath.toFile())
+      processes.add(signing)
+      signing.thenApply({ SignWithJarsigner.Output output ->
+        metrics.record('sign', start, work.bytes as long)
+        logOutput(jarPath, output)
+        work
+      } as Function<SignWithJarsigner.Output, Map>)
+    } as Function<Map, CompletableFuture<Map>>).thenAcceptAsync(
+      { Map work -> finishJar(jarPath, work) } as Consumer<Map>, executor)
+  }
+
+  /**
+   * Logs the captured <code>jarsigner</code> output for one jar, as one
+   * message.
+   * @param jarPath The signed jar
+   * @param output The process output
+   */
+  protected void logOutput(Path jarPath, SignWithJarsigner.Output output) {
+    String text = [output.stdout, output.stderr].findAll { !it.isEmpty() }.join('\n')
+    if (!text.isEmpty())
+      logger.info("jarsigner ${jarPath.fileName}:\n${text}")
+  }
+
+  protected String formatFailures(Map<Path, Throwable> failures) {
+    "Unable to process ${failures.size()} jar(s):\n\t" + failures.collect {
+      Path jarPath, Throwable cause -> "${jarPath.fileName}: ${cause.message ?: cause.class.name}"
+    }.join('\n\t')
+  }
+
+  protected void applyToJar(Path jarPath) {
+    Map work = prepareJar(jarPath)
+    if (!work.done) {
+      long bytes = work.bytes as long
+      if (isSinglePass()) {
+        long start = metrics.start()
+        (signer as SignInProcess).apply(jarPath.toFile(), unsign, attributes ?: [])
+        metrics.record('sign', start, bytes)
+      } else applyInSteps(jarPath, bytes)
+    }
+    finishJar(jarPath, work)
+  }
+
+  /**
+   * Starts processing a jar by restoring it from the signed jar cache, if
+   * possible.
+   * @param jarPath The jar to process
+   * @return The work state: the start time, the size, the cache key and
+   *  whether the jar needs no more work, because it was restored from the
+   *  cache or is already compliant
+   */
+  protected Map prepareJar(Path jarPath) {
+    Map work = [start: metrics.start(), bytes: Files.size(jarPath), key: null, done: false]
+    if (skipping) {
+      new ZipArchive(jarPath.toFile()).withCloseable { ZipArchive jar ->
+        work.done = plan(jar, nameOf(jarPath)).compliant }
+      if (work.done)
+        return work
+    }
+    if (null != signingCache && signing) {
+      long start = metrics.start()
+      work.key = signingCache.key(jarPath.toFile(), certificateFingerprint,
+        signatureFileNamePrefix, attributes ?: [], unsign, reproducible ?: false)
+      work.done = signingCache.restore(work.key as String, jarPath.toFile())
+      metrics.record('cache', start, work.bytes as long)
+    }
+    work
+  }
+
+  /**
+   * Completes processing a jar by storing it in the signed jar cache and
+   * recording the jar metrics.
+   * @param jarPath The processed jar
+   * @param work The work state, from <code>prepareJar</code>
+   */
+  protected void finishJar(Path jarPath, Map work) {
+    long bytes = work.bytes as long
+    if (!work.done && null != work.key) {
+      long start = metrics.start()
+      signingCache.store(work.key as String, jarPath.toFile())
+      metrics.record('cache', start, bytes)
+    }
+    metrics.recordJar(nameOf(jarPath), work.start as long, bytes)
+    jarNames.remove(jarPath)
+  }
+
+  /**
+   * Names the parameter jar for plans and metrics by its path in the archive
+   * it was extracted from, like <code>app.war!/application-jars/a.jar</code>,
+   * so jars with the same file name are told apart.
+   * @param jarPath The jar
+   * @return The archive path, or the file name for a jar on its own
+   */
+  protected String nameOf(Path jarPath) {
+    jarNames[jarPath] ?: jarPath.fileName.toString()
+  }
+
+  /**
+   * Checks whether jars are signed: signing is enabled and a signer is
+   * configured.
+   * @return True if and only if jars are signed
+   */
+  @Internal
+  protected boolean isSigning() {
+    sign && null != signer
+  }
+
+  /**
+   * Checks whether each jar can be cleaned, given attributes and signed in a
+   * single pass. This is the case when signing in-process with the default
+   * cleaner and attribute adder.
+   * @return True if and only if jars are processed in a single pass
+   */
+  @Internal
+  protected boolean isSinglePass() {
+    signing && signer instanceof SignInProcess &&
+      (!unsign || RemoveSigningData == cleaner?.getClass()) &&
+      (!attributes || AddAttributes == adder?.getClass())
+  }
+
+  /**
+   * Checks whether signing data can be removed and attributes added by
+   * rewriting the jar once, copying the unchanged entries as raw compressed
+   * bytes. A zip file system is used instead with a custom cleaner or adder.
+   * @return True if and only if the default cleaner and adder are used
+   */
+  @Internal
+  protected boolean isRewrite() {
+    (unsign || attributes) &&
+      (!unsign || RemoveSigningData == cleaner?.getClass()) &&
+      (!attributes || AddAttributes == adder?.getClass())
+  }
+
+  /**
+   * Processes the parameter jar with the configured cleaner and adder, one
+   * after another, and then the signer if jars are signed.
+   * @param jarPath The jar to process
+   * @param bytes The jar size, for metrics
+   */
+  protected void applyInSteps(Path jarPath, long bytes) {
+    applyInSteps(jarPath, bytes, signing)
+  }
+
+  /**
+   * Processes the parameter jar with the configured cleaner and adder, and
+   * optionally the signer, one after another.
+   * @param jarPath The jar to process
+   * @param bytes The jar size, for metrics
+   * @param sign Whether to sign the jar with the configured signer
+   */
+  protected void applyInSteps(Path jarPath, long bytes, boolean sign) {
+    if (isRewrite()) {
+      long start = metrics.start()
+      new RewriteJar(unsign, attributes ? adder : null)
+        .setReproducible(reproducible ?: false).apply(jarPath.toFile())
+      metrics.record('rewrite', start, bytes)
+    } else if (unsign || (null != attributes && !attributes.isEmpty())) {
+      long start = metrics.start()
+      unzip(jarPath).with { jarFs ->
+        metrics.record('unzip', start, bytes)
+        start = metrics.start()
+        if (null != cleaner) cleaner.apply(jarFs)
+        metrics.record('unsign', start, bytes)
+        start = metrics.start()
+        if (null != adder) adder.apply(jarFs)
+        metrics.record('attributes', start, bytes)
+        start = metrics.start()
+        jarFs.close()
+        metrics.record('zip', start, bytes)
+      }
+    }
+    if (sign && null != signer) {
+      long start = metrics.start()
+      signer.apply(jarPath.toFile())
+      metrics.record('sign', start, bytes)
+    }
+  }
+}
@@ -16,42 +16,100 @@
 
 package com.brambolt.gradle.warsigner.tasks
 
-import java.nio.file.FileSystem
+import com.brambolt.util.jar.VerificationCache
 import org.gradle.api.DefaultTask
+import org.gradle.api.GradleException
 import org.gradle.api.Task
+import org.gradle.api.tasks.CacheableTask
+import org.gradle.api.tasks.Input
+import org.gradle.api.tasks.InputFile
+import org.gradle.api.tasks.Internal
+import org.gradle.api.tasks.Optional
+import org.gradle.api.tasks.OutputFile
+import org.gradle.api.tasks.PathSensitive
+import org.gradle.api.tasks.PathSensitivity
 import org.gradle.api.tasks.TaskAction
 
+import java.util.concurrent.ForkJoinPool
+
 import static com.brambolt.gradle.SpecObjects.asFile
-import static com.brambolt.nio.file.ZipFileSystems.process
 
 /**
  * <p>This task validates jar signing data and manifest attributes. If
  * validation fails a <code>GradleException</code> is thrown.</p>
  *
- * <p>This task is rarely used as-is but should be extended with an optional
- * set of signing data for comparison, so the task can also be used to verify
- * that binaries have not been tampered with. This is not implemented yet.</p>
+ * <p>If <code>verify</code> is set, the jar signatures are verified as well,
+ * so the task can be used to verify that binaries have not been tampered
+ * with. The entry digests are computed on a fork/join pool.</p>
+ *
+ * <p>If <code>report</code> is set, a report file is written when the check
+ * succeeds, and the task is up-to-date while the jar and the check
+ * parameters are unchanged.</p>
+ *
+ * <p>If <code>verificationCacheDir</code> is set, a jar that passed an
+ * earlier check with the same parameters is not opened again.</p>
  */
+@CacheableTask
 class CheckJar extends DefaultTask {
 
   /**
    * The basename of the signature files. The value <code>BRAMBOLT</code>
    * corresponds to <code>BRAMBOLT.RSA</code> etc.
    */
+  @Input
   String signatureFileNamePrefix = ''
 
   /**
    * The jar to check. The value may be a string path, a file, a path object or
    * a closure producing any of these.
    */
+  @Internal
   Object jar
 
+  /**
+   * The report file to write when the check succeeds. Not written by default.
+   * The value may be a string path, a file, a path object or a closure
+   * producing any of these.
+   */
+  @Internal
+  Object report
+
   /**
    * The jar manifest attributes to check for. The default is not to check for
    * any attributes.
    */
+  @Input
   List<String> attributes = []
 
+  /**
+   * The verification cache directory. The jar is always checked if not set.
+   * The value may be a string path, a file, a path object or a closure
+   * producing any of these.
+   */
+  @Internal
+  Object verificationCacheDir
+
+  /**
+   * Indicates whether signatures are verified, and not only checked for.
+   * Defaults to false.
+   */
+  @Input
+  Boolean verify = false
+
+  /**
+   * The number of threads computing entry digests when verifying. Defaults
+   * to the common fork/join pool.
+   */
+  @Internal
+  Integer verifyParallelism
+
+  /**
+   * Indicates whether the verification cache is cleared before checking.
+   * Defaults to false.
+   */
+  @Internal
+  Boolean invalidateVerificationCache = false
+
   /**
    * Configures the task. The task should be configured at least once.
    * @param closure The configuration closure
@@ -64,22 +122,56 @@ class CheckJar extends DefaultTask {
     super.configure(closure)
   }
 
+  /**
+   * The jar to check, as a task input.
+   * @return The jar file
+   */
+  @InputFile
+  @PathSensitive(PathSensitivity.NONE)
+  File getJarFile() {
+    asFile(jar)
+  }
+
+  /**
+   * The report file, as a task output.
+   * @return The report file, or null if no report is written
+   */
+  @Optional
+  @OutputFile
+  File getReportFile() {
+    null != report ? asFile(report) : null
+  }
+
   /**
    * The task action. Checks the configured <code>jar</code>.
    */
   @TaskAction
   void apply() {
-    apply(asFile(jar))
+    File jarFile = getJarFile()
+    apply(jarFile)
+    CheckWar.writeReport(getReportFile(), jarFile, signatureFileNamePrefix, attributes)
   }
 
   /**
    * Checks the parameter jar file.
    * @param jarFile The jar file to check
+   * @throws GradleException If the jar fails a check or can not be read
    */
   void apply(File jarFile) {
-    process(jarFile, "Unable to check ${jarFile}", ({ FileSystem fs ->
-      new com.brambolt.util.jar.CheckJar(
-        signatureFileNamePrefix, attributes).apply(fs)
-    } as Closure<Void>))
+    VerificationCache cache = CheckWar.createVerificationCache(
+      verificationCacheDir, invalidateVerificationCache, this)
+    ForkJoinPool pool = CheckWar.createPool(verifyParallelism)
+    try {
+      new com.brambolt.util.jar.CheckJar(signatureFileNamePrefix, attributes)
+        .setCache(cache)
+        .setVerify(verify)
+        .setPool(pool)
+        .apply(jarFile)
+    } catch (Exception x) {
+      throw new GradleException("Unable to check ${jarFile}", x)
+    } finally {
+      CheckWar.releasePool(pool)
+    }
+    CheckWar.reportVerificationCache(cache, this)
   }
 }
@@ -16,11 +16,24 @@
 
 package com.brambolt.gradle.warsigner.tasks
 
+import com.brambolt.util.jar.CheckReport
+import com.brambolt.util.jar.Metrics
+import com.brambolt.util.jar.VerificationCache
 import org.gradle.api.DefaultTask
 import org.gradle.api.GradleException
 import org.gradle.api.Task
+import org.gradle.api.tasks.CacheableTask
+import org.gradle.api.tasks.Input
+import org.gradle.api.tasks.InputFile
+import org.gradle.api.tasks.Internal
+import org.gradle.api.tasks.Optional
+import org.gradle.api.tasks.OutputFile
+import org.gradle.api.tasks.PathSensitive
+import org.gradle.api.tasks.PathSensitivity
 import org.gradle.api.tasks.TaskAction
 
+import java.util.concurrent.ForkJoinPool
+
 import static com.brambolt.gradle.SpecObjects.asFile
 
 /**
@@ -28,29 +41,128 @@ import static com.brambolt.gradle.SpecObjects.asFile
  * jars contained in a WAR file. If validation fails a
  * <code>GradleException</code> is thrown.</p>
  *
- * <p>This task is rarely used as-is but should be extended with an optional
- * set of signing data for comparison, so the task can also be used to verify
- * that binaries have not been tampered with. This is not implemented yet.</p>
+ * <p>If <code>verify</code> is set, the signatures of the application jars
+ * are verified as well, so the task can be used to verify that binaries have
+ * not been tampered with: the signature block is checked against the
+ * <code>.SF</code> file, the <code>.SF</code> file against the manifest and
+ * every entry digest against the manifest. The entry digests are computed
+ * on a fork/join pool.</p>
+ *
+ * <p>The application jars are checked in parallel, and the task fails with
+ * every problem in every jar listed. Set <code>failFast</code> to stop at
+ * the first problem instead.</p>
+ *
+ * <p>If <code>report</code> is set, a report file is written when the check
+ * succeeds, and the task is up-to-date while the WAR file and the check
+ * parameters are unchanged.</p>
+ *
+ * <p>If <code>verificationCacheDir</code> is set, application jars that
+ * passed an earlier check with the same parameters are skipped. The cache
+ * is keyed by a digest of each jar, so a changed jar is always checked.</p>
  */
+@CacheableTask
 class CheckWar extends DefaultTask {
 
   /**
    * The signature file name to check for. The value <code>BRAMBOLT</code>
    * corresponds to files named <code>BRAMBOLT.RSA</code> etc.
    */
+  @Input
   String signatureFileNamePrefix = ''
 
   /**
    * The jar manifest attributes to check for, defaults to no checking.
    */
+  @Input
   List<String> attributes = []
 
   /**
    * The WAR file to check. The value can be a string path, a file, a path
    * object or a closure that produces any of these.
    */
+  @Internal
   Object war
 
+  /**
+   * The report file to write when the check succeeds. Not written by default.
+   * The value can be a string path, a file, a path object or a closure that
+   * produces any of these.
+   */
+  @Internal
+  Object report
+
+  /**
+   * Indicates whether a JSON metrics report is written, with the time spent
+   * reading and checking each jar. Defaults to true.
+   */
+  @Internal
+  Boolean recordMetrics = true
+
+  /**
+   * The metrics report file. Defaults to
+   * <code>build/reports/warsigner/&lt;task name&gt;.json</code>. The value
+   * can be a string path, a file, a path object or a closure that produces
+   * any of these.
+   */
+  @Internal
+  Object metricsFile
+
+  /**
+   * The verification cache directory. Jars are always checked if not set.
+   * The value can be a string path, a file, a path object or a closure that
+   * produces any of these.
+   */
+  @Internal
+  Object verificationCacheDir
+
+  /**
+   * Indicates whether signatures are verified, and not only checked for.
+   * Defaults to false.
+   */
+  @Input
+  Boolean verify = false
+
+  /**
+   * The number of threads checking application jars and computing entry
+   * digests when verifying. Defaults to the common fork/join pool.
+   */
+  @Internal
+  Integer verifyParallelism
+
+  /**
+   * Indicates whether checking stops at the first problem, skipping the
+   * jars not yet checked. Defaults to false, reporting every problem.
+   */
+  @Internal
+  Boolean failFast = false
+
+  /**
+   * Indicates whether the verification cache is cleared before checking, so
+   * every jar is checked again. Defaults to false.
+   */
+  @Internal
+  Boolean invalidateVerificationCache = false
+
+  /**
+   * The WAR file to check, as a task input.
+   * @return The WAR file
+   */
+  @InputFile
+  @PathSensitive(PathSensitivity.NONE)
+  File getWarFile() {
+    asFile(war)
+  }
+
+  /**
+   * The report file, as a task output.
+   * @return The report file, or null if no report is written
+   */
+  @Optional
+  @OutputFile
+  File getReportFile() {
+    null != report ? asFile(report) : null
+  }
+
   /**
    * Configures the task. The task should be configured at least once.
    * @param closure The configuration closure
@@ -70,10 +182,113 @@ class CheckWar extends DefaultTask {
    */
   @TaskAction
   void apply() {
+    VerificationCache cache = createVerificationCache(
+      verificationCacheDir, invalidateVerificationCache, this)
+    ForkJoinPool pool = createPool(verifyParallelism)
     com.brambolt.util.jar.CheckWar check =
       new com.brambolt.util.jar.CheckWar(signatureFileNamePrefix, attributes)
-    File warFile = asFile(war)
-    check.apply(warFile)
+        .setCache(cache)
+        .setVerify(verify)
+        .setPool(pool)
+        .setFailFast(failFast ?: false)
+    File warFile = getWarFile()
+    Metrics metrics = new Metrics()
+    CheckReport report
+    try {
+      report = check.check(warFile, metrics)
+    } finally {
+      releasePool(pool)
+    }
+    reportVerificationCache(cache, this)
+    if (recordMetrics)
+      MetricsReport.write(this, metrics,
+        null != metricsFile ? asFile(metricsFile) : MetricsReport.getDefaultFile(this))
+    throwIfFailed(report, this)
     logger.info("Successfully checked signing data and manifest attributes in ${warFile}")
+    writeReport(getReportFile(), warFile, signatureFileNamePrefix, attributes)
+  }
+
+  /**
+   * Logs every problem in the parameter report and fails the task if there
+   * are any.
+   * @param report The check report
+   * @param task The task, for logging
+   * @throws GradleException If the report has problems
+   */
+  static void throwIfFailed(CheckReport report, Task task) {
+    if (report.isEmpty())
+      return // Nothing to do
+    report.problems.each { CheckReport.Problem problem ->
+      task.logger.error("${problem.jar}: ${problem.kind}: ${problem.message}")
+    }
+    try {
+      report.throwIfFailed()
+    } catch (CheckReport.CheckException x) {
+      throw new GradleException(x.message, x)
+    }
+  }
+
+  /**
+   * Writes a check report, if a report file is configured.
+   * @param reportFile The report file, or null
+   * @param checked The checked archive
+   * @param signatureFileNamePrefix The checked signature file name prefix
+   * @param attributes The checked attributes
+   */
+  static void writeReport(
+    File reportFile, File checked, String signatureFileNamePrefix, List<String> attributes) {
+    if (null == reportFile)
+      return // Nothing to do
+    reportFile.absoluteFile.parentFile.mkdirs()
+    reportFile.text = ([
+      "Checked: ${checked.name}",
+      "Signature file name prefix: ${signatureFileNamePrefix ?: ''}"
+    ] + (attributes ?: []).collect { "Attribute: ${it}" }).join('\n') + '\n'
+  }
+
+  /**
+   * Creates the verification cache, if a cache directory is configured.
+   * @param dir The cache directory, or null
+   * @param invalidate Whether to clear the cache
+   * @param task The task, for logging
+   * @return The verification cache, or null
+   */
+  static VerificationCache createVerificationCache(Object dir, Boolean invalidate, Task task) {
+    if (null == dir)
+      return null // No caching
+    VerificationCache cache = new VerificationCache(asFile(dir))
+    if (invalidate)
+      task.logger.info("Removed ${cache.invalidate()} verification cache entries")
+    cache
+  }
+
+  /**
+   * Logs the verification cache hit rate.
+   * @param cache The verification cache, or null
+   * @param task The task, for logging
+   */
+  static void reportVerificationCache(VerificationCache cache, Task task) {
+    if (null != cache)
+      task.logger.lifecycle(String.format(
+        'Verification cache: %d hit(s), %d miss(es), %.0f%% hit rate',
+        cache.hits, cache.misses, cache.hitRate * 100))
+  }
+
+  /**
+   * Creates the pool entry digests are computed on when verifying.
+   * @param parallelism The number of threads, or null for the common pool
+   * @return The pool
+   */
+  static ForkJoinPool createPool(Integer parallelism) {
+    null != parallelism ? new ForkJoinPool(parallelism) : ForkJoinPool.commonPool()
+  }
+
+  /**
+   * Shuts the parameter pool down, unless it is the common pool.
+   * @param pool The pool
+   */
+  static void releasePool(ForkJoinPool pool) {
+    if (pool != ForkJoinPool.commonPool())
+      pool.shutdown()
   }
 }
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2017-2020 Brambolt ehf.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brambolt.gradle.warsigner.tasks
+
+import com.brambolt.util.jar.Metrics
+import groovy.json.JsonOutput
+import org.gradle.api.Task
+
+/**
+ * Writes task metrics as a JSON report, for build dashboards.
+ */
+class MetricsReport {
+
+  /**
+   * Finds the default report file for the parameter task,
+   * <code>build/reports/warsigner/&lt;task name&gt;.json</code>.
+   * @param task The task
+   * @return The report file
+   */
+  static File getDefaultFile(Task task) {
+    new File(task.project.buildDir, "reports/warsigner/${task.name}.json")
+  }
+
+  /**
+   * Writes the report and logs a summary.
+   * @param task The task that collected the metrics
+   * @param metrics The metrics to report
+   * @param file The report file
+   */
+  static void write(Task task, Metrics metrics, File file) {
+    metrics.finish()
+    file.absoluteFile.parentFile.mkdirs()
+    file.text = JsonOutput.prettyPrint(JsonOutput.toJson([task: task.path] + metrics.toMap()))
+    task.logger.info(String.format('Processed %d jar(s), %.1f MB in %.0f ms (%.1f MB/s); metrics in %s',
+      metrics.jarCount, metrics.bytes / (1024.0 * 1024.0), metrics.millis, metrics.throughput, file))
+  }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2017-2020 Brambolt ehf.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brambolt.gradle.warsigner.tasks
+
+import com.brambolt.util.jar.PlanJar
+import org.gradle.api.Task
+
+/**
+ * Writes the work planned for each jar as a text report, one jar per line.
+ */
+class PlanReport {
+
+  /**
+   * Finds the default report file for the parameter task,
+   * <code>build/reports/warsigner/&lt;task name&gt;-plan.txt</code>.
+   * @param task The task
+   * @return The report file
+   */
+  static File getDefaultFile(Task task) {
+    new File(task.project.buildDir, "reports/warsigner/${task.name}-plan.txt")
+  }
+
+  /**
+   * Writes the report and logs the plans and a summary.
+   * @param task The task that planned the work
+   * @param plans The plans, in the order to report them
+   * @param file The report file
+   */
+  static void write(Task task, List<PlanJar.Plan> plans, File file) {
+    int changed = plans.count { !it.compliant } as int
+    String summary = "${changed} of ${plans.size()} jar(s) need work"
+    file.absoluteFile.parentFile.mkdirs()
+    file.text = (plans*.format() + [summary]).join('\n') + '\n'
+    plans.each { task.logger.lifecycle(it.format()) }
+    task.logger.lifecycle("${summary}; plan in ${file}")
+  }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2017-2020 Brambolt ehf.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brambolt.gradle.warsigner.tasks
+
+import com.brambolt.util.jar.Metrics
+import com.brambolt.util.jar.RewriteArchive
+import org.gradle.api.GradleException
+import org.gradle.api.Task
+import org.gradle.api.file.FileCollection
+import org.gradle.api.tasks.InputFiles
+import org.gradle.api.tasks.Internal
+import org.gradle.api.tasks.PathSensitive
+import org.gradle.api.tasks.PathSensitivity
+import org.gradle.api.tasks.TaskAction
+
+import java.nio.file.Path
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.ForkJoinPool
+
+/**
+ * <p>Signs many jar, WAR and EAR files in one task execution. The signing
+ * credentials are loaded once, and every jar goes through the same worker
+ * pool: the jars listed directly, the application jars in each WAR file and
+ * the application jars in each WAR file nested in an EAR file. The task
+ * writes one metrics report for all archives, and reports every failed
+ * archive together.</p>
+ *
+ * <p>The archives are processed in place. WAR and EAR files are rewritten
+ * one entry at a time, like <code>SignWar</code> does in streaming mode, or
+ * by the <code>nestedPatterns</code> if set.</p>
+ */
+abstract class SignArchives extends ArchiveSigningTask {
+
+  /**
+   * The archives to sign. The value can be anything accepted by
+   * <code>project.files</code>, like paths, files, file collections and file
+   * trees. String values with wildcards, like <code>build/libs/**&#47;*.war</code>,
+   * are treated as patterns relative to the project directory.
+   */
+  @Internal
+  Object archives
+
+  /**
+   * Configures the task. The task should be configured at least once, to
+   * make sure defaults are established.
+   * @param closure The configuration closure
+   * @return The configured task
+   */
+  @Override
+  Task configure(Closure closure) {
+    group = 'Warsigner'
+    description = 'Repairs permissions and resigns jars, WARs and EARs.'
+    super.configure(closure)
+    configureSigningParameters()
+    onlyIf { shouldExecute() }
+    configureDefaults()
+    this
+  }
+
+  /**
+   * The archives to sign, as a task input.
+   * @return The archive files
+   */
+  @InputFiles
+  @PathSensitive(PathSensitivity.RELATIVE)
+  FileCollection getArchiveFiles() {
+    project.files(resolve(archives))
+  }
+
+  protected Object resolve(Object value) {
+    if (value instanceof Collection)
+      return value.collect { resolve(it) }
+    if (value instanceof CharSequence && value.toString().matches(/.*[*?\[].*/))
+      return project.fileTree(project.projectDir).matching { include value.toString() }
+    value
+  }
+
+  /**
+   * The task action. Processes the jars first, then the WAR files and then
+   * the EAR files.
+   * @throws GradleException If processing fails for any archive
+   */
+  @TaskAction
+  void apply() {
+    checkConfiguration()
+    metrics = new Metrics()
+    configurePlanning()
+    List<File> files = getArchiveFiles().files.sort()
+    if (planOnly) {
+      planArchives(files)
+      return
+    }
+    configureReproducible()
+    configureSigningCache()
+    Map<Path, Throwable> failures = [:]
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, maxParallelJars ?: 1))
+    ForkJoinPool pool = configureDigestPool(signer)
+    try {
+      failures.putAll(applyToJars(
+        files.findAll { isType(it, '.jar') }.collect { it.toPath() }, executor))
+      files.findAll { isType(it, '.war') }.each { File war ->
+        tryApply(war, failures) { nested ? applyNested(war, executor) : applyToWar(war, war.name, executor) }
+      }
+      files.findAll { isType(it, '.ear') }.each { File ear ->
+        tryApply(ear, failures) { nested ? applyNested(ear, executor) : applyToEar(ear, executor) }
+      }
+      files.findAll { !isType(it, '.jar') && !isType(it, '.war') && !isType(it, '.ear') }.each {
+        failures[it.toPath()] = new IllegalArgumentException('Not a jar, WAR or EAR file')
+      }
+    } finally {
+      executor.shutdownNow()
+      releaseDigestPool(signer, pool)
+    }
+    reportSigningCache()
+    reportPlans()
+    writeMetrics()
+    if (!failures.isEmpty())
+      throw new GradleException(formatFailures(failures), failures.values().first())
+    logger.info("Processed ${files.size()} archive(s)")
+  }
+
+  /**
+   * Plans the work for the jars in the parameter archives without changing
+   * them, and reports the plans.
+   * @param files The archives
+   * @throws GradleException If any archive can not be read
+   */
+  protected void planArchives(List<File> files) {
+    Map<Path, Throwable> failures = [:]
+    files.findAll { isType(it, '.jar') || isType(it, '.war') || isType(it, '.ear') }.each { File archive ->
+      tryApply(archive, failures) { planArchive(archive) }
+    }
+    reportPlans()
+    if (!failures.isEmpty())
+      throw new GradleException(formatFailures(failures), failures.values().first())
+  }
+
+  protected static boolean isType(File file, String extension) {
+    file.name.toLowerCase(Locale.ENGLISH).endsWith(extension)
+  }
+
+  protected static void tryApply(File archive, Map<Path, Throwable> failures, Closure closure) {
+    try {
+      closure.call()
+    } catch (Exception x) {
+      failures[archive.toPath()] = x
+    }
+  }
+
+  /**
+   * Rewrites the parameter WAR file, processing the application jars on the
+   * shared executor.
+   * @param warFile The WAR file
+   * @param warName The WAR file path to report the jars under
+   * @param executor The shared executor
+   * @throws IllegalStateException If processing fails for any jar
+   */
+  protected void applyToWar(File warFile, String warName, ExecutorService executor) {
+    RewriteArchive rewrite
+    rewrite = new RewriteArchive(
+      { String name -> isApplicationJar(name) },
+      { File jarFile -> applyToExtractedJar(jarFile, warName, rewrite) } as RewriteArchive.Processor,
+      executor).setBatch(createWorkerBatch()).setCompression(createCompression())
+      .setReproducible(reproducible ?: false).setMetrics(metrics)
+    rewrite.apply(warFile)
+  }
+
+  /**
+   * Rewrites the parameter EAR file, processing the nested WAR files one at
+   * a time. The application jars in each WAR file are processed on the
+   * shared executor. With Gradle workers the WAR files are processed from
+   * the task thread once they are extracted, so the jars can be submitted.
+   * @param earFile The EAR file
+   * @param executor The shared executor
+   * @throws IllegalStateException If processing fails for any WAR file
+   */
+  protected void applyToEar(File earFile, ExecutorService executor) {
+    RewriteArchive rewrite
+    Closure<String> warName = { File warFile -> "${earFile.name}!/${rewrite.getEntryName(warFile)}".toString() }
+    rewrite = new RewriteArchive(
+      { String name -> name.toLowerCase(Locale.ENGLISH).endsWith('.war') },
+      { File warFile -> if (!useWorkers) applyToWar(warFile, warName(warFile), executor) } as RewriteArchive.Processor,
+      1).setBatch(useWorkers ? { List<File> warFiles ->
+        warFiles.each { applyToWar(it, warName(it), executor) } } as RewriteArchive.Batch : null)
+      .setCompression(createCompression()).setReproducible(reproducible ?: false)
+      .setMetrics(metrics)
+    rewrite.apply(earFile)
+  }
+
+  @Override
+  protected String formatFailures(Map<Path, Throwable> failures) {
+    "Unable to process ${failures.size()} archive(s):\n\t" + failures.collect {
+      Path path, Throwable cause -> "${path.fileName}: ${cause.message ?: cause.class.name}"
+    }.join('\n\t')
+  }
+}
@@ -16,30 +16,75 @@
 
 package com.brambolt.gradle.warsigner.tasks
 
-import com.brambolt.util.jar.SignWithJarsigner
+import com.brambolt.util.jar.Signer
+import com.brambolt.util.jar.SigningCache
 import org.gradle.api.GradleException
 import org.gradle.api.Task
+import org.gradle.api.tasks.CacheableTask
+import org.gradle.api.tasks.InputFile
+import org.gradle.api.tasks.Internal
+import org.gradle.api.tasks.Optional
+import org.gradle.api.tasks.OutputFile
+import org.gradle.api.tasks.PathSensitive
+import org.gradle.api.tasks.PathSensitivity
 import org.gradle.api.tasks.TaskAction
 
+import java.util.concurrent.ForkJoinPool
+
 import static com.brambolt.gradle.SpecObjects.asFile
 
 /**
- * Sians a jar file.
+ * <p>Sians a jar file.</p>
+ *
+ * <p>The jar is signed in place unless <code>outputJar</code> is set, in which
+ * case the signed jar is written to the output and the input is unchanged.
+ * Only then can the task be up-to-date or taken from the build cache.</p>
  */
+@CacheableTask
 class SignJar extends SigningTask {
 
   /**
    * The jar to sign. The value can be a string path, a file, a path object or
    * a closure that produces any of these.
    */
+  @Internal
   Object jar
 
+  /**
+   * The signed jar to write. If not set, the jar is signed in place. The
+   * value can be a string path, a file, a path object or a closure that
+   * produces any of these.
+   */
+  @Internal
+  Object outputJar
+
   /**
    * The jar signer executable to use. The value can be a string path, a file,
    * a path object or a closure that produces any of these.
    */
+  @Internal
   Object jarsigner
 
+  /**
+   * The jar to sign, as a task input.
+   * @return The jar file
+   */
+  @InputFile
+  @PathSensitive(PathSensitivity.NONE)
+  File getJarFile() {
+    asFile(jar)
+  }
+
+  /**
+   * The signed jar, as a task output.
+   * @return The output jar file, or null if the jar is signed in place
+   */
+  @Optional
+  @OutputFile
+  File getOutputJarFile() {
+    null != outputJar ? asFile(outputJar) : null
+  }
+
   /**
    * Configures the task. The task should be configured at least once.
    * @param closure The configuration closure
@@ -63,16 +108,27 @@ class SignJar extends SigningTask {
   @TaskAction
   void apply() {
     checkConfiguration()
-    File jarFile = asFile(jar)
-    project.logger.info("Signing ${jar.absolutePath}")
-    new SignWithJarsigner(
-      signatureFileNamePrefix,
-      asFile(signingStore),
-      signingStorePassword,
-      signingKeyPassword,
-      signingAlias,
-      findJavaHome(),
-      null).apply(jarFile)
+    File jarFile = prepareOutput(getJarFile(), getOutputJarFile())
+    project.logger.info("Signing ${jarFile.absolutePath}")
+    SigningCache cache = configureSigningCache()
+    String key = null
+    if (null != cache) {
+      key = cache.key(jarFile, certificateFingerprint, signatureFileNamePrefix, [], false)
+      if (cache.restore(key, jarFile)) {
+        reportSigningCache()
+        return
+      }
+    }
+    Signer signer = createSigner()
+    ForkJoinPool pool = configureDigestPool(signer)
+    try {
+      signer.apply(jarFile)
+    } finally {
+      releaseDigestPool(signer, pool)
+    }
+    if (null != cache)
+      cache.store(key, jarFile)
+    reportSigningCache()
   }
 }
 
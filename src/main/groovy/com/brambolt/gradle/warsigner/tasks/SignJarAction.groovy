@@ -0,0 +1,82 @@
+/*
+ * Copyright 2017-2020 Brambolt ehf.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brambolt.gradle.warsigner.tasks
+
+import com.brambolt.util.jar.AddAttributes
+import com.brambolt.util.jar.RewriteJar
+import com.brambolt.util.jar.SignInProcess
+import com.brambolt.util.jar.SignWithJarsigner
+import org.gradle.workers.WorkAction
+
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.TimeUnit
+
+/**
+ * <p>Processes one jar in a Gradle worker: removes signing data, adds the
+ * manifest attributes and signs the jar, as the parameters say.</p>
+ *
+ * <p>The signer is created from the parameters for each jar. Without
+ * isolation it takes the key from the task's credential service; isolated
+ * work items read the key store themselves. Signing in-process cleans, adds attributes and
+ * signs in a single pass; with <code>jarsigner</code> the jar is rewritten
+ * first and signed by the external process.</p>
+ */
+abstract class SignJarAction implements WorkAction<SignJarParameters> {
+
+  @Override
+  void execute() {
+    SignJarParameters parameters = getParameters()
+    File jar = parameters.jar.get().asFile
+    boolean unsign = parameters.unsign.get()
+    List<String> attributes = parameters.attributes.get()
+    boolean reproducible = parameters.reproducible.get()
+    if (parameters.sign.get() && parameters.inProcess.get()) {
+      ForkJoinPool pool = parameters.digestParallelism.present
+        ? new ForkJoinPool(parameters.digestParallelism.get()) : null
+      try {
+        new SignInProcess(
+          parameters.signatureFileNamePrefix.get(),
+          parameters.signingStore.get().asFile,
+          parameters.signingStorePassword.get(),
+          parameters.signingAlias.get(),
+          parameters.signingKeyPassword.get())
+          .setCredentialSource(parameters.credentialService.getOrNull())
+          .setReproducible(reproducible)
+          .setPool(pool)
+          .apply(jar, unsign, attributes)
+      } finally {
+        pool?.shutdown()
+      }
+      return
+    }
+    if (unsign || !attributes.isEmpty())
+      new RewriteJar(unsign, attributes ? new AddAttributes(attributes) : null)
+        .setReproducible(reproducible).apply(jar)
+    if (parameters.sign.get())
+      new SignWithJarsigner(
+        parameters.signatureFileNamePrefix.get(),
+        parameters.signingStore.get().asFile,
+        parameters.signingStorePassword.get(),
+        parameters.signingAlias.get(),
+        parameters.signingKeyPassword.get(),
+        parameters.javaHome.get().asFile,
+        null)
+        .setMaxProcesses(1)
+        .setTimeout(parameters.jarsignerTimeout.get(), TimeUnit.SECONDS)
+        .apply(jar)
+  }
+}
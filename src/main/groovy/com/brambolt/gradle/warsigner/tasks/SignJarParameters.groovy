@@ -0,0 +1,62 @@
+/*
+ * Copyright 2017-2020 Brambolt ehf.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brambolt.gradle.warsigner.tasks
+
+import com.brambolt.gradle.warsigner.SigningCredentialService
+import org.gradle.api.file.DirectoryProperty
+import org.gradle.api.file.RegularFileProperty
+import org.gradle.api.provider.ListProperty
+import org.gradle.api.provider.Property
+import org.gradle.workers.WorkParameters
+
+/**
+ * The parameters for processing one jar in a Gradle worker. These are the
+ * signing task properties the default cleaner, attribute adder and signers
+ * need, since the task itself can not be passed to an isolated worker.
+ */
+interface SignJarParameters extends WorkParameters {
+
+  RegularFileProperty getJar()
+
+  Property<Boolean> getUnsign()
+
+  ListProperty<String> getAttributes()
+
+  Property<Boolean> getSign()
+
+  Property<Boolean> getInProcess()
+
+  Property<String> getSignatureFileNamePrefix()
+
+  RegularFileProperty getSigningStore()
+
+  Property<String> getSigningStorePassword()
+
+  Property<String> getSigningAlias()
+
+  Property<String> getSigningKeyPassword()
+
+  DirectoryProperty getJavaHome()
+
+  Property<Long> getJarsignerTimeout()
+
+  Property<Boolean> getReproducible()
+
+  Property<Integer> getDigestParallelism()
+
+  Property<SigningCredentialService> getCredentialService()
+}
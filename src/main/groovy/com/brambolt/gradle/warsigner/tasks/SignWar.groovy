@@ -16,16 +16,27 @@
 
 package com.brambolt.gradle.warsigner.tasks
 
-import com.brambolt.util.jar.AddAttributes
-import com.brambolt.util.jar.RemoveSigningData
-import com.brambolt.util.jar.SignWithJarsigner
+import com.brambolt.util.jar.Metrics
+import com.brambolt.util.jar.RewriteArchive
+import com.brambolt.util.jar.ZipDirectory
 import java.nio.file.Files
+import org.gradle.api.GradleException
 import org.gradle.api.Task
+import org.gradle.api.tasks.CacheableTask
+import org.gradle.api.tasks.Input
+import org.gradle.api.tasks.InputFile
+import org.gradle.api.tasks.Internal
+import org.gradle.api.tasks.Optional
+import org.gradle.api.tasks.OutputFile
+import org.gradle.api.tasks.PathSensitive
+import org.gradle.api.tasks.PathSensitivity
 import org.gradle.api.tasks.TaskAction
 
 import java.nio.file.Path
+import java.util.concurrent.ForkJoinPool
+import java.util.stream.Collectors
+import java.util.stream.Stream
 
-import static com.brambolt.nio.file.ZipFileSystems.unzip
 import static com.brambolt.gradle.SpecObjects.asFile
 
 /**
@@ -40,44 +51,39 @@ import static com.brambolt.gradle.SpecObjects.asFile
  * all jars are signed with the same certificate and at the same time make
  * sure that the <code>Permissions: all-permissions</code> attributed required
  * with Java 8 and onwards is always set.</p>
+ *
+ * <p>The WAR file is processed in place unless <code>outputWar</code> is set,
+ * in which case the result is written to the output and the input WAR is
+ * unchanged. Only then can the task be up-to-date or taken from the build
+ * cache.</p>
  */
-class SignWar extends SigningTask {
-
-  /**
-   * Indicates whether signing data should be removed before signing.
-   */
-  Boolean unsign = true
-
-  /**
-   * Lists jar manifest attributes to be added. Empty by default.
-   */
-  List<String> attributes = []
-
-  /**
-   * Indicates whether to sign application jar files in the WAR file.
-   */
-  Boolean sign = true
+@CacheableTask
+abstract class SignWar extends ArchiveSigningTask {
 
   /**
    * The WAR file to process. The value can be a string path, a file, a path
    * object, or a closure that produces any of these.
    */
+  @Internal
   Object war
 
   /**
-   * The jar signer implementation used for signing.
+   * The WAR file to write. If not set, the WAR file is processed in place.
+   * The value can be a string path, a file, a path object, or a closure that
+   * produces any of these.
    */
-  SignWithJarsigner signer
+  @Internal
+  Object outputWar
 
   /**
-   * The signing data cleaner used for removing existing signing data.
+   * Indicates whether the WAR file is rewritten one entry at a time instead
+   * of being expanded to a temporary directory and zipped again. Entries
+   * other than application jars are then copied as they are, without being
+   * decompressed and compressed again, and only the application jars are
+   * extracted for processing. Defaults to false.
    */
-  RemoveSigningData cleaner
-
-  /**
-   * The add-attributes implementation.
-   */
-  AddAttributes adder
+  @Input
+  Boolean streaming = false
 
   /**
    * Configures the task. The task should be configured at least once, to
@@ -94,7 +100,11 @@ class SignWar extends SigningTask {
     onlyIf { shouldExecute() }
     configureDefaults()
     onlyIf { sign || unsign || (null != attributes && !attributes.isEmpty()) }
+    outputs.upToDateWhen { !planOnly }
+    outputs.doNotCacheIf('Only planning the work') { planOnly }
     doFirst {
+      if (planOnly)
+        return // Nothing is changed
       if (unsign)
         project.logger.quiet('Removing pre-existing signing data...')
       if (!attributes.isEmpty()) {
@@ -107,54 +117,24 @@ class SignWar extends SigningTask {
     this
   }
 
-  boolean shouldExecute() {
-    null != signingStore && (
-      (signingStore instanceof String && !signingStore.trim().isEmpty()) ||
-      (signingStore instanceof File))
-  }
-
-  /**
-   * Configures defaults.
-   */
-  void configureDefaults() {
-    configureJarsigner()
-    configureCleaner()
-    configureAdder()
-  }
-
-  /**
-   * Initializes the jar signer implementation if an implementation was not
-   * provided during configuration. Subsequent invocations do nothing unless
-   * the value is explicitly cleared.
-   */
-  void configureJarsigner() {
-    if (null == signer)
-      signer = new SignWithJarsigner(
-        signatureFileNamePrefix,
-        asFile(signingStore),
-        signingStorePassword,
-        signingAlias,
-        signingKeyPassword)
-  }
-
   /**
-   * Initializes the attribute cleaner if an implementation was not provided
-   * during configuration. Subsequent invocations do nothing unless the value
-   * is explicitly cleared.
+   * The WAR file to process, as a task input.
+   * @return The WAR file
    */
-  void configureCleaner() {
-    if (null == cleaner)
-      cleaner = new RemoveSigningData()
+  @InputFile
+  @PathSensitive(PathSensitivity.NONE)
+  File getWarFile() {
+    asFile(war)
   }
 
   /**
-   * Initializes the attribute adder if an implementation was not provided
-   * during configuration. Subsequent invocations do nothing unless the value
-   * is explicitly cleared.
+   * The processed WAR file, as a task output.
+   * @return The output WAR file, or null if the WAR is processed in place
    */
-  void configureAdder() {
-    if (null == adder)
-      adder = new AddAttributes(attributes)
+  @Optional
+  @OutputFile
+  File getOutputWarFile() {
+    null != outputWar ? asFile(outputWar) : null
   }
 
   /**
@@ -167,31 +147,117 @@ class SignWar extends SigningTask {
     // the remaining configuration parameters:
     checkConfiguration()
     // Clean signing data, set permissions and resign each application jar:
-    File warFile = asFile(war)
+    metrics = new Metrics()
+    configurePlanning()
+    if (planOnly) {
+      planArchive(getWarFile())
+      reportPlans()
+      return
+    }
+    configureReproducible()
+    File warFile = prepareOutput(getWarFile(), getOutputWarFile())
+    configureSigningCache()
+    ForkJoinPool pool = configureDigestPool(signer)
+    try {
+      if (nested)
+        applyNested(warFile, null)
+      else if (streaming)
+        applyStreaming(warFile)
+      else applyExpanded(warFile)
+    } finally {
+      releaseDigestPool(signer, pool)
+    }
+    reportSigningCache()
+    reportPlans()
+    writeMetrics()
+    logger.info("Fixed signing data and permission attributes in ${warFile.absolutePath}")
+  }
+
+  /**
+   * Expands the WAR file to a temporary directory, processes the application
+   * jars and zips the directory to replace the WAR file. The entries keep
+   * the order they had in the WAR file.
+   * @param warFile The WAR file to process
+   */
+  protected void applyExpanded(File warFile) {
+    long start = metrics.start()
     Path tmpDir = Files.createTempDirectory(warFile.getName())
     ant.unzip(src: warFile, dest: tmpDir)
-    apply(tmpDir.toFile())
-    ant.delete(file: warFile)
-    ant.zip(basedir: tmpDir, destfile: warFile)
+    long expanded = sizeOf(tmpDir)
+    metrics.addTemp(expanded)
+    metrics.record('expand', start, warFile.length())
+    apply(tmpDir.toFile(), warFile.name)
+    start = metrics.start()
+    long processed = sizeOf(tmpDir)
+    metrics.addTemp(processed - expanded)
+    try {
+      new ZipDirectory(createCompression())
+        .setReproducible(reproducible ?: false).apply(tmpDir.toFile(), warFile)
+    } catch (IllegalStateException x) {
+      throw new GradleException(x.message, x.cause ?: x)
+    }
+    metrics.record('compress', start, processed)
+    start = metrics.start()
     ant.delete(dir: tmpDir)
-    logger.info("Fixed signing data and permission attributes in ${warFile.absolutePath}")
+    metrics.releaseTemp(processed)
+    metrics.record('cleanup', start, processed)
+  }
+
+  private static long sizeOf(Path dir) {
+    Stream<Path> paths = Files.walk(dir)
+    try {
+      paths.filter({ Files.isRegularFile(it) }).mapToLong({ Files.size(it) }).sum()
+    } finally {
+      paths.close()
+    }
+  }
+
+  /**
+   * Rewrites the WAR file entry by entry, processing the application jars.
+   * @param warFile The WAR file to process
+   * @throws GradleException If processing fails for any jar
+   */
+  protected void applyStreaming(File warFile) {
+    RewriteArchive rewrite
+    rewrite = new RewriteArchive(
+      { String name -> isApplicationJar(name) },
+      { File jarFile -> applyToExtractedJar(jarFile, warFile.name, rewrite) } as RewriteArchive.Processor,
+      maxParallelJars ?: 1).setBatch(createWorkerBatch())
+      .setCompression(createCompression()).setReproducible(reproducible ?: false)
+      .setMetrics(metrics)
+    try {
+      rewrite.apply(warFile)
+    } catch (IllegalStateException x) {
+      throw new GradleException(x.message, x.cause ?: x)
+    }
   }
 
   protected File apply(File dir) {
-    Files.walk(new File(dir, "application-jars").toPath())
-      .filter({ it.toString().endsWith('.jar') })
-      .forEach({ Path jarPath -> applyToJar(jarPath) })
-    dir
+    apply(dir, null)
   }
 
-  protected void applyToJar(Path jarPath) {
-    if (unsign || (null != attributes && !attributes.isEmpty()))
-      unzip(jarPath).with { jarFs ->
-        if (null != cleaner) cleaner.apply(jarFs)
-        if (null != adder) adder.apply(jarFs)
-        jarFs.close()
+  /**
+   * Processes the application jars in an expanded WAR file.
+   * @param dir The expanded WAR file
+   * @param warName The WAR file name to report the jars under, or null
+   * @return The directory
+   */
+  protected File apply(File dir, String warName) {
+    Stream<Path> paths = Files.walk(new File(dir, "application-jars").toPath())
+    List<Path> jarPaths
+    try {
+      jarPaths = paths
+        .filter({ it.toString().endsWith('.jar') })
+        .collect(Collectors.toList())
+    } finally {
+      paths.close()
+    }
+    if (null != warName)
+      jarPaths.each { Path jarPath ->
+        jarNames[jarPath] = "${warName}!/${dir.toPath().relativize(jarPath).join('/')}".toString()
       }
-    if (null != signer) signer.apply(jarPath.toFile())
+    applyToJars(jarPaths)
+    dir
   }
 }
 
@@ -16,11 +16,39 @@
 
 package com.brambolt.gradle.warsigner.tasks
 
+import com.brambolt.gradle.warsigner.SigningCredentialService
+import com.brambolt.util.jar.SignInProcess
+import com.brambolt.util.jar.SignWithJarsigner
+import com.brambolt.util.jar.Signer
+import com.brambolt.util.jar.SigningCache
+import com.brambolt.util.jar.SigningCredentials
 import org.gradle.api.DefaultTask
 import org.gradle.api.GradleException
+import org.gradle.api.provider.Provider
+import org.gradle.api.tasks.Input
+import org.gradle.api.tasks.InputFile
+import org.gradle.api.tasks.Internal
+import org.gradle.api.tasks.Optional
+import org.gradle.api.tasks.PathSensitive
+import org.gradle.api.tasks.PathSensitivity
+
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.TimeUnit
+
+import static com.brambolt.gradle.SpecObjects.asFile
 
 /**
- * Shared implementation for signing tasks.
+ * <p>Shared implementation for signing tasks.</p>
+ *
+ * <p>The key store file, alias, signature file name prefix and signer choice
+ * are task inputs. The passwords are internal, so they never become part of
+ * a build cache key.</p>
+ *
+ * <p>Signing keys are unlocked through a shared build service, so a key
+ * store is read once per build however many tasks sign with it, and the key
+ * material is released when the build finishes.</p>
  */
 abstract class SigningTask extends DefaultTask {
 
@@ -28,29 +56,137 @@ abstract class SigningTask extends DefaultTask {
    * The file name prefix to use. The value <code>BRAMBOLT</code> corresponds
    * to signing data files named <code>BRAMBOLT.RSA</code> etc.
    */
+  @Input
   String signatureFileNamePrefix = ''
 
   /**
    * The signing key store to use. The value can be a string path, a file, a
    * path object or a closure that produces any of these.
    */
+  @Internal
   Object signingStore
 
   /**
    * The signing key store password.
    */
+  @Internal
   String signingStorePassword
 
   /**
    * The alias of the certificate to sign with.
    */
+  @Input
+  @Optional
   String signingAlias
 
   /**
    * The password for the certificate to sign with.
    */
+  @Internal
   String signingKeyPassword
 
+  /**
+   * Indicates whether jars are signed inside the Gradle process instead of
+   * by forking the <code>jarsigner</code> executable for every jar. Signing
+   * in-process reads the signing key once per task. Defaults to true.
+   */
+  @Input
+  Boolean inProcess = true
+
+  /**
+   * The maximum number of <code>jarsigner</code> processes running at the
+   * same time, when <code>inProcess</code> is false. Defaults to the number
+   * of available processors.
+   */
+  @Internal
+  Integer maxJarsignerProcesses = Runtime.runtime.availableProcessors()
+
+  /**
+   * The number of seconds a <code>jarsigner</code> process may run before it
+   * is destroyed and the jar fails, when <code>inProcess</code> is false.
+   * The value zero, the default, means no timeout.
+   */
+  @Internal
+  Long jarsignerTimeout = 0L
+
+  /**
+   * The number of threads computing entry digests when signing in-process.
+   * The entries of each jar are split into batches of the central directory
+   * that are digested at the same time, which helps when a few jars with
+   * many entries take most of the time. The manifest does not depend on the
+   * number of threads. Defaults to computing the digests on the signing
+   * thread.
+   */
+  @Internal
+  Integer digestParallelism
+
+  /**
+   * The signed jar cache directory. If set, each jar is looked up in the
+   * cache by its content, the signing certificate, the signature file name
+   * prefix and the manifest attributes, and a jar that was processed before
+   * is replaced with the cached result instead of being signed again. The
+   * value can be a string path, a file, a path object or a closure that
+   * produces any of these. The default is not to cache.
+   */
+  @Internal
+  Object signingCacheDir
+
+  /**
+   * The maximum total size of the signed jar cache, in bytes. The least
+   * recently used jars are evicted when the cache grows beyond the cap.
+   */
+  @Internal
+  Long signingCacheMaxBytes = SigningCache.DEFAULT_MAX_BYTES
+
+  /**
+   * The signed jar cache, if <code>signingCacheDir</code> is set.
+   */
+  @Internal
+  SigningCache signingCache
+
+  /**
+   * The signing certificate fingerprint, used in signed jar cache keys.
+   */
+  protected String certificateFingerprint
+
+  /**
+   * The build service that unlocks signing keys once per build.
+   */
+  @Internal
+  final Provider<SigningCredentialService> credentialService
+
+  SigningTask() {
+    credentialService = SigningCredentialService.register(project)
+    usesService(credentialService)
+  }
+
+  /**
+   * The signing key store file, as a task input.
+   * @return The key store file, or null if no key store is configured
+   */
+  @Optional
+  @InputFile
+  @PathSensitive(PathSensitivity.NONE)
+  File getSigningStoreFile() {
+    null != signingStore && !signingStore.toString().trim().isEmpty() ? asFile(signingStore) : null
+  }
+
+  /**
+   * Copies the input artifact to the output artifact, if an output is set
+   * and is not the input. The task then processes the returned file in place,
+   * so the input is left untouched.
+   * @param input The input artifact
+   * @param output The output artifact, or null to process the input in place
+   * @return The file to process
+   */
+  protected File prepareOutput(File input, File output) {
+    if (null == output || output.absoluteFile == input.absoluteFile)
+      return input
+    output.absoluteFile.parentFile.mkdirs()
+    Files.copy(input.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING)
+    output
+  }
+
   /**
    * Configures signing parameters by attempting to read the values from
    * command line arguments.
@@ -107,6 +243,93 @@ abstract class SigningTask extends DefaultTask {
     // project.logger.debug("Signing key password: ${signingKeyPassword ?: 'null'}")
   }
 
+  /**
+   * Creates the signer implementation for the configured signing parameters.
+   * The in-process signer takes its key from the shared credential service.
+   * @return An in-process signer, or a <code>jarsigner</code> wrapper if
+   *  <code>inProcess</code> is false
+   */
+  Signer createSigner() {
+    if (inProcess)
+      new SignInProcess(
+        signatureFileNamePrefix,
+        asFile(signingStore),
+        signingStorePassword,
+        signingAlias,
+        signingKeyPassword)
+        .setCredentialSource(credentialService.get())
+    else new SignWithJarsigner(
+      signatureFileNamePrefix,
+      asFile(signingStore),
+      signingStorePassword,
+      signingAlias,
+      signingKeyPassword,
+      findJavaHome(),
+      null)
+      .setMaxProcesses(maxJarsignerProcesses ?: 1)
+      .setTimeout(jarsignerTimeout ?: 0L, TimeUnit.SECONDS)
+  }
+
+  /**
+   * Creates the pool entry digests are computed on, if
+   * <code>digestParallelism</code> is set, and gives it to the parameter
+   * signer if it signs in-process. The task action releases the pool with
+   * <code>releaseDigestPool</code> when it is done.
+   * @param signer The signer
+   * @return The pool, or null if digests are computed on the signing thread
+   */
+  protected ForkJoinPool configureDigestPool(Signer signer) {
+    if (null == digestParallelism || !(signer instanceof SignInProcess))
+      return null
+    ForkJoinPool pool = new ForkJoinPool(digestParallelism)
+    (signer as SignInProcess).setPool(pool)
+    pool
+  }
+
+  /**
+   * Takes the parameter pool back from the signer and shuts it down.
+   * @param signer The signer
+   * @param pool The pool from <code>configureDigestPool</code>, or null
+   */
+  protected void releaseDigestPool(Signer signer, ForkJoinPool pool) {
+    if (null == pool)
+      return
+    (signer as SignInProcess).setPool(null)
+    pool.shutdown()
+  }
+
+  /**
+   * Initializes the signed jar cache if a cache directory is configured and
+   * a cache was not provided during configuration.
+   * @return The cache, or null if jars should not be cached
+   */
+  SigningCache configureSigningCache() {
+    if (null == signingCache && null != signingCacheDir)
+      signingCache = new SigningCache(asFile(signingCacheDir), signingCacheMaxBytes)
+    if (null != signingCache && null == certificateFingerprint)
+      certificateFingerprint = unlockCredentials().fingerprint
+    signingCache
+  }
+
+  /**
+   * Unlocks the configured signing key through the shared credential
+   * service.
+   * @return The credentials
+   */
+  protected SigningCredentials unlockCredentials() {
+    credentialService.get().unlock(
+      asFile(signingStore), signingStorePassword, signingAlias, signingKeyPassword)
+  }
+
+  /**
+   * Logs the signed jar cache statistics, if the cache is used.
+   */
+  protected void reportSigningCache() {
+    if (null != signingCache)
+      logger.lifecycle(
+        "Signed jar cache: ${signingCache.hits} hit(s), ${signingCache.misses} miss(es)")
+  }
+
   /**
    * Locates the Java home directory. This is normally accessed using the
    * <code>java.home</code> system property but if the
@@ -19,22 +19,21 @@ package com.brambolt.util.jar
 import java.nio.file.FileSystem
 import java.nio.file.Files
 
-import static com.brambolt.nio.file.ZipFileSystems.unzip
-
 /**
  * Removes signing data from a jar file.
  */
 class RemoveSigningData {
 
   /**
-   * Removes signing data from the parameter jar file.
+   * Removes signing data from the parameter jar file. The jar is rewritten
+   * without a zip file system, so the remaining entries are copied without
+   * being decompressed and compressed again.
    * @param file The jar file to remove signing data from
    * @return The same jar file with signing data removed
    * @throws IOException If unable to process the jar
    */
   File apply(File file) throws IOException {
-    FileSystem fs = unzip(file)
-    try { apply(fs) } finally { if (null != fs) fs.close() }
+    new RewriteJar(true, null).apply(file)
     return file
   }
 
@@ -46,9 +45,7 @@ class RemoveSigningData {
    */
   FileSystem apply(FileSystem fs) {
     Files.walk(fs.getPath('META-INF'))
-      .filter({
-        String baseName = it.fileName.toString()
-        baseName.endsWith('.RSA') || baseName.endsWith('.SF')})
+      .filter({ Files.isRegularFile(it) && RewriteJar.isSigningData(it.toString()) })
       .forEach({ Files.delete(it) })
     fs
   }
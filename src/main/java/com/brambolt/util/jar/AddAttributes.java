@@ -16,14 +16,15 @@
 
 package com.brambolt.util.jar;
 
-import java.util.ArrayList;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.List;
 import java.util.stream.Collectors;
 
-import static com.brambolt.util.jar.Manifests.isManifestVersion;
-import static com.brambolt.util.jar.Manifests.isSignatureVersion;
-
 public class AddAttributes implements Manifests {
 
     /**
@@ -72,6 +73,38 @@ public class AddAttributes implements Manifests {
         return null != attribute && attribute.contains(": ");
     }
 
+    /**
+     * Adds the attributes to the manifest of the parameter jar file system.
+     * @param fs The jar file system to modify
+     * @throws IOException If unable to read or write the manifest
+     */
+    @Override
+    public void apply(FileSystem fs) throws IOException {
+        apply(fs.getPath(JarManifest.PATH));
+    }
+
+    /**
+     * Adds the attributes to the parameter manifest file. The file is only
+     * written if an attribute was added.
+     * @param path The manifest file to modify
+     * @throws IOException If unable to read or write the manifest
+     */
+    @Override
+    public void apply(Path path) throws IOException {
+        JarManifest manifest = JarManifest.parse(Files.readAllBytes(path));
+        if (apply(manifest))
+            Files.write(path, manifest.toBytes());
+    }
+
+    /**
+     * Adds the attributes to the main section of the parameter manifest.
+     * @param manifest The manifest to add to
+     * @return True if and only if an attribute was added
+     */
+    public boolean apply(JarManifest manifest) {
+        return manifest.addMainAttributes(attributes);
+    }
+
     /**
      * Inserts the attributes into the manifest lines. The attributes will be
      * added after the <code>Manifest-Version</code> and
@@ -84,36 +117,38 @@ public class AddAttributes implements Manifests {
             return lines;
         if (null == lines || lines.isEmpty())
             return lines;
-        List<String> missing = attributes.stream()
-            .filter(attribute -> !hasAttribute(lines, attribute))
-            .collect(Collectors.toList());
-        if (missing.isEmpty())
+        JarManifest manifest = JarManifest.parse(toBytes(lines));
+        if (!apply(manifest))
             return lines;
-        int index = 0;
-        if (isManifestVersion(lines.get(index)))
-            ++index;
-        if (isSignatureVersion(lines.get(index)))
-            ++index;
-        List<String> result = new ArrayList<>(lines.subList(0, index));
-        result.addAll(missing);
-        result.addAll(lines.subList(index, lines.size()));
-        return result;
+        return Arrays.asList(
+            new String(manifest.toBytes(), StandardCharsets.UTF_8).split("\r?\n"));
     }
 
     /**
-     * Checks whether the parameter attribute appears in the parameter manifest
-     * lines. Only the attribute name is checked. The attribute parameter can
-     * be provided as an attribute name or a name-value pair. In the latter
-     * case everything following the colon will be ignored when the check is
-     * carried out.
+     * Checks whether the parameter attribute appears in the main section of
+     * the parameter manifest lines. Only the attribute name is checked, and
+     * case is ignored. The attribute parameter can be provided as an
+     * attribute name or a name-value pair. In the latter case everything
+     * following the colon will be ignored when the check is carried out.
      * @param lines The manifest lines to check
      * @param attribute The attribute to check for
      * @return True if and only if the manifest includes the attribute
      */
     public boolean hasAttribute(List<String> lines, String attribute) {
-        String attributeName = attribute.substring(0, attribute.indexOf(":"));
-        return lines.stream().anyMatch(l ->
-            l.trim().toLowerCase().startsWith(attributeName.toLowerCase()));
+        return JarManifest.parse(toBytes(lines)).hasMainAttribute(getName(attribute));
     }
 
+    /**
+     * Extracts the attribute name from an attribute or a name-value pair.
+     * @param attribute The attribute name, or a name-value pair
+     * @return The attribute name
+     */
+    static String getName(String attribute) {
+        int colon = attribute.indexOf(':');
+        return (colon < 0 ? attribute : attribute.substring(0, colon)).trim();
+    }
+
+    static byte[] toBytes(List<String> lines) {
+        return (String.join("\r\n", lines) + "\r\n").getBytes(StandardCharsets.UTF_8);
+    }
 }
@@ -20,13 +20,11 @@ import org.gradle.api.GradleException;
 
 import java.io.IOException;
 import java.nio.file.FileSystem;
+import java.nio.file.Files;
 import java.util.Arrays;
 import java.util.List;
 import java.util.stream.Collectors;
 
-import static com.brambolt.util.jar.Manifests.hasAttribute;
-import static com.brambolt.util.jar.Manifests.readAllLines;
-
 /**
  * Checks whether a manifest contains the provided attributes.
  */
@@ -71,7 +69,7 @@ public class CheckAttributes implements Manifests {
      * @throws IOException If unable to check the manifest
      */
     public void throwIf(FileSystem fs) throws GradleException, IOException {
-        throwIf(readAllLines(fs));
+        throwIf(JarManifest.parse(Files.readAllBytes(fs.getPath(JarManifest.PATH))));
     }
 
 
@@ -81,12 +79,31 @@ public class CheckAttributes implements Manifests {
      * @throws IllegalStateException If one or more attributes are missing
      */
     public void throwIf(List<String> lines) throws IllegalStateException {
-        List<String> missing = attributes.stream()
-            .filter(a -> !hasAttribute(lines, a))
-            .collect(Collectors.toList());
+        throwIf(JarManifest.parse(AddAttributes.toBytes(lines)));
+    }
+
+    /**
+     * Checks whether the main section of the parameter manifest has the
+     * attributes. Only attribute names are checked, and case is ignored.
+     * @param manifest The jar manifest to check
+     * @throws IllegalStateException If one or more attributes are missing
+     */
+    public void throwIf(JarManifest manifest) throws IllegalStateException {
+        List<String> missing = findMissing(manifest);
         if (!missing.isEmpty())
             throw new IllegalStateException(
                 String.format("Missing attribute: %s", String.join(" ", missing)));
     }
-}
 
+    /**
+     * Finds the attributes missing from the main section of the parameter
+     * manifest.
+     * @param manifest The jar manifest to check
+     * @return The missing attributes, in order, or an empty list
+     */
+    public List<String> findMissing(JarManifest manifest) {
+        return attributes.stream()
+            .filter(a -> !manifest.hasMainAttribute(AddAttributes.getName(a)))
+            .collect(Collectors.toList());
+    }
+}
@@ -18,11 +18,16 @@ package com.brambolt.util.jar;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
-
-import static com.brambolt.nio.file.ZipFileSystems.unzip;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
 
 public class CheckJar {
 
@@ -30,6 +35,12 @@ public class CheckJar {
 
     private final List<String> attributes;
 
+    private VerificationCache cache;
+
+    private boolean verify = false;
+
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+
     public CheckJar(String signatureFileNamePrefix) {
         this(signatureFileNamePrefix, Collections.emptyList());
     }
@@ -43,9 +54,67 @@ public class CheckJar {
         this.attributes = attributes;
     }
 
+    /**
+     * Sets the verification cache. Jar files that passed before with the same
+     * parameters are not opened, and jar files that pass are added.
+     * @param cache The verification cache, or null for no caching
+     * @return This check
+     */
+    public CheckJar setCache(VerificationCache cache) {
+        this.cache = cache;
+        return this;
+    }
+
+    /**
+     * Sets whether signatures are verified. The signature block is then
+     * checked against the <code>.SF</code> file, the <code>.SF</code> file
+     * against the manifest and every entry digest against the manifest.
+     * @param verify Whether to verify signatures
+     * @return This check
+     */
+    public CheckJar setVerify(boolean verify) {
+        this.verify = verify;
+        return this;
+    }
+
+    /**
+     * Sets the pool entry digests are computed on when verifying.
+     * @param pool The fork/join pool, defaults to the common pool
+     * @return This check
+     */
+    public CheckJar setPool(ForkJoinPool pool) {
+        this.pool = pool;
+        return this;
+    }
+
+    /**
+     * @return True if and only if signatures are verified
+     */
+    public boolean isVerify() {
+        return verify;
+    }
+
+    /**
+     * Checks the parameter jar file. The file is memory-mapped, and only the
+     * central directory, the manifest and the <code>META-INF</code> entry
+     * names are read. If a verification cache is set and the jar passed
+     * before, the jar is only digested.
+     * @param file The jar file to check
+     * @return The jar file, if checking succeeds
+     * @throws IllegalStateException If signing data or attributes are missing
+     * @throws IOException If unable to read the jar
+     */
     public File apply(File file) throws IOException {
-      try (FileSystem fs = unzip(file)) { apply(fs); }
-      return file;
+        String key = null;
+        if (null != cache) {
+            key = cache.key(file, signatureFileNamePrefix, attributes, verify);
+            if (cache.contains(key))
+                return file;
+        }
+        try (ZipArchive jar = ZipArchive.map(file)) { apply(jar); }
+        if (null != key)
+            cache.add(key);
+        return file;
     }
 
     public FileSystem apply(FileSystem fs) throws IOException {
@@ -53,6 +122,87 @@ public class CheckJar {
         return fs;
     }
 
+    /**
+     * Checks the parameter jar. Only the central directory and the manifest
+     * are read, so the jar can be checked without being extracted.
+     * @param jar The jar to check
+     * @return The jar, if checking succeeds
+     * @throws IllegalStateException If signing data or attributes are missing
+     * @throws IOException If unable to read the manifest
+     */
+    public ZipArchive apply(ZipArchive jar) throws IOException {
+        check(jar);
+        return jar;
+    }
+
+    public void check(ZipArchive jar) throws IOException {
+        checkAttributes(jar);
+        checkSigning(jar);
+    }
+
+    public void checkAttributes(ZipArchive jar) throws IOException {
+        if (attributes.isEmpty())
+            return; // Nothing to do
+        JarManifest manifest = readManifest(jar);
+        for (String attribute: attributes)
+            new CheckAttributes(attribute).throwIf(manifest);
+    }
+
+    public void checkSigning(ZipArchive jar) throws IOException {
+        if (null != signatureFileNamePrefix && !signatureFileNamePrefix.isEmpty())
+            new CheckSigningData(signatureFileNamePrefix).apply(jar);
+        if (verify)
+            new VerifySigningData(signatureFileNamePrefix, pool).apply(jar);
+    }
+
+    /**
+     * Checks the parameter jar and adds every problem found to the report,
+     * instead of failing at the first. Signatures are only verified if the
+     * signing data is as expected.
+     * @param jar The jar to check
+     * @param name The jar name to report problems for
+     * @param report The report to add to
+     * @return True if and only if no problem was found
+     * @throws IOException If unable to read the jar
+     */
+    public boolean collect(ZipArchive jar, String name, CheckReport report) throws IOException {
+        boolean passed = true;
+        if (!attributes.isEmpty()) {
+            List<String> missing = new CheckAttributes(attributes).findMissing(readManifest(jar));
+            for (String attribute: missing)
+                report.add(name, CheckReport.Kind.MISSING_ATTRIBUTE,
+                    String.format("Missing attribute: %s", attribute));
+            passed = missing.isEmpty();
+        }
+        boolean signed = null == signatureFileNamePrefix || signatureFileNamePrefix.isEmpty() ||
+            new CheckSigningData(signatureFileNamePrefix).collect(jar, name, report);
+        passed = passed && signed;
+        if (verify && signed)
+            try {
+                new VerifySigningData(signatureFileNamePrefix, pool).apply(jar);
+            } catch (IllegalStateException x) {
+                report.add(name, CheckReport.Kind.INVALID_SIGNATURE, x.getMessage());
+                passed = false;
+            }
+        return passed;
+    }
+
+    /**
+     * Reads the main section of the jar manifest. The entry sections are not
+     * read, so the heap use does not depend on the number of entries.
+     * @param jar The jar
+     * @return The manifest main section, or an empty manifest
+     * @throws IOException If unable to read the manifest
+     */
+    static JarManifest readManifest(ZipArchive jar) throws IOException {
+        ZipArchive.Entry manifest = jar.getEntry(JarManifest.PATH);
+        if (null == manifest)
+            return JarManifest.parse(new byte[0]);
+        try (ManifestReader reader = new ManifestReader(jar.getInputStream(manifest))) {
+            return JarManifest.parse(reader.readMain());
+        }
+    }
+
     public void check(FileSystem fs) throws IOException {
         checkAttributes(fs);
         checkSigning(fs);
@@ -66,5 +216,41 @@ public class CheckJar {
     public void checkSigning(FileSystem fs) throws IOException {
         if (null != signatureFileNamePrefix && !signatureFileNamePrefix.isEmpty())
             new CheckSigningData(signatureFileNamePrefix).apply(fs);
+        if (verify)
+            verify(fs);
+    }
+
+    /**
+     * Verifies the signatures in the parameter file system. Signatures are
+     * verified through <code>ZipArchive</code>, so the entries are copied to
+     * a temporary archive first, without compression; the digests only
+     * depend on the entry data. The copy is read with positional reads
+     * rather than mapped, so it can be deleted on every platform.
+     * @param fs The jar file system
+     * @throws IllegalStateException If a signature does not verify
+     * @throws IOException If unable to read the file system
+     */
+    private void verify(FileSystem fs) throws IOException {
+        File file = File.createTempFile("verify", ".jar");
+        try {
+            try (ZipWriter writer = new ZipWriter(file).setLevel(Deflater.NO_COMPRESSION)) {
+                for (Path root: fs.getRootDirectories())
+                    try (Stream<Path> walk = Files.walk(root)) {
+                        Iterator<Path> paths = walk.filter(Files::isRegularFile).sorted().iterator();
+                        while (paths.hasNext()) {
+                            Path path = paths.next();
+                            try (OutputStream out = writer.open(root.relativize(path).toString(),
+                                Files.getLastModifiedTime(path).toMillis())) {
+                                Files.copy(path, out);
+                            }
+                        }
+                    }
+            }
+            try (ZipArchive jar = new ZipArchive(file)) {
+                new VerifySigningData(signatureFileNamePrefix, pool).apply(jar);
+            }
+        } finally {
+            Files.deleteIfExists(file.toPath());
+        }
     }
 }
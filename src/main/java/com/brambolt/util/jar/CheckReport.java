@@ -0,0 +1,215 @@
+/*
+ * Copyright 2017-2020 Brambolt ehf.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brambolt.util.jar;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * <p>The problems found when checking jars, by jar. Checks running in
+ * parallel add to the same report; the problems are listed sorted by jar
+ * name, and in the order they were found within each jar, so the report
+ * does not depend on the scheduling.</p>
+ */
+public class CheckReport {
+
+    /**
+     * The kinds of problem a check can find.
+     */
+    public enum Kind {
+
+        /**
+         * A manifest attribute is missing.
+         */
+        MISSING_ATTRIBUTE,
+
+        /**
+         * The <code>.SF</code> file with the expected prefix is missing.
+         */
+        MISSING_SIGNATURE_FILE,
+
+        /**
+         * The <code>.RSA</code> file with the expected prefix is missing.
+         */
+        MISSING_SIGNATURE_BLOCK,
+
+        /**
+         * Signing data with another prefix was found.
+         */
+        UNEXPECTED_SIGNING_DATA,
+
+        /**
+         * There is more than one <code>.SF</code> or <code>.RSA</code> file
+         * with the expected prefix.
+         */
+        DUPLICATE_SIGNERS,
+
+        /**
+         * Signature verification failed.
+         */
+        INVALID_SIGNATURE,
+
+        /**
+         * The jar could not be read.
+         */
+        UNREADABLE
+    }
+
+    /**
+     * A problem found in a jar.
+     */
+    public static final class Problem {
+
+        public final String jar;
+
+        public final Kind kind;
+
+        public final String message;
+
+        Problem(String jar, Kind kind, String message) {
+            this.jar = jar;
+            this.kind = kind;
+            this.message = message;
+        }
+
+        @Override
+        public String toString() {
+            return jar + ": " + message;
+        }
+    }
+
+    /**
+     * Thrown when a check finds problems. The message is the problem message
+     * if there is only one, so single failures read as they always did.
+     */
+    public static class CheckException extends IllegalStateException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient CheckReport report;
+
+        CheckException(CheckReport report) {
+            super(report.format());
+            this.report = report;
+        }
+
+        /**
+         * @return The report with every problem found, or null if the
+         *  exception was deserialized
+         */
+        public CheckReport getReport() {
+            return report;
+        }
+    }
+
+    private final List<Problem> problems = new ArrayList<>();
+
+    private int checked = 0;
+
+    private boolean stopped = false;
+
+    /**
+     * Adds a problem.
+     * @param jar The jar name
+     * @param kind The kind of problem
+     * @param message The problem message
+     */
+    public synchronized void add(String jar, Kind kind, String message) {
+        problems.add(new Problem(jar, kind, message));
+    }
+
+    /**
+     * Records that a jar was checked, with or without problems.
+     */
+    synchronized void addChecked() {
+        ++checked;
+    }
+
+    /**
+     * Records that checking stopped at the first failure, so jars may not
+     * have been checked.
+     */
+    synchronized void setStopped() {
+        stopped = true;
+    }
+
+    /**
+     * @return The problems, sorted by jar
+     */
+    public synchronized List<Problem> getProblems() {
+        List<Problem> sorted = new ArrayList<>(problems);
+        sorted.sort(Comparator.comparing(problem -> problem.jar)); // Stable
+        return Collections.unmodifiableList(sorted);
+    }
+
+    /**
+     * @return The names of the jars with problems, sorted
+     */
+    public List<String> getFailedJars() {
+        return getProblems().stream().map(problem -> problem.jar)
+            .distinct().collect(Collectors.toList());
+    }
+
+    /**
+     * @return The number of jars checked
+     */
+    public synchronized int getChecked() {
+        return checked;
+    }
+
+    /**
+     * @return True if and only if checking stopped at the first failure
+     */
+    public synchronized boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * @return True if and only if no problem was found
+     */
+    public synchronized boolean isEmpty() {
+        return problems.isEmpty();
+    }
+
+    /**
+     * Formats the report. A single problem is formatted as its message.
+     * @return The report, or an empty string if there are no problems
+     */
+    public String format() {
+        List<Problem> sorted = getProblems();
+        if (sorted.isEmpty())
+            return "";
+        if (1 == sorted.size() && !isStopped())
+            return sorted.get(0).message;
+        return String.format("Found %d problem(s) in %d jar(s)%s:\n\t%s",
+            sorted.size(), getFailedJars().size(),
+            isStopped() ? ", stopped at the first failure" : "",
+            sorted.stream().map(Problem::toString).collect(Collectors.joining("\n\t")));
+    }
+
+    /**
+     * Throws if any problem was found.
+     * @throws CheckException If the report has problems
+     */
+    public void throwIfFailed() {
+        if (!isEmpty())
+            throw new CheckException(this);
+    }
+}
@@ -20,6 +20,9 @@ import java.io.IOException;
 import java.nio.file.FileSystem;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
 
 /**
  * Validates that a jar has expected signing data.
@@ -40,19 +43,6 @@ class CheckSigningData {
     this.signatureFileNamePrefix = signatureFileNamePrefix;
   }
 
-  static class Results {
-    final String foundChecksums; // The .SF file
-    final String foundSignatureBlockFile; // The .RSA file
-    Results() { this(null, null); }
-    Results(String foundChecksums, String foundSignatureBlockFile) {
-      this.foundChecksums = foundChecksums;
-      this.foundSignatureBlockFile = foundSignatureBlockFile;
-    }
-    static Results combine(Results r, Path p) {
-      return r;
-    }
-  }
-
   /**
    * Checks that the parameter jar file system has the expected signing data.
    * @param fs The jar file system to check
@@ -60,52 +50,108 @@ class CheckSigningData {
    * @throws IOException If unable to carry out the checks
    */
   FileSystem apply(FileSystem fs) throws IOException {
-    Results results = Files.walk(fs.getPath("META-INF"))
-      .filter((Path path) -> {
-        String baseName = path.getFileName().toString();
-        return baseName.endsWith(".RSA") || baseName.endsWith(".SF");
-      })
-      .reduce(new Results(), (Results r, Path p) -> {
-        String baseName = p.getFileName().toString();
-        if (baseName.endsWith(signatureFileNamePrefix + ".RSA"))
-          if (null == r.foundSignatureBlockFile)
-            return new Results(r.foundChecksums, baseName);
-          else return throwTwoSignatureBlockFiles(r, baseName, p);
-        else if (baseName.endsWith(signatureFileNamePrefix + ".SF"))
-          if (null == r.foundChecksums)
-            return new Results(r.foundSignatureBlockFile, baseName);
-          else return throwTwoChecksumFiles(r, baseName, p);
-        else return throwUnexpected(baseName);
-      }, (p, c) -> c);
-    if (null == results.foundSignatureBlockFile ||
-        results.foundSignatureBlockFile.isEmpty())
-      throw new IllegalStateException(
-          String.format("Missing %s.RSA", signatureFileNamePrefix));
-    if (null == results.foundChecksums || results.foundChecksums.isEmpty())
-      throw new IllegalStateException(
-          String.format("Missing %s.SF", signatureFileNamePrefix));
+    try (Stream<Path> paths = Files.walk(fs.getPath("META-INF"))) {
+      check(paths.map(path -> path.getFileName().toString()));
+    }
     return fs;
   }
 
-  private Results throwTwoChecksumFiles(Results results, String second, Path path) {
-    return throwWhen("Found two checksum files",
-        results.foundChecksums, second, path);
+  /**
+   * Checks that the parameter jar has the expected signing data.
+   * @param jar The jar to check
+   * @return The jar, if checking succeeds
+   */
+  ZipArchive apply(ZipArchive jar) {
+    check(getBaseNames(jar));
+    return jar;
+  }
+
+  /**
+   * Adds every problem with the signing data of the parameter jar to the
+   * report, instead of failing at the first.
+   * @param jar The jar to check
+   * @param name The jar name to report problems for
+   * @param report The report to add to
+   * @return True if and only if no problem was found
+   */
+  boolean collect(ZipArchive jar, String name, CheckReport report) {
+    List<CheckReport.Problem> problems = check(jar);
+    for (CheckReport.Problem problem: problems)
+      report.add(name, problem.kind, problem.message);
+    return problems.isEmpty();
+  }
+
+  /**
+   * Finds the problems with the signing data of the parameter jar.
+   * @param jar The jar to check
+   * @return The problems, without a jar name, or an empty list
+   */
+  List<CheckReport.Problem> check(ZipArchive jar) {
+    return findProblems(getBaseNames(jar));
+  }
+
+  private static Stream<String> getBaseNames(ZipArchive jar) {
+    return jar.getEntries("META-INF/").stream()
+      .map(entry -> entry.name)
+      .filter(name -> !name.endsWith("/"))
+      .map(name -> name.substring(name.lastIndexOf('/') + 1));
+  }
+
+  /**
+   * Checks the parameter base names of the files in the jar
+   * <code>META-INF</code> directory.
+   * @param baseNames The file names to check
+   * @throws IllegalStateException If the signing data is not as expected
+   */
+  private void check(Stream<String> baseNames) {
+    List<CheckReport.Problem> problems = findProblems(baseNames);
+    if (!problems.isEmpty())
+      throw new IllegalStateException(problems.get(0).message);
   }
 
-  private Results throwTwoSignatureBlockFiles(Results results, String second, Path path) {
-    return throwWhen("Found two signature block files",
-        results.foundSignatureBlockFile, second, path);
+  /**
+   * Finds the problems with the signing data, in the order the files are
+   * listed, followed by any missing file. A jar with neither file is only
+   * reported as missing the <code>.RSA</code> file.
+   * @param baseNames The file names to check
+   * @return The problems, without a jar name
+   */
+  private List<CheckReport.Problem> findProblems(Stream<String> baseNames) {
+    List<CheckReport.Problem> problems = new ArrayList<>();
+    String checksums = null; // The .SF file
+    String signatureBlockFile = null; // The .RSA, .DSA or .EC file
+    for (String baseName: (Iterable<String>) baseNames::iterator) {
+      if (isBlock(baseName, signatureFileNamePrefix)) {
+        if (null == signatureBlockFile)
+          signatureBlockFile = baseName;
+        else problems.add(problem(CheckReport.Kind.DUPLICATE_SIGNERS, String.format(
+          "Found two signature block files: %s %s", signatureBlockFile, baseName)));
+      } else if (baseName.endsWith(signatureFileNamePrefix + ".SF")) {
+        if (null == checksums)
+          checksums = baseName;
+        else problems.add(problem(CheckReport.Kind.DUPLICATE_SIGNERS, String.format(
+          "Found two checksum files: %s %s", checksums, baseName)));
+      } else if (isBlock(baseName, "") || baseName.endsWith(".SF"))
+        problems.add(problem(CheckReport.Kind.UNEXPECTED_SIGNING_DATA, String.format(
+          "Unexpected signing data '%s' found", baseName)));
+    }
+    if (null == signatureBlockFile)
+      problems.add(problem(CheckReport.Kind.MISSING_SIGNATURE_BLOCK,
+        String.format("Missing %s.RSA", signatureFileNamePrefix)));
+    if (null == checksums && null != signatureBlockFile) // An unsigned jar is reported once
+      problems.add(problem(CheckReport.Kind.MISSING_SIGNATURE_FILE,
+        String.format("Missing %s.SF", signatureFileNamePrefix)));
+    return problems;
   }
 
-  private Results throwWhen(String message, String first, String second, Path path) {
-    throw new IllegalStateException(
-        String.format(
-            "%s: %s %s in %s",
-            message, first, second, path));
+  private static boolean isBlock(String baseName, String prefix) {
+    for (String extension: VerifySigningData.BLOCK_EXTENSIONS)
+      if (baseName.endsWith(prefix + extension))
+        return true;
+    return false;
   }
 
-  private Results throwUnexpected(String baseName) {
-    throw new IllegalStateException(
-        String.format("Unexpected signing data '%s' found", baseName));
+  private static CheckReport.Problem problem(CheckReport.Kind kind, String message) {
+    return new CheckReport.Problem(null, kind, message);
   }
 }
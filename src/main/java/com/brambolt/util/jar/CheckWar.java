@@ -16,21 +16,26 @@
 
 package com.brambolt.util.jar;
 
-import org.apache.tools.ant.taskdefs.Delete;
-import org.apache.tools.ant.taskdefs.Expand;
-
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.FileSystem;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-
-import static com.brambolt.nio.file.ZipFileSystems.unzip;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * Checks that a WAR file has expected signing data and manifest attributes.
+ * <p>Checks that a WAR file has expected signing data and manifest
+ * attributes.</p>
+ *
+ * <p>The application jars are checked in parallel on the fork/join pool, and
+ * every problem in every jar is collected into one <code>CheckReport</code>.
+ * In fail-fast mode the jars not yet started are skipped as soon as a
+ * problem is found.</p>
  */
 public class CheckWar {
 
@@ -39,6 +44,19 @@ public class CheckWar {
      */
     private final CheckJar check;
 
+    private final String signatureFileNamePrefix;
+
+    private final List<String> attributes;
+
+    /**
+     * The verification cache, or null.
+     */
+    private VerificationCache cache;
+
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+    private boolean failFast = false;
+
     /**
      * Constructor. No attributes will be checked.
      * @param signatureFileNamePrefix The file name prefix to check for
@@ -62,60 +80,180 @@ public class CheckWar {
      */
     public CheckWar(String signatureFileNamePrefix, List<String> attributes) {
         this.check = new CheckJar(signatureFileNamePrefix, attributes);
+        this.signatureFileNamePrefix = signatureFileNamePrefix;
+        this.attributes = attributes;
     }
 
     /**
-     * Checks the parameter WAR file.
+     * Sets the verification cache. Application jars that passed before with
+     * the same parameters are skipped, and jars that pass are added.
+     * @param cache The verification cache, or null for no caching
+     * @return This check
+     */
+    public CheckWar setCache(VerificationCache cache) {
+        this.cache = cache;
+        return this;
+    }
+
+    /**
+     * Sets whether the signatures of the application jars are verified.
+     * @param verify Whether to verify signatures
+     * @return This check
+     * @see CheckJar#setVerify(boolean)
+     */
+    public CheckWar setVerify(boolean verify) {
+        check.setVerify(verify);
+        return this;
+    }
+
+    /**
+     * Sets the pool the application jars are checked on, and entry digests
+     * are computed on when verifying.
+     * @param pool The fork/join pool, defaults to the common pool
+     * @return This check
+     */
+    public CheckWar setPool(ForkJoinPool pool) {
+        this.pool = pool;
+        check.setPool(pool);
+        return this;
+    }
+
+    /**
+     * Sets whether checking stops at the first problem. The jars already
+     * being checked are completed, and the rest are skipped.
+     * @param failFast Whether to stop at the first problem
+     * @return This check
+     */
+    public CheckWar setFailFast(boolean failFast) {
+        this.failFast = failFast;
+        return this;
+    }
+
+    /**
+     * Checks the parameter WAR file. The WAR file is memory-mapped. Stored
+     * application jars are checked in place in the mapping; compressed jars
+     * are read into memory, one per pool thread. Nothing is extracted to disk.
      * @param warFile The WAR file to check
      * @return The WAR file, if checking succeeded
-     * @throws IllegalStateException If signing data or attributes are missing
+     * @throws CheckReport.CheckException If signing data or attributes are
+     *  missing, with the report of every problem
      * @throws IOException If unable to check
      */
     public File apply(File warFile) throws IOException {
-        File tmpDir = null;
-        try {
-            tmpDir = expand(warFile);
-            Files.walk(new File(tmpDir, "application-jars").toPath())
-                .map(Path::toFile)
-                .filter(file -> file.getName().endsWith(".jar"))
-                .forEach(this::checkJarFile);
-        } finally {
-            delete(tmpDir);
-        }
+        return apply(warFile, new Metrics());
+    }
+
+    /**
+     * Checks the parameter WAR file, recording the time spent reading and
+     * checking each application jar.
+     * @param warFile The WAR file to check
+     * @param metrics The metrics to record in
+     * @return The WAR file, if checking succeeded
+     * @throws CheckReport.CheckException If any problem is found, with the
+     *  report of every problem
+     * @throws IOException If unable to read the WAR file
+     */
+    public File apply(File warFile, Metrics metrics) throws IOException {
+        check(warFile, metrics).throwIfFailed();
         return warFile;
     }
 
-    private File expand(File warFile) throws IOException {
-        File tmpDir = Files.createTempDirectory(warFile.getName()).toFile();
-        Expand expand = new Expand();
-        expand.setSrc(warFile);
-        expand.setDest(tmpDir);
-        expand.execute();
-        return tmpDir;
+    /**
+     * Checks every application jar in the parameter WAR file in parallel,
+     * and reports the problems instead of throwing.
+     * @param warFile The WAR file to check
+     * @param metrics The metrics to record in
+     * @return The report, empty if every jar passed
+     * @throws IOException If unable to read the WAR file
+     */
+    public CheckReport check(File warFile, Metrics metrics) throws IOException {
+        CheckReport report = new CheckReport();
+        AtomicBoolean stop = new AtomicBoolean(false);
+        try (ZipArchive war = ZipArchive.map(warFile)) {
+            List<ForkJoinTask<?>> tasks = new ArrayList<>();
+            for (ZipArchive.Entry entry: war.getEntries())
+                if (isApplicationJar(entry))
+                    tasks.add(pool.submit(() -> checkJar(war, entry, metrics, report, stop)));
+            for (ForkJoinTask<?> task: tasks)
+                task.quietlyJoin(); // Never cancelled, the mapping is open until all are done
+        }
+        return report;
     }
 
-    private void delete(File tmpDir) {
-        if (null == tmpDir || !tmpDir.exists() || !tmpDir.isDirectory())
-            return; // Nothing to do
-        Delete delete = new Delete();
-        delete.setDir(tmpDir);
-        delete.execute();
+    private boolean isApplicationJar(ZipArchive.Entry entry) {
+        return !entry.isDirectory() &&
+            entry.name.startsWith("application-jars/") &&
+            entry.name.endsWith(".jar");
     }
 
-    private void checkJarFile(File jarFile) {
-        try (FileSystem jarFs = unzip(jarFile)) {
-            check.apply(jarFs);
-        } catch (IOException x) {
-            throw new RuntimeException(x);
+    private void checkJar(ZipArchive war, ZipArchive.Entry entry, Metrics metrics,
+                          CheckReport report, AtomicBoolean stop) {
+        if (stop.get()) {
+            report.setStopped();
+            return; // Fail fast
+        }
+        boolean passed;
+        try {
+            passed = checkJar(war, entry, metrics, report);
+        } catch (IOException | RuntimeException x) {
+            report.add(entry.name, CheckReport.Kind.UNREADABLE,
+                null != x.getMessage() ? x.getMessage() : x.getClass().getName());
+            passed = false;
         }
+        report.addChecked();
+        if (!passed && failFast)
+            stop.set(true);
     }
 
-    private FileSystem apply(FileSystem fs) throws IOException {
-        check(fs);
-        return fs;
+    private boolean checkJar(ZipArchive war, ZipArchive.Entry entry, Metrics metrics,
+                             CheckReport report) throws IOException {
+        long jarStart = metrics.start();
+        String key = null;
+        if (null != cache) {
+            key = cache.key(war, entry, signatureFileNamePrefix, attributes, check.isVerify());
+            if (cache.contains(key)) {
+                metrics.record("cached", jarStart, entry.size);
+                return true;
+            }
+        }
+        ByteBuffer bytes = read(war, entry);
+        metrics.record("read", jarStart, entry.size);
+        long start = metrics.start();
+        boolean passed;
+        try (ZipArchive jar = new ZipArchive(entry.name, bytes)) {
+            passed = check.collect(jar, entry.name, report);
+        }
+        metrics.record("check", start, entry.size);
+        if (passed && null != key)
+            cache.add(key);
+        metrics.recordJar(entry.name, jarStart, entry.size);
+        return passed;
     }
 
-    private void check(FileSystem fs) throws IOException {
-        check.apply(fs);
+    /**
+     * Reads a nested jar into memory, unless it is stored and can be read in
+     * place.
+     * @param war The WAR file
+     * @param entry The jar entry
+     * @return The jar bytes
+     * @throws IOException If unable to read the entry
+     */
+    static ByteBuffer read(ZipArchive war, ZipArchive.Entry entry) throws IOException {
+        ByteBuffer slice = war.slice(entry);
+        if (null != slice)
+            return slice;
+        if (entry.size > Integer.MAX_VALUE)
+            throw new IOException("Nested archive too large: " + entry.name);
+        byte[] bytes = new byte[(int) entry.size];
+        try (InputStream in = war.getInputStream(entry)) {
+            int offset = 0;
+            while (offset < bytes.length) {
+                int n = in.read(bytes, offset, bytes.length - offset);
+                if (n < 0)
+                    throw new EOFException("Unexpected end of " + entry.name);
+                offset += n;
+            }
+        }
+        return ByteBuffer.wrap(bytes);
     }
 }
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2017-2020 Brambolt ehf.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brambolt.util.jar;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import static com.brambolt.util.jar.ZipArchive.DEFLATED;
+import static com.brambolt.util.jar.ZipArchive.STORED;
+
+/**
+ * <p>Chooses how the entries written to a rewritten archive are compressed.
+ * Nested jars are already compressed, so deflating them again costs CPU for
+ * little gain; they can be stored, deflated, or keep the method they had.
+ * Other entries keep their method and are deflated at the configured
+ * level.</p>
+ *
+ * <p>With a parallelism above one, entries are compressed to temporary files
+ * on several threads and then written in archive order, so the output does
+ * not depend on the parallelism.</p>
+ */
+public class Compression {
+
+    /**
+     * The compression of nested jars.
+     */
+    public enum JarMethod {
+
+        /**
+         * Jars keep the method they had, new jars are deflated.
+         */
+        KEEP,
+
+        /**
+         * Jars are stored uncompressed.
+         */
+        STORE,
+
+        /**
+         * Jars are deflated.
+         */
+        DEFLATE;
+
+        /**
+         * Parses a method name, ignoring case.
+         * @param name The name, <code>keep</code>, <code>store</code> or
+         *  <code>deflate</code>
+         * @return The method
+         * @throws IllegalArgumentException If the name is not recognized
+         */
+        public static JarMethod parse(String name) {
+            for (JarMethod method: values())
+                if (method.name().equalsIgnoreCase(name))
+                    return method;
+            throw new IllegalArgumentException(
+                "Unsupported jar compression: " + name + "; use keep, store or deflate");
+        }
+    }
+
+    private JarMethod jarMethod = JarMethod.KEEP;
+
+    private int level = Deflater.DEFAULT_COMPRESSION;
+
+    private int parallelism = 1;
+
+    /**
+     * Sets the compression of nested jars.
+     * @param jarMethod The jar compression, defaults to keeping the method
+     * @return This compression
+     */
+    public Compression setJarMethod(JarMethod jarMethod) {
+        this.jarMethod = jarMethod;
+        return this;
+    }
+
+    /**
+     * Sets the deflate level.
+     * @param level The level, from 0 to 9, or -1 for the default level
+     * @return This compression
+     * @throws IllegalArgumentException If the level is out of range
+     */
+    public Compression setLevel(int level) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+            throw new IllegalArgumentException("Invalid deflate level: " + level);
+        this.level = level;
+        return this;
+    }
+
+    /**
+     * Sets the number of entries compressed at the same time.
+     * @param parallelism The number of threads, 1 to compress while writing
+     * @return This compression
+     */
+    public Compression setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+        return this;
+    }
+
+    /**
+     * @return The compression of nested jars
+     */
+    public JarMethod getJarMethod() {
+        return jarMethod;
+    }
+
+    /**
+     * @return The deflate level
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * @return The number of entries compressed at the same time
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * @return True if and only if entries are compressed ahead of writing
+     */
+    public boolean isParallel() {
+        return parallelism > 1;
+    }
+
+    /**
+     * Chooses the compression method for an entry.
+     * @param name The entry name
+     * @param method The method the entry had, or -1 for a new entry
+     * @return The method to write the entry with
+     */
+    public int getMethod(String name, int method) {
+        int original = STORED == method ? STORED : DEFLATED;
+        if (!isNestedArchive(name))
+            return original;
+        switch (jarMethod) {
+            case STORE: return STORED;
+            case DEFLATE: return DEFLATED;
+            default: return original;
+        }
+    }
+
+    /**
+     * Compresses a file ahead of writing. A stored file is only read for its
+     * checksum and is written from where it is; a deflated file is written to
+     * the target file.
+     * @param content The content to compress
+     * @param method The compression method
+     * @param target The file to write deflated content to
+     * @return The compressed content
+     * @throws IOException If unable to read or write
+     */
+    public ZipWriter.Compressed compress(File content, int method, File target)
+        throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[65536];
+        if (STORED == method) {
+            try (InputStream in = Files.newInputStream(content.toPath())) {
+                for (int n = in.read(buffer); n >= 0; n = in.read(buffer))
+                    crc.update(buffer, 0, n);
+            }
+            return new ZipWriter.Compressed(STORED, crc.getValue(),
+                content.length(), content.length(), content);
+        }
+        long size = 0;
+        Deflater deflater = new Deflater(level, true);
+        try (InputStream in = Files.newInputStream(content.toPath());
+             OutputStream out = new DeflaterOutputStream(
+                 Files.newOutputStream(target.toPath()), deflater, 65536)) {
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                crc.update(buffer, 0, n);
+                out.write(buffer, 0, n);
+                size += n;
+            }
+        } finally {
+            deflater.end();
+        }
+        return new ZipWriter.Compressed(DEFLATED, crc.getValue(), size, target.length(), target);
+    }
+
+    /**
+     * Compresses content held in memory ahead of writing.
+     * @param content The content to compress
+     * @param method The compression method
+     * @return The compressed content
+     * @throws IOException If unable to compress
+     */
+    public ZipWriter.Compressed compress(byte[] content, int method) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(content, 0, content.length);
+        if (STORED == method)
+            return new ZipWriter.Compressed(STORED, crc.getValue(), content.length, content);
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream(content.length / 2 + 64);
+        Deflater deflater = new Deflater(level, true);
+        try (OutputStream out = new DeflaterOutputStream(deflated, deflater, 65536)) {
+            out.write(content);
+        } finally {
+            deflater.end();
+        }
+        return new ZipWriter.Compressed(DEFLATED, crc.getValue(), content.length,
+            deflated.toByteArray());
+    }
+
+    /**
+     * Checks whether an entry is a nested jar, WAR or EAR file.
+     * @param name The entry name
+     * @return True if and only if the entry is a nested archive
+     */
+    static boolean isNestedArchive(String name) {
+        String lower = name.toLowerCase(Locale.ENGLISH);
+        return lower.endsWith(".jar") || lower.endsWith(".war") || lower.endsWith(".ear");
+    }
+}
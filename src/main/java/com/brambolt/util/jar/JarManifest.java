@@ -0,0 +1,521 @@
+/*
+ * Copyright 2017-2020 Brambolt ehf.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brambolt.util.jar;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * <p>A jar manifest split into the main section and the individual entry
+ * sections. The raw bytes of every section are retained, so sections that
+ * are not modified are written back exactly as they were read. This matters
+ * when signing, because the signature files record digests of the raw
+ * manifest sections.</p>
+ *
+ * <p>Only the main section is split off when the manifest is parsed, and the
+ * main attributes are indexed by name, ignoring case. The entry sections are
+ * parsed the first time they are accessed, so looking up main attributes in
+ * the manifest of a signed jar does not touch the digest sections at all.
+ * Continuation lines are joined before attributes are compared.</p>
+ *
+ * <p>Modified and added sections are written with <code>CRLF</code> line
+ * endings and lines wrapped at 72 bytes, like the <code>jarsigner</code>
+ * executable does.</p>
+ */
+public final class JarManifest {
+
+    /**
+     * The manifest file path inside a jar.
+     */
+    public static final String PATH = "META-INF/MANIFEST.MF";
+
+    /**
+     * The maximum length of a manifest line, in bytes.
+     */
+    static final int MAX_LINE_LENGTH = 72;
+
+    private static final byte[] CRLF = { '\r', '\n' };
+
+    /**
+     * An entry section, identified by its <code>Name</code> attribute.
+     */
+    public static final class Section {
+
+        public final String name;
+
+        private byte[] bytes;
+
+        Section(String name, byte[] bytes) {
+            this.name = name;
+            this.bytes = bytes;
+        }
+
+        /**
+         * @return The raw section bytes, including the terminating blank line
+         */
+        public byte[] getBytes() {
+            return bytes;
+        }
+    }
+
+    private byte[] main;
+
+    /**
+     * The main attributes by name, ignoring case. Built on first use.
+     */
+    private Map<String, String> mainAttributes;
+
+    /**
+     * The raw bytes following the main section, until the entry sections are
+     * parsed.
+     */
+    private byte[] pending;
+
+    private final List<Section> sections = new ArrayList<>();
+
+    private final Map<String, Section> index = new HashMap<>();
+
+    private JarManifest(byte[] main, byte[] pending) {
+        this.main = main;
+        this.pending = pending;
+    }
+
+    /**
+     * Creates an empty manifest with only the main section.
+     * @param createdBy The <code>Created-By</code> attribute value
+     * @return The manifest
+     */
+    public static JarManifest create(String createdBy) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeAttribute(out, "Manifest-Version", "1.0");
+        writeAttribute(out, "Created-By", createdBy);
+        out.write(CRLF, 0, CRLF.length);
+        return new JarManifest(out.toByteArray(), null);
+    }
+
+    /**
+     * Parses the parameter manifest bytes. Only the main section is split off;
+     * the entry sections are parsed when first accessed.
+     * @param bytes The manifest bytes to parse
+     * @return The manifest
+     */
+    public static JarManifest parse(byte[] bytes) {
+        int length = bytes.length;
+        boolean content = false;
+        int pos = 0;
+        while (pos < length) {
+            int eol = endOfLine(bytes, pos, length);
+            int next = startOfNextLine(bytes, eol, length);
+            if (eol > pos)
+                content = true;
+            else if (content)
+                return new JarManifest(Arrays.copyOfRange(bytes, 0, next),
+                    next < length ? Arrays.copyOfRange(bytes, next, length) : null);
+            pos = next;
+        }
+        return new JarManifest(Arrays.copyOf(bytes, length), null);
+    }
+
+    /**
+     * Reads and parses a manifest.
+     * @param in The stream to read the manifest from
+     * @return The manifest
+     * @throws IOException If unable to read
+     */
+    public static JarManifest read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int n = in.read(buffer); n >= 0; n = in.read(buffer))
+            out.write(buffer, 0, n);
+        return parse(out.toByteArray());
+    }
+
+    /**
+     * Splits the pending bytes into entry sections, unless already done.
+     */
+    private void parseSections() {
+        if (null == pending)
+            return; // Already parsed
+        byte[] bytes = pending;
+        pending = null;
+        int length = bytes.length;
+        int sectionStart = 0;
+        boolean content = false;
+        int pos = 0;
+        while (pos < length) {
+            int eol = endOfLine(bytes, pos, length);
+            int next = startOfNextLine(bytes, eol, length);
+            if (eol == pos) {
+                if (content) {
+                    add(Arrays.copyOfRange(bytes, sectionStart, next));
+                    sectionStart = next;
+                    content = false;
+                } // Else blank lines preceding a section belong to the section
+            } else content = true;
+            pos = next;
+        }
+        if (sectionStart < length)
+            add(Arrays.copyOfRange(bytes, sectionStart, length));
+    }
+
+    private void add(byte[] bytes) {
+        String name = getAttribute(bytes, "Name");
+        if (null == name) {
+            // Trailing blank lines, or a section without a name; this is kept
+            // with the preceding section so the bytes survive a round trip:
+            if (sections.isEmpty()) {
+                main = concat(main, bytes);
+                mainAttributes = null;
+            } else {
+                Section last = sections.get(sections.size() - 1);
+                last.bytes = concat(last.bytes, bytes);
+            }
+            return;
+        }
+        Section section = new Section(name, bytes);
+        sections.add(section);
+        index.putIfAbsent(name, section);
+    }
+
+    /**
+     * @return The raw main section bytes, including the terminating blank line
+     */
+    public byte[] getMain() {
+        main = terminate(main);
+        return main;
+    }
+
+    /**
+     * Reads a main section attribute. Attribute names are not case-sensitive.
+     * @param attributeName The attribute to read
+     * @return The attribute value, or null if not present
+     */
+    public String getMainAttribute(String attributeName) {
+        return getMainAttributes().get(attributeName);
+    }
+
+    /**
+     * Checks whether the main section has the parameter attribute. Attribute
+     * names are not case-sensitive.
+     * @param attributeName The attribute to check for
+     * @return True if and only if the main section has the attribute
+     */
+    public boolean hasMainAttribute(String attributeName) {
+        return getMainAttributes().containsKey(attributeName);
+    }
+
+    private Map<String, String> getMainAttributes() {
+        if (null == mainAttributes) {
+            Map<String, String> attributes = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            for (String[] attribute: parseAttributes(main))
+                attributes.putIfAbsent(attribute[0], attribute[1]);
+            mainAttributes = attributes;
+        }
+        return mainAttributes;
+    }
+
+    /**
+     * @return The entry sections, in manifest order
+     */
+    public List<Section> getSections() {
+        parseSections();
+        for (Section section: sections)
+            section.bytes = terminate(section.bytes);
+        return Collections.unmodifiableList(sections);
+    }
+
+    /**
+     * Finds the entry section with the parameter name.
+     * @param name The entry name
+     * @return The section, or null if the manifest has no such section
+     */
+    public Section getSection(String name) {
+        parseSections();
+        return index.get(name);
+    }
+
+    /**
+     * Reads an attribute value from the entry section with the parameter
+     * name. Attribute names are not case-sensitive.
+     * @param name The entry name
+     * @param attributeName The attribute to read
+     * @return The attribute value, or null if not present
+     */
+    public String getAttribute(String name, String attributeName) {
+        Section section = getSection(name);
+        return null == section ? null : getAttribute(section.bytes, attributeName);
+    }
+
+    /**
+     * Sets an attribute value in the entry section with the parameter name.
+     * The section is created if it does not exist. If the attribute already
+     * has the value then the section is not modified.
+     * @param name The entry name
+     * @param attributeName The attribute to set
+     * @param value The attribute value
+     */
+    public void putAttribute(String name, String attributeName, String value) {
+        Section section = getSection(name);
+        if (null == section) {
+            section = new Section(name, createSection(name, attributeName, value));
+            sections.add(section);
+            index.put(name, section);
+            return;
+        }
+        section.bytes = putAttribute(section.bytes, attributeName, value);
+    }
+
+    /**
+     * Creates the raw bytes of an entry section with a single attribute.
+     * @param name The entry name
+     * @param attributeName The attribute name
+     * @param value The attribute value
+     * @return The raw section bytes, including the terminating blank line
+     */
+    static byte[] createSection(String name, String attributeName, String value) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeAttribute(out, "Name", name);
+        writeAttribute(out, attributeName, value);
+        out.write(CRLF, 0, CRLF.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * Sets an attribute value in the parameter raw section bytes.
+     * @param bytes The raw section bytes
+     * @param attributeName The attribute to set
+     * @param value The attribute value
+     * @return The same bytes if the attribute already has the value, else
+     *  the rewritten section bytes
+     */
+    static byte[] putAttribute(byte[] bytes, String attributeName, String value) {
+        if (value.equals(getAttribute(bytes, attributeName)))
+            return bytes; // Unchanged, the raw bytes are kept as they are
+        List<String[]> attributes = parseAttributes(bytes);
+        boolean replaced = false;
+        for (String[] attribute: attributes)
+            if (attribute[0].equalsIgnoreCase(attributeName)) {
+                attribute[1] = value;
+                replaced = true;
+            }
+        if (!replaced)
+            attributes.add(new String[] { attributeName, value });
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (String[] attribute: attributes)
+            writeAttribute(out, attribute[0], attribute[1]);
+        out.write(CRLF, 0, CRLF.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * Adds attributes to the main section. Attributes that are already present
+     * are not overwritten. The attributes are inserted after the
+     * <code>Manifest-Version</code> and <code>Signature-Version</code>
+     * attributes, like <code>AddAttributes</code> does.
+     * @param attributes The attributes to add, as <code>Name: value</code>
+     * @return True if and only if any attribute was added
+     * @throws IllegalArgumentException If an attribute is not well-formed
+     */
+    public boolean addMainAttributes(List<String> attributes) {
+        if (null == attributes || attributes.isEmpty())
+            return false; // Nothing to do
+        List<String[]> existing = parseAttributes(main);
+        List<String[]> missing = new ArrayList<>();
+        for (String attribute: attributes) {
+            int colon = null == attribute ? -1 : attribute.indexOf(": ");
+            if (colon <= 0)
+                throw new IllegalArgumentException("Invalid attribute: " + attribute);
+            String name = attribute.substring(0, colon);
+            if (!contains(existing, name) && !contains(missing, name))
+                missing.add(new String[] { name, attribute.substring(colon + 2) });
+        }
+        if (missing.isEmpty())
+            return false; // Unchanged, the raw bytes are kept as they are
+        int index = 0;
+        if (index < existing.size() && existing.get(index)[0].equalsIgnoreCase("Manifest-Version"))
+            ++index;
+        if (index < existing.size() && existing.get(index)[0].equalsIgnoreCase("Signature-Version"))
+            ++index;
+        existing.addAll(index, missing);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (String[] attribute: existing)
+            writeAttribute(out, attribute[0], attribute[1]);
+        out.write(CRLF, 0, CRLF.length);
+        main = out.toByteArray();
+        mainAttributes = null;
+        return true;
+    }
+
+    private static boolean contains(List<String[]> attributes, String attributeName) {
+        for (String[] attribute: attributes)
+            if (attribute[0].equalsIgnoreCase(attributeName))
+                return true;
+        return false;
+    }
+
+    /**
+     * Writes the manifest.
+     * @param out The stream to write to
+     * @throws IOException If unable to write
+     */
+    public void write(OutputStream out) throws IOException {
+        out.write(getMain());
+        if (null != pending)
+            out.write(pending); // The entry sections were never accessed
+        else for (Section section: getSections())
+            out.write(section.bytes);
+    }
+
+    /**
+     * @return The manifest bytes
+     */
+    public byte[] toBytes() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            write(out);
+        } catch (IOException x) {
+            throw new IllegalStateException(x); // Not expected in memory
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Parses the attributes in the parameter section bytes. Continuation
+     * lines are joined.
+     * @param bytes The raw section bytes
+     * @return The attribute name-value pairs, in order
+     */
+    static List<String[]> parseAttributes(byte[] bytes) {
+        List<String[]> attributes = new ArrayList<>();
+        ByteArrayOutputStream logical = null;
+        int length = bytes.length;
+        int pos = 0;
+        while (pos < length) {
+            int eol = endOfLine(bytes, pos, length);
+            if (eol > pos && bytes[pos] == ' ' && null != logical)
+                logical.write(bytes, pos + 1, eol - pos - 1);
+            else {
+                addAttribute(attributes, logical);
+                logical = null;
+                if (eol > pos) {
+                    logical = new ByteArrayOutputStream();
+                    logical.write(bytes, pos, eol - pos);
+                }
+            }
+            pos = startOfNextLine(bytes, eol, length);
+        }
+        addAttribute(attributes, logical);
+        return attributes;
+    }
+
+    private static void addAttribute(List<String[]> attributes, ByteArrayOutputStream logical) {
+        if (null == logical)
+            return;
+        String line = new String(logical.toByteArray(), StandardCharsets.UTF_8);
+        int colon = line.indexOf(": ");
+        if (colon > 0)
+            attributes.add(new String[] {
+                line.substring(0, colon), line.substring(colon + 2) });
+    }
+
+    static String getAttribute(byte[] bytes, String attributeName) {
+        for (String[] attribute: parseAttributes(bytes))
+            if (attribute[0].equalsIgnoreCase(attributeName))
+                return attribute[1];
+        return null;
+    }
+
+    /**
+     * Writes an attribute line, wrapped at 72 bytes with continuation lines.
+     * Multi-byte characters are never split across lines.
+     * @param out The stream to write to
+     * @param name The attribute name
+     * @param value The attribute value
+     */
+    static void writeAttribute(ByteArrayOutputStream out, String name, String value) {
+        byte[] line = (name + ": " + value).getBytes(StandardCharsets.UTF_8);
+        int pos = 0;
+        int limit = MAX_LINE_LENGTH;
+        while (line.length - pos > limit) {
+            int end = pos + limit;
+            while (end > pos && (line[end] & 0xC0) == 0x80)
+                --end; // Do not split a UTF-8 sequence
+            out.write(line, pos, end - pos);
+            out.write(CRLF, 0, CRLF.length);
+            out.write(' ');
+            pos = end;
+            limit = MAX_LINE_LENGTH - 1;
+        }
+        out.write(line, pos, line.length - pos);
+        out.write(CRLF, 0, CRLF.length);
+    }
+
+    private static int endOfLine(byte[] bytes, int pos, int length) {
+        while (pos < length && bytes[pos] != '\r' && bytes[pos] != '\n')
+            ++pos;
+        return pos;
+    }
+
+    private static int startOfNextLine(byte[] bytes, int eol, int length) {
+        if (eol < length && bytes[eol] == '\r')
+            return (eol + 1 < length && bytes[eol + 1] == '\n') ? eol + 2 : eol + 1;
+        return (eol < length && bytes[eol] == '\n') ? eol + 1 : eol;
+    }
+
+    /**
+     * Makes sure the parameter section bytes end with a blank line.
+     * @param bytes The raw section bytes
+     * @return The same bytes if already terminated, else extended bytes
+     */
+    static byte[] terminate(byte[] bytes) {
+        if (0 == bytes.length)
+            return bytes;
+        byte[] result = bytes;
+        if (!endsWithLineBreak(result, result.length))
+            result = concat(result, CRLF);
+        int end = result.length - lineBreakLength(result, result.length);
+        if (0 < end && !endsWithLineBreak(result, end))
+            result = concat(result, CRLF);
+        return result;
+    }
+
+    private static boolean endsWithLineBreak(byte[] bytes, int end) {
+        return 0 < end && (bytes[end - 1] == '\n' || bytes[end - 1] == '\r');
+    }
+
+    private static int lineBreakLength(byte[] bytes, int end) {
+        if (end >= 2 && bytes[end - 2] == '\r' && bytes[end - 1] == '\n')
+            return 2;
+        return endsWithLineBreak(bytes, end) ? 1 : 0;
+    }
+
+    static byte[] concat(byte[] first, byte[] second) {
+        byte[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+}
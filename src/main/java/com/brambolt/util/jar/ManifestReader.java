@@ -0,0 +1,144 @@
+/*
+ * Copyright 2017-2020 Brambolt ehf.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brambolt.util.jar;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * <p>Reads a jar manifest one section at a time. The main section is read
+ * first, and then each entry section in manifest order, so only one section
+ * is held in memory at a time however many entries the manifest lists.</p>
+ *
+ * <p>Sections are split exactly like <code>JarManifest</code> splits them: a
+ * section ends at the first blank line following its content, and a trailing
+ * block without a <code>Name</code> attribute is kept with the preceding
+ * section, so the raw bytes survive a round trip.</p>
+ */
+final class ManifestReader implements Closeable {
+
+    private final InputStream in;
+
+    private byte[] next;
+
+    private boolean started = false;
+
+    /**
+     * Constructor.
+     * @param in The stream to read the manifest from
+     */
+    ManifestReader(InputStream in) {
+        this.in = new BufferedInputStream(in, 8192);
+    }
+
+    /**
+     * Reads the main section. This must be called before the entry sections
+     * are read.
+     * @return The raw main section bytes, including the terminating blank line
+     * @throws IOException If unable to read
+     */
+    byte[] readMain() throws IOException {
+        if (started)
+            throw new IllegalStateException("The main section has already been read");
+        started = true;
+        byte[] main = readChunk();
+        if (null == main)
+            main = new byte[0];
+        next = readChunk();
+        while (null != next && null == JarManifest.getAttribute(next, "Name")) {
+            main = JarManifest.concat(main, next);
+            next = readChunk();
+        }
+        return JarManifest.terminate(main);
+    }
+
+    /**
+     * Reads the next entry section.
+     * @return The section, or null if there are no more sections
+     * @throws IOException If unable to read
+     */
+    JarManifest.Section readSection() throws IOException {
+        if (!started)
+            readMain();
+        if (null == next)
+            return null;
+        byte[] current = next;
+        next = readChunk();
+        while (null != next && null == JarManifest.getAttribute(next, "Name")) {
+            current = JarManifest.concat(current, next);
+            next = readChunk();
+        }
+        return new JarManifest.Section(
+            JarManifest.getAttribute(current, "Name"), JarManifest.terminate(current));
+    }
+
+    /**
+     * Reads the raw bytes up to and including the first blank line following
+     * content. Blank lines preceding the content belong to the chunk.
+     * @return The chunk, or null at the end of the manifest
+     * @throws IOException If unable to read
+     */
+    private byte[] readChunk() throws IOException {
+        ByteArrayOutputStream chunk = new ByteArrayOutputStream(256);
+        boolean content = false;
+        while (true) {
+            int length = readLine(chunk);
+            if (length < 0)
+                return 0 == chunk.size() ? null : chunk.toByteArray();
+            if (length > 0)
+                content = true;
+            else if (content)
+                return chunk.toByteArray();
+        }
+    }
+
+    /**
+     * Reads one line, including the line break, into the parameter stream.
+     * @param out The stream to write the raw line to
+     * @return The line length excluding the line break, or -1 at the end
+     * @throws IOException If unable to read
+     */
+    private int readLine(ByteArrayOutputStream out) throws IOException {
+        int length = 0;
+        int b = in.read();
+        if (b < 0)
+            return -1;
+        while (b >= 0 && b != '\r' && b != '\n') {
+            out.write(b);
+            ++length;
+            b = in.read();
+        }
+        if (b >= 0)
+            out.write(b);
+        if (b == '\r') {
+            in.mark(1);
+            int lf = in.read();
+            if (lf == '\n')
+                out.write(lf);
+            else in.reset();
+        }
+        return length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
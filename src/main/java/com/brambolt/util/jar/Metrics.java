@@ -0,0 +1,249 @@
+/*
+ * Copyright 2017-2020 Brambolt ehf.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brambolt.util.jar;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Collects timing and throughput metrics while a WAR file is processed:
+ * the duration and bytes of each phase, such as expanding the WAR file,
+ * removing signing data or signing, and the duration and size of each
+ * jar. Temporary disk usage is tracked as files are created and deleted, so
+ * the peak can be reported.</p>
+ *
+ * <p>Instances are safe to share between threads. Durations are measured
+ * with <code>System.nanoTime</code>; a phase is recorded by passing the value
+ * returned by {@link #start()} when the phase completes.</p>
+ */
+public class Metrics {
+
+    /**
+     * The number of jars listed in the slowest jars report.
+     */
+    public static final int SLOWEST_JARS = 10;
+
+    /**
+     * The accumulated duration and bytes of a phase.
+     */
+    public static final class Phase {
+
+        private long count;
+
+        private long nanos;
+
+        private long bytes;
+
+        private synchronized void add(long nanos, long bytes) {
+            this.count += 1;
+            this.nanos += nanos;
+            this.bytes += bytes;
+        }
+
+        private synchronized Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("count", count);
+            map.put("millis", toMillis(nanos));
+            map.put("bytes", bytes);
+            return map;
+        }
+    }
+
+    /**
+     * The duration and size of a processed jar.
+     */
+    public static final class Jar {
+
+        public final String name;
+
+        public final long nanos;
+
+        public final long bytes;
+
+        Jar(String name, long nanos, long bytes) {
+            this.name = name;
+            this.nanos = nanos;
+            this.bytes = bytes;
+        }
+
+        private Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("name", name);
+            map.put("millis", toMillis(nanos));
+            map.put("bytes", bytes);
+            return map;
+        }
+    }
+
+    private final long started = System.nanoTime();
+
+    private volatile long finished;
+
+    private final Map<String, Phase> phases = new LinkedHashMap<>();
+
+    private final List<Jar> jars = new ArrayList<>();
+
+    private final AtomicLong tempBytes = new AtomicLong();
+
+    private final AtomicLong peakTempBytes = new AtomicLong();
+
+    /**
+     * @return The start time for a phase or jar
+     */
+    public long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records a completed phase.
+     * @param phase The phase name
+     * @param start The value returned by {@link #start()} when the phase began
+     * @param bytes The number of bytes processed in the phase
+     */
+    public void record(String phase, long start, long bytes) {
+        long nanos = System.nanoTime() - start;
+        Phase accumulated;
+        synchronized (phases) {
+            accumulated = phases.computeIfAbsent(phase, p -> new Phase());
+        }
+        accumulated.add(nanos, bytes);
+    }
+
+    /**
+     * Records a processed jar.
+     * @param name The jar name
+     * @param start The value returned by {@link #start()} when the jar was started
+     * @param bytes The jar size
+     */
+    public void recordJar(String name, long start, long bytes) {
+        Jar jar = new Jar(name, System.nanoTime() - start, bytes);
+        synchronized (jars) {
+            jars.add(jar);
+        }
+    }
+
+    /**
+     * Records temporary files being created.
+     * @param bytes The size of the created files
+     */
+    public void addTemp(long bytes) {
+        long current = tempBytes.addAndGet(bytes);
+        peakTempBytes.accumulateAndGet(current, Math::max);
+    }
+
+    /**
+     * Records temporary files being deleted.
+     * @param bytes The size of the deleted files
+     */
+    public void releaseTemp(long bytes) {
+        tempBytes.addAndGet(-bytes);
+    }
+
+    /**
+     * Marks the end of processing. The total duration is measured until the
+     * first invocation, or until the metrics are reported if never invoked.
+     * @return The metrics
+     */
+    public Metrics finish() {
+        if (0 == finished)
+            finished = System.nanoTime();
+        return this;
+    }
+
+    /**
+     * @return The processed jars, slowest first
+     */
+    public List<Jar> getSlowestJars() {
+        List<Jar> sorted;
+        synchronized (jars) {
+            sorted = new ArrayList<>(jars);
+        }
+        sorted.sort(Comparator.comparingLong((Jar jar) -> jar.nanos).reversed());
+        return sorted.subList(0, Math.min(SLOWEST_JARS, sorted.size()));
+    }
+
+    /**
+     * @return The total size of the processed jars
+     */
+    public long getBytes() {
+        synchronized (jars) {
+            return jars.stream().mapToLong(jar -> jar.bytes).sum();
+        }
+    }
+
+    /**
+     * @return The number of processed jars
+     */
+    public int getJarCount() {
+        synchronized (jars) {
+            return jars.size();
+        }
+    }
+
+    /**
+     * @return The total duration, in milliseconds
+     */
+    public double getMillis() {
+        return toMillis((0 == finished ? System.nanoTime() : finished) - started);
+    }
+
+    /**
+     * @return The processed jar bytes per second, in megabytes
+     */
+    public double getThroughput() {
+        double seconds = getMillis() / 1000.0;
+        return 0.0 == seconds ? 0.0 : getBytes() / (1024.0 * 1024.0) / seconds;
+    }
+
+    /**
+     * @return The peak temporary disk usage, in bytes
+     */
+    public long getPeakTempBytes() {
+        return peakTempBytes.get();
+    }
+
+    /**
+     * Creates a map representation of the metrics, for a JSON report.
+     * @return The metrics as nested maps and lists
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("millis", getMillis());
+        map.put("jars", getJarCount());
+        map.put("bytes", getBytes());
+        map.put("throughputMBps", getThroughput());
+        map.put("peakTempBytes", getPeakTempBytes());
+        Map<String, Object> phaseMaps = new LinkedHashMap<>();
+        synchronized (phases) {
+            phases.forEach((name, phase) -> phaseMaps.put(name, phase.toMap()));
+        }
+        map.put("phases", phaseMaps);
+        List<Map<String, Object>> slowest = new ArrayList<>();
+        for (Jar jar: getSlowestJars())
+            slowest.add(jar.toMap());
+        map.put("slowestJars", slowest);
+        return map;
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / 1000000.0;
+    }
+}
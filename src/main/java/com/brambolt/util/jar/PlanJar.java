@@ -0,0 +1,292 @@
+/*
+ * Copyright 2017-2020 Brambolt ehf.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brambolt.util.jar;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * <p>Works out the least work a jar needs, from its manifest, the listing of
+ * its entries and its signature files, without reading any other entry.
+ * When checking an existing signature the whole central directory is listed,
+ * since every entry needs a digest section in the manifest; otherwise only
+ * the <code>META-INF</code> entries are.</p>
+ *
+ * <p>A jar is compliant if it has every attribute and, when signing, is
+ * signed only under the expected prefix, with a signature block holding the
+ * signing certificate, a <code>.SF</code> file whose manifest digest matches
+ * the manifest, and a manifest section for every entry. The entry digests
+ * are not verified; <code>CheckJar</code> with verification does that.</p>
+ */
+public class PlanJar {
+
+    /**
+     * The operations a jar can need.
+     */
+    public enum Operation {
+
+        /**
+         * Remove the existing signing data.
+         */
+        UNSIGN,
+
+        /**
+         * Add the missing manifest attributes.
+         */
+        ADD_ATTRIBUTES,
+
+        /**
+         * Sign the jar.
+         */
+        SIGN
+    }
+
+    /**
+     * The work planned for a jar.
+     */
+    public static final class Plan {
+
+        public final String jar;
+
+        public final Set<Operation> operations;
+
+        public final List<String> reasons;
+
+        Plan(String jar, Set<Operation> operations, List<String> reasons) {
+            this.jar = jar;
+            this.operations = Collections.unmodifiableSet(operations);
+            this.reasons = Collections.unmodifiableList(reasons);
+        }
+
+        /**
+         * @return True if and only if the jar needs no work
+         */
+        public boolean isCompliant() {
+            return operations.isEmpty();
+        }
+
+        /**
+         * Formats the plan as one line, like
+         * <code>a.jar: unsign, sign (Missing XXX.RSA)</code>.
+         * @return The plan
+         */
+        public String format() {
+            if (isCompliant())
+                return jar + ": compliant";
+            return jar + ": " + operations.stream()
+                .map(operation -> operation.name().toLowerCase(Locale.ENGLISH).replace('_', ' '))
+                .collect(Collectors.joining(", ")) + " (" + String.join("; ", reasons) + ")";
+        }
+
+        @Override
+        public String toString() {
+            return format();
+        }
+    }
+
+    private final String signatureFileNamePrefix;
+
+    private final List<String> attributes;
+
+    private final boolean unsign;
+
+    private final String fingerprint;
+
+    /**
+     * Constructor.
+     * @param signatureFileNamePrefix The signature file name prefix, or null
+     *  or empty if jars are not signed
+     * @param fingerprint The signing certificate fingerprint, as computed by
+     *  <code>SigningCache.fingerprint</code>, or null if jars are not signed
+     * @param attributes The required main manifest attributes
+     * @param unsign Whether existing signing data is removed
+     */
+    public PlanJar(String signatureFileNamePrefix, String fingerprint,
+                   List<String> attributes, boolean unsign) {
+        this.signatureFileNamePrefix = toSignatureFileName(signatureFileNamePrefix);
+        this.fingerprint = fingerprint;
+        this.attributes = null != attributes ? attributes : Collections.emptyList();
+        this.unsign = unsign;
+    }
+
+    /**
+     * Plans the work for the parameter jar file.
+     * @param file The jar file
+     * @return The plan
+     * @throws IOException If unable to read the jar
+     */
+    public Plan apply(File file) throws IOException {
+        try (ZipArchive jar = new ZipArchive(file)) {
+            return apply(jar, file.getName());
+        }
+    }
+
+    /**
+     * Plans the work for the parameter jar.
+     * @param jar The jar
+     * @param name The jar name to report
+     * @return The plan
+     * @throws IOException If unable to read the jar
+     */
+    public Plan apply(ZipArchive jar, String name) throws IOException {
+        Set<Operation> operations = EnumSet.noneOf(Operation.class);
+        List<String> reasons = new ArrayList<>();
+        List<String> missing = new CheckAttributes(attributes).findMissing(CheckJar.readManifest(jar));
+        if (!missing.isEmpty()) {
+            operations.add(Operation.ADD_ATTRIBUTES);
+            reasons.add("Missing attribute: " + String.join(" ", missing));
+        }
+        boolean signingData = hasSigningData(jar);
+        if (null != signatureFileNamePrefix) {
+            List<String> problems = findSigningProblems(jar);
+            if (!problems.isEmpty() || !missing.isEmpty()) {
+                operations.add(Operation.SIGN);
+                reasons.addAll(problems);
+            }
+        } else if (unsign && signingData)
+            reasons.add("Signing data found");
+        if (unsign && signingData && (!operations.isEmpty() || null == signatureFileNamePrefix))
+            operations.add(Operation.UNSIGN); // Signing data is only removed from changed jars
+        return new Plan(name, operations, reasons);
+    }
+
+    /**
+     * Converts the prefix to the signature file base name, like the signers
+     * do: in upper case and truncated to eight characters.
+     */
+    private static String toSignatureFileName(String prefix) {
+        if (null == prefix || prefix.isEmpty())
+            return null;
+        String name = prefix.toUpperCase(Locale.ENGLISH);
+        return name.length() > 8 ? name.substring(0, 8) : name;
+    }
+
+    private static boolean hasSigningData(ZipArchive jar) {
+        for (ZipArchive.Entry entry: jar.getEntries("META-INF/"))
+            if (RewriteJar.isSigningData(entry.name))
+                return true;
+        return false;
+    }
+
+    /**
+     * Finds the reasons the jar is not signed as expected, the first problem
+     * of each kind.
+     */
+    private List<String> findSigningProblems(ZipArchive jar) throws IOException {
+        List<String> problems = new ArrayList<>();
+        for (CheckReport.Problem problem: new CheckSigningData(signatureFileNamePrefix).check(jar))
+            problems.add(problem.message);
+        if (!problems.isEmpty())
+            return problems;
+        String base = "META-INF/" + signatureFileNamePrefix;
+        ZipArchive.Entry block = findBlock(jar, base);
+        ZipArchive.Entry signatureFile = jar.getEntry(base + ".SF");
+        ZipArchive.Entry manifestEntry = jar.getEntry(JarManifest.PATH);
+        if (null == block || null == signatureFile || null == manifestEntry) {
+            problems.add("Signing data not in META-INF");
+            return problems;
+        }
+        if (!isSignedBy(jar.readAllBytes(block)))
+            problems.add("Signed with another certificate");
+        byte[] manifestBytes = jar.readAllBytes(manifestEntry);
+        if (!matchesManifest(jar.readAllBytes(signatureFile), manifestBytes))
+            problems.add("Manifest changed after signing");
+        String unsigned = findUnsignedEntry(jar, JarManifest.parse(manifestBytes));
+        if (null != unsigned)
+            problems.add("Entry not signed: " + unsigned);
+        return problems;
+    }
+
+    /**
+     * Finds the signature block for the parameter base name, with the
+     * extension for any supported key algorithm.
+     */
+    private static ZipArchive.Entry findBlock(ZipArchive jar, String base) {
+        for (String extension: VerifySigningData.BLOCK_EXTENSIONS) {
+            ZipArchive.Entry block = jar.getEntry(base + extension);
+            if (null != block)
+                return block;
+        }
+        return null;
+    }
+
+    private boolean isSignedBy(byte[] block) {
+        if (null == fingerprint)
+            return false;
+        try {
+            CertificateFactory factory = CertificateFactory.getInstance("X.509");
+            for (Certificate certificate: factory.generateCertificates(new ByteArrayInputStream(block)))
+                if (fingerprint.equals(SigningCache.fingerprint(certificate)))
+                    return true;
+        } catch (GeneralSecurityException x) {
+            return false; // Not a signature block we can read
+        }
+        return false;
+    }
+
+    private static boolean matchesManifest(byte[] signatureFile, byte[] manifest) {
+        for (String[] attribute: JarManifest.parseAttributes(JarManifest.parse(signatureFile).getMain())) {
+            String name = attribute[0];
+            if (!name.endsWith("-Digest-Manifest"))
+                continue;
+            try {
+                MessageDigest digest = MessageDigest.getInstance(
+                    name.substring(0, name.length() - "-Digest-Manifest".length()));
+                return Base64.getEncoder().encodeToString(digest.digest(manifest))
+                    .equals(attribute[1].trim());
+            } catch (GeneralSecurityException x) {
+                return false; // Unknown algorithm
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds an entry without a digest section in the manifest. This is the
+     * only part of planning that lists every entry in the central directory.
+     */
+    private static String findUnsignedEntry(ZipArchive jar, JarManifest manifest) {
+        for (ZipArchive.Entry entry: jar.getEntries()) {
+            if (entry.isDirectory() || SignInProcess.isSigningRelated(entry.name))
+                continue; // Not signed
+            JarManifest.Section section = manifest.getSection(entry.name);
+            if (null == section || !hasDigest(section))
+                return entry.name;
+        }
+        return null;
+    }
+
+    private static boolean hasDigest(JarManifest.Section section) {
+        for (String[] attribute: JarManifest.parseAttributes(section.getBytes()))
+            if (attribute[0].endsWith("-Digest"))
+                return true;
+        return false;
+    }
+}
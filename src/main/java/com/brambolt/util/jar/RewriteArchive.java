@@ -0,0 +1,397 @@
+/*
+ * Copyright 2017-2020 Brambolt ehf.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brambolt.util.jar;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * <p>Rewrites a zip archive, such as a WAR file, one entry at a time. The
+ * included entries, normally nested jars, are extracted to temporary files
+ * and processed; every other entry is copied raw, keeping the compressed
+ * bytes and CRC. The new archive is written next to the original and then
+ * moved over it, so the original is untouched if processing fails.</p>
+ *
+ * <p>Included entries are processed in parallel, up to a configurable limit,
+ * and written back in their original order. They are compressed as the
+ * <code>Compression</code> chooses; with parallel compression each entry is
+ * compressed on the thread that processed it.</p>
+ */
+public class RewriteArchive {
+
+    /**
+     * Processes an extracted entry in place.
+     */
+    public interface Processor {
+
+        /**
+         * Processes the parameter file.
+         * @param file The extracted entry to process
+         * @throws Exception If processing fails
+         */
+        void apply(File file) throws Exception;
+    }
+
+    /**
+     * Processes all extracted entries at once, on the thread running the
+     * rewrite, after the processor has been applied to each of them.
+     */
+    public interface Batch {
+
+        /**
+         * Processes the parameter files.
+         * @param files The extracted entries, in archive order
+         * @throws Exception If processing fails
+         */
+        void apply(List<File> files) throws Exception;
+    }
+
+    private final Predicate<String> include;
+
+    private final Processor processor;
+
+    private final int maxParallel;
+
+    private final ExecutorService executor;
+
+    private Batch batch;
+
+    private Compression compression = new Compression();
+
+    private boolean reproducible = false;
+
+    private Metrics metrics = new Metrics();
+
+    private final Map<File, String> names = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor. Entries are processed one after another.
+     * @param include Selects the entries to process, by entry name
+     * @param processor The entry processor
+     */
+    public RewriteArchive(Predicate<String> include, Processor processor) {
+        this(include, processor, 1);
+    }
+
+    /**
+     * Constructor.
+     * @param include Selects the entries to process, by entry name
+     * @param processor The entry processor
+     * @param maxParallel The maximum number of entries to process at a time
+     */
+    public RewriteArchive(Predicate<String> include, Processor processor, int maxParallel) {
+        this.include = include;
+        this.processor = processor;
+        this.maxParallel = Math.max(1, maxParallel);
+        this.executor = null;
+    }
+
+    /**
+     * Constructor. Entries are processed on the parameter executor, which can
+     * be shared between archives and is not shut down. The executor must not
+     * be busy waiting for the rewrite, or the rewrite can not make progress.
+     * @param include Selects the entries to process, by entry name
+     * @param processor The entry processor
+     * @param executor The executor to process entries on
+     */
+    public RewriteArchive(Predicate<String> include, Processor processor, ExecutorService executor) {
+        this.include = include;
+        this.processor = processor;
+        this.maxParallel = 0;
+        this.executor = executor;
+    }
+
+    /**
+     * Sets a batch step, applied to all extracted entries at once on the
+     * thread running the rewrite, before the entries are written back. This
+     * is for work that must be started from that thread.
+     * @param batch The batch step, or null
+     * @return The rewriter
+     */
+    public RewriteArchive setBatch(Batch batch) {
+        this.batch = batch;
+        return this;
+    }
+
+    /**
+     * Sets the compression for the processed entries. Entries that are
+     * copied are not compressed again.
+     * @param compression The compression
+     * @return The rewriter
+     */
+    public RewriteArchive setCompression(Compression compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    /**
+     * Sets whether the archive is written reproducibly, with fixed entry
+     * times and the entries sorted in <code>ZipWriter.REPRODUCIBLE_ORDER</code>.
+     * @param reproducible Whether to write a reproducible archive
+     * @return The rewriter
+     */
+    public RewriteArchive setReproducible(boolean reproducible) {
+        this.reproducible = reproducible;
+        return this;
+    }
+
+    /**
+     * Sets the metrics to record the extract, copy and write phases in, and
+     * the temporary disk usage.
+     * @param metrics The metrics
+     * @return The rewriter
+     */
+    public RewriteArchive setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * Finds the entry name of an extracted entry, while the archive is being
+     * rewritten.
+     * @param file The extracted entry, as passed to the processor or batch
+     * @return The entry name, or null if the file is not an extracted entry
+     */
+    public String getEntryName(File file) {
+        return names.get(file);
+    }
+
+    /**
+     * Rewrites the parameter archive.
+     * @param archive The archive to rewrite
+     * @return The archive file
+     * @throws IllegalStateException If processing fails for any entry
+     * @throws IOException If unable to read or write the archive
+     */
+    public File apply(File archive) throws IOException {
+        File parent = archive.getAbsoluteFile().getParentFile();
+        File target = File.createTempFile(archive.getName(), ".tmp", parent);
+        Path tmpDir = Files.createTempDirectory(archive.getName());
+        try {
+            rewrite(archive, target, tmpDir);
+            long length = target.length();
+            metrics.addTemp(length);
+            move(target.toPath(), archive.toPath());
+            metrics.releaseTemp(length);
+        } finally {
+            names.clear();
+            Files.deleteIfExists(target.toPath());
+            delete(tmpDir);
+        }
+        return archive;
+    }
+
+    private void rewrite(File archive, File target, Path tmpDir) throws IOException {
+        Map<String, Throwable> failures = new LinkedHashMap<>();
+        ExecutorService executor = null != this.executor
+            ? this.executor : Executors.newFixedThreadPool(maxParallel);
+        Map<ZipArchive.Entry, Future<Extracted>> processed = new LinkedHashMap<>();
+        try (ZipArchive source = new ZipArchive(archive);
+             ZipWriter writer = new ZipWriter(target)
+                 .setLevel(compression.getLevel()).setReproducible(reproducible)) {
+            int index = 0;
+            for (ZipArchive.Entry entry: source.getEntries())
+                if (!entry.isDirectory() && include.test(entry.name)) {
+                    File file = tmpDir.resolve(Integer.toString(index++))
+                        .resolve(baseName(entry.name)).toFile();
+                    names.put(file, entry.name);
+                    processed.put(entry, executor.submit(() -> extract(source, entry, file)));
+                }
+            if (null != batch && !processed.isEmpty())
+                applyBatch(processed, executor);
+            for (ZipArchive.Entry entry: ZipWriter.getWriteOrder(source, reproducible)) {
+                Future<Extracted> future = processed.get(entry);
+                if (null == future) {
+                    long start = metrics.start();
+                    writer.copy(source, entry);
+                    metrics.record("copy", start, entry.compressedSize);
+                } else write(writer, entry, future, failures);
+            }
+        } finally {
+            if (executor != this.executor)
+                executor.shutdownNow();
+            else for (Future<Extracted> future: processed.values())
+                future.cancel(true); // Only has an effect if the rewrite failed
+        }
+        if (!failures.isEmpty())
+            throw new IllegalStateException(formatFailures(failures),
+                failures.values().iterator().next());
+    }
+
+    private void applyBatch(Map<ZipArchive.Entry, Future<Extracted>> processed,
+                            ExecutorService executor) throws IOException {
+        List<File> files = new ArrayList<>(processed.size());
+        try {
+            for (Future<Extracted> future: processed.values())
+                files.add(future.get().file);
+        } catch (ExecutionException x) {
+            return; // Reported when the entry is written
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while extracting entries", x);
+        }
+        try {
+            batch.apply(files);
+        } catch (RuntimeException x) {
+            throw x;
+        } catch (Exception x) {
+            throw new IllegalStateException(x.getMessage(), x);
+        }
+        if (compression.isParallel()) // The entries only change in the batch
+            for (Map.Entry<ZipArchive.Entry, Future<Extracted>> e: processed.entrySet()) {
+                ZipArchive.Entry entry = e.getKey();
+                File file = getNow(e.getValue()).file;
+                e.setValue(executor.submit(() -> compress(entry, file)));
+            }
+    }
+
+    private File process(ZipArchive source, ZipArchive.Entry entry, File file) throws Exception {
+        long start = metrics.start();
+        Files.createDirectories(file.toPath().getParent());
+        try (InputStream in = source.getInputStream(entry)) {
+            Files.copy(in, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        metrics.addTemp(entry.size);
+        metrics.record("extract", start, entry.size);
+        processor.apply(file);
+        return file;
+    }
+
+    private Extracted extract(ZipArchive source, ZipArchive.Entry entry, File file) throws Exception {
+        process(source, entry, file);
+        return null == batch && compression.isParallel()
+            ? compress(entry, file) : new Extracted(file, null);
+    }
+
+    private Extracted compress(ZipArchive.Entry entry, File file) throws IOException {
+        long start = metrics.start();
+        int method = compression.getMethod(entry.name, entry.method);
+        ZipWriter.Compressed data = compression.compress(
+            file, method, new File(file.getParentFile(), file.getName() + ".z"));
+        if (data.file != file)
+            metrics.addTemp(data.file.length());
+        metrics.record("compress", start, file.length());
+        return new Extracted(file, data);
+    }
+
+    private static Extracted getNow(Future<Extracted> future) {
+        try {
+            return future.get(); // Already done
+        } catch (ExecutionException | InterruptedException x) {
+            throw new IllegalStateException(x);
+        }
+    }
+
+    private void write(ZipWriter writer, ZipArchive.Entry entry, Future<Extracted> future,
+                       Map<String, Throwable> failures) throws IOException {
+        Extracted extracted;
+        try {
+            extracted = future.get();
+        } catch (ExecutionException x) {
+            failures.put(entry.name, x.getCause());
+            return;
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while processing " + entry.name, x);
+        }
+        long start = metrics.start();
+        File file = extracted.file;
+        long length = file.length();
+        if (failures.isEmpty()) { // Otherwise the output is discarded
+            if (null != extracted.compressed)
+                writer.write(entry, extracted.compressed);
+            else writer.write(entry, file, compression.getMethod(entry.name, entry.method));
+        }
+        if (null != extracted.compressed && extracted.compressed.file != file) {
+            metrics.releaseTemp(extracted.compressed.file.length());
+            Files.deleteIfExists(extracted.compressed.file.toPath());
+        }
+        Files.deleteIfExists(file.toPath());
+        metrics.releaseTemp(entry.size);
+        metrics.record("write", start, length);
+    }
+
+    static String formatFailures(Map<String, Throwable> failures) {
+        return String.format("Unable to process %d entries:\n\t%s", failures.size(),
+            failures.entrySet().stream()
+                .map(e -> e.getKey() + ": " + (null != e.getValue().getMessage()
+                    ? e.getValue().getMessage() : e.getValue().getClass().getName()))
+                .collect(Collectors.joining("\n\t")));
+    }
+
+    /**
+     * An extracted and processed entry, compressed if compression is
+     * parallel.
+     */
+    private static final class Extracted {
+
+        final File file;
+
+        final ZipWriter.Compressed compressed;
+
+        Extracted(File file, ZipWriter.Compressed compressed) {
+            this.file = file;
+            this.compressed = compressed;
+        }
+    }
+
+    private static String baseName(String entryName) {
+        return entryName.substring(entryName.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * Moves the rewritten archive over the original, atomically if the file
+     * system supports it.
+     */
+    static void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target,
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException x) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    static void delete(Path dir) throws IOException {
+        if (null == dir || !Files.exists(dir))
+            return; // Nothing to do
+        List<Path> paths;
+        try (Stream<Path> walk = Files.walk(dir)) {
+            paths = walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+        }
+        for (Path path: paths)
+            Files.deleteIfExists(path);
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2017-2020 Brambolt ehf.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brambolt.util.jar;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+
+/**
+ * <p>Removes signing data from a jar and adds manifest attributes, without
+ * a zip file system. The jar is written once: the manifest is the only entry
+ * that is decompressed and compressed again, the signature files are left
+ * out, and every other entry is copied as raw compressed bytes, channel to
+ * channel.</p>
+ *
+ * <p>If neither signing data nor attributes need to change, the jar is not
+ * written at all. A reproducible jar is always written, so the entry times
+ * and order do not depend on the input jar.</p>
+ */
+public class RewriteJar {
+
+    /**
+     * Whether signature files and blocks are removed.
+     */
+    private final boolean unsign;
+
+    /**
+     * The attribute adder, or null to leave the manifest as it is.
+     */
+    private final AddAttributes adder;
+
+    private boolean reproducible = false;
+
+    /**
+     * Constructor.
+     * @param unsign Whether to remove signing data
+     * @param adder The attribute adder, or null to add no attributes
+     */
+    public RewriteJar(boolean unsign, AddAttributes adder) {
+        this.unsign = unsign;
+        this.adder = adder;
+    }
+
+    /**
+     * Sets whether the jar is written reproducibly, with fixed entry times
+     * and the entries sorted in <code>ZipWriter.REPRODUCIBLE_ORDER</code>.
+     * @param reproducible Whether to write a reproducible jar
+     * @return This rewriter
+     */
+    public RewriteJar setReproducible(boolean reproducible) {
+        this.reproducible = reproducible;
+        return this;
+    }
+
+    /**
+     * Rewrites the parameter jar in place.
+     * @param jar The jar to rewrite
+     * @return True if and only if the jar was changed
+     * @throws IOException If unable to read or write the jar
+     */
+    public boolean apply(File jar) throws IOException {
+        return apply(jar, jar);
+    }
+
+    /**
+     * Rewrites the parameter jar to the target file. If nothing changes, the
+     * jar is copied as it is, unless the target is the jar itself.
+     * @param jar The jar to rewrite
+     * @param target The file to write, may be the jar itself
+     * @return True if and only if the content was changed
+     * @throws IOException If unable to read or write
+     */
+    public boolean apply(File jar, File target) throws IOException {
+        boolean inPlace = jar.getAbsoluteFile().equals(target.getAbsoluteFile());
+        File parent = target.getAbsoluteFile().getParentFile();
+        Files.createDirectories(parent.toPath());
+        File tmp = File.createTempFile(target.getName(), ".tmp", parent);
+        try {
+            boolean changed;
+            try (ZipArchive source = new ZipArchive(jar)) {
+                byte[] manifest = readManifest(source);
+                changed = null != manifest || hasSigningData(source);
+                if (changed || reproducible)
+                    write(source, manifest, tmp);
+            }
+            if (changed || reproducible)
+                RewriteArchive.move(tmp.toPath(), target.toPath());
+            else if (!inPlace)
+                Files.copy(jar.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return changed;
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    /**
+     * Reads the manifest and adds the attributes.
+     * @param jar The jar
+     * @return The new manifest bytes, or null if the manifest is unchanged
+     * @throws IOException If unable to read the manifest
+     */
+    private byte[] readManifest(ZipArchive jar) throws IOException {
+        if (null == adder)
+            return null;
+        ZipArchive.Entry entry = jar.getEntry(JarManifest.PATH);
+        if (null == entry)
+            throw new NoSuchFileException(JarManifest.PATH);
+        JarManifest manifest = JarManifest.parse(jar.readAllBytes(entry));
+        return adder.apply(manifest) ? manifest.toBytes() : null;
+    }
+
+    private boolean hasSigningData(ZipArchive jar) {
+        if (!unsign)
+            return false;
+        for (ZipArchive.Entry entry: jar.getEntries("META-INF/"))
+            if (isSigningData(entry.name))
+                return true;
+        return false;
+    }
+
+    /**
+     * Writes the rewritten jar to the parameter writer, whether or not
+     * anything changes. The writer is not closed.
+     * @param jar The jar to rewrite
+     * @param writer The writer for the rewritten jar
+     * @throws IOException If unable to read or write
+     */
+    public void apply(ZipArchive jar, ZipWriter writer) throws IOException {
+        write(jar, readManifest(jar), writer);
+    }
+
+    private void write(ZipArchive jar, byte[] manifest, File target) throws IOException {
+        try (ZipWriter writer = new ZipWriter(target).setReproducible(reproducible)) {
+            write(jar, manifest, writer);
+        }
+    }
+
+    private void write(ZipArchive jar, byte[] manifest, ZipWriter writer) throws IOException {
+        for (ZipArchive.Entry entry: ZipWriter.getWriteOrder(jar, reproducible)) {
+            if (unsign && isSigningData(entry.name))
+                continue; // Removed
+            if (null != manifest && JarManifest.PATH.equals(entry.name))
+                writer.write(entry.name, entry.getTime(), entry.method, manifest);
+            else writer.copy(jar, entry);
+        }
+    }
+
+    /**
+     * Checks whether the parameter entry is signing data: a signature file or
+     * block directly under <code>META-INF</code>, in any case. This is the
+     * one definition used wherever signing data is removed or looked for.
+     * @param name The entry name
+     * @return True if and only if the entry is a <code>.SF</code>,
+     *  <code>.RSA</code>, <code>.DSA</code>, <code>.EC</code> or
+     *  <code>SIG-</code> file
+     */
+    static boolean isSigningData(String name) {
+        String upper = name.toUpperCase(Locale.ENGLISH);
+        if (!upper.startsWith("META-INF/") || upper.indexOf('/', 9) >= 0)
+            return false;
+        return upper.startsWith("META-INF/SIG-") ||
+            upper.endsWith(".SF") || upper.endsWith(".RSA") ||
+            upper.endsWith(".DSA") || upper.endsWith(".EC");
+    }
+}
@@ -0,0 +1,481 @@
+/*
+ * Copyright 2017-2020 Brambolt ehf.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brambolt.util.jar;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+import static com.brambolt.util.jar.ZipArchive.DEFLATED;
+import static com.brambolt.util.jar.ZipArchive.STORED;
+
+/**
+ * <p>Rewrites an archive and the archives nested in it, like the WAR files
+ * in an EAR file and the jars in each WAR file, in one pass per level. The
+ * entries to process are selected by patterns with one glob per level,
+ * separated by <code>!/</code>: <code>*.war!/WEB-INF/lib/*.jar</code>
+ * selects the jars in <code>WEB-INF/lib</code> of every WAR file at the top
+ * of the archive. In a glob, <code>*</code> and <code>?</code> do not match
+ * <code>/</code> and <code>**</code> matches any number of directories.</p>
+ *
+ * <p>Nothing is extracted to disk. A nested archive is read from the bytes
+ * of its entry, sliced from the parent if stored and inflated into memory if
+ * deflated, and is written straight into its entry in the parent archive,
+ * or into memory first if the entry is stored. The entries matched by the
+ * last glob of a pattern are processed in parallel, into memory, and written
+ * in their original order; every other entry is copied raw.</p>
+ *
+ * <p>An entry matched by a longer pattern is rewritten as a nested archive,
+ * even if a shorter pattern also matches it.</p>
+ */
+public class RewriteNested {
+
+    /**
+     * Processes a matched entry, reading it as an archive and writing the
+     * result to a writer.
+     */
+    public interface Processor {
+
+        /**
+         * Processes the parameter archive.
+         * @param archive The matched entry, as an archive
+         * @param writer The writer for the processed entry, not to be closed
+         * @throws Exception If processing fails
+         */
+        void apply(ZipArchive archive, ZipWriter writer) throws Exception;
+    }
+
+    /**
+     * Decides whether a matched entry is processed, once it is read as an
+     * archive.
+     */
+    public interface Filter {
+
+        /**
+         * Checks whether the parameter archive is processed.
+         * @param archive The matched entry, as an archive
+         * @return True to process the entry, false to copy it as it is
+         * @throws Exception If the check fails
+         */
+        boolean accept(ZipArchive archive) throws Exception;
+    }
+
+    /**
+     * Reads a matched entry as an archive, without writing anything.
+     */
+    public interface Visitor {
+
+        /**
+         * Visits the parameter archive.
+         * @param archive The matched entry, as an archive
+         * @param path The entry path, with the nested archive names
+         * @throws Exception If visiting fails
+         */
+        void visit(ZipArchive archive, String path) throws Exception;
+    }
+
+    /**
+     * The separator between the globs of the levels in a pattern.
+     */
+    public static final String SEPARATOR = "!/";
+
+    private final List<List<Pattern>> patterns;
+
+    private final Processor processor;
+
+    private final int maxParallel;
+
+    private final ExecutorService executor;
+
+    private Compression compression = new Compression();
+
+    private boolean reproducible = false;
+
+    private Metrics metrics = new Metrics();
+
+    private Filter filter;
+
+    /**
+     * Constructor.
+     * @param patterns The patterns selecting the entries to process
+     * @param processor The entry processor
+     * @param maxParallel The maximum number of entries to process at a time
+     * @throws IllegalArgumentException If a pattern is not valid
+     */
+    public RewriteNested(List<String> patterns, Processor processor, int maxParallel) {
+        this(patterns, processor, null, maxParallel);
+    }
+
+    /**
+     * Constructor. Entries are processed on the parameter executor, which can
+     * be shared between archives and is not shut down.
+     * @param patterns The patterns selecting the entries to process
+     * @param processor The entry processor
+     * @param executor The executor to process entries on
+     * @param maxParallel The number of entries the executor processes at a
+     *  time; up to twice as many processed entries are held in memory
+     * @throws IllegalArgumentException If a pattern is not valid
+     */
+    public RewriteNested(List<String> patterns, Processor processor,
+                         ExecutorService executor, int maxParallel) {
+        this.patterns = parse(patterns);
+        this.processor = processor;
+        this.executor = executor;
+        this.maxParallel = Math.max(1, maxParallel);
+    }
+
+    /**
+     * Sets the compression for the processed entries and nested archives.
+     * Entries that are copied are not compressed again.
+     * @param compression The compression
+     * @return The rewriter
+     */
+    public RewriteNested setCompression(Compression compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    /**
+     * Sets whether the archive and the nested archives are written
+     * reproducibly, with fixed entry times and the entries sorted in
+     * <code>ZipWriter.REPRODUCIBLE_ORDER</code>.
+     * @param reproducible Whether to write reproducible archives
+     * @return The rewriter
+     */
+    public RewriteNested setReproducible(boolean reproducible) {
+        this.reproducible = reproducible;
+        return this;
+    }
+
+    /**
+     * Sets the metrics to record the processed entries in.
+     * @param metrics The metrics
+     * @return The rewriter
+     */
+    public RewriteNested setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * Sets the filter for the matched entries. Entries the filter does not
+     * accept are copied raw, so their bytes do not change.
+     * @param filter The filter, or null to process every matched entry
+     * @return The rewriter
+     */
+    public RewriteNested setFilter(Filter filter) {
+        this.filter = filter;
+        return this;
+    }
+
+    /**
+     * Rewrites the parameter archive. The new archive is written next to the
+     * original and then moved over it.
+     * @param archive The archive to rewrite
+     * @return The archive file
+     * @throws IllegalStateException If processing fails for any entry
+     * @throws IOException If unable to read or write the archive
+     */
+    public File apply(File archive) throws IOException {
+        File parent = archive.getAbsoluteFile().getParentFile();
+        File target = File.createTempFile(archive.getName(), ".tmp", parent);
+        Map<String, Throwable> failures = new LinkedHashMap<>();
+        ExecutorService executor = null != this.executor
+            ? this.executor : Executors.newFixedThreadPool(maxParallel);
+        try {
+            try (ZipArchive source = new ZipArchive(archive);
+                 ZipWriter writer = createWriter(new ZipWriter(target))) {
+                rewrite(source, writer, patterns, "", executor, failures);
+            }
+            if (!failures.isEmpty())
+                throw new IllegalStateException(RewriteArchive.formatFailures(failures),
+                    failures.values().iterator().next());
+            long length = target.length();
+            metrics.addTemp(length);
+            RewriteArchive.move(target.toPath(), archive.toPath());
+            metrics.releaseTemp(length);
+        } finally {
+            if (executor != this.executor)
+                executor.shutdownNow();
+            Files.deleteIfExists(target.toPath());
+        }
+        return archive;
+    }
+
+    /**
+     * Visits the entries of the parameter archive selected by the patterns,
+     * one after another, without writing anything. The processor is not
+     * used.
+     * @param archive The archive to read
+     * @param visitor The visitor for the matched entries
+     * @throws IllegalStateException If visiting fails for any entry
+     * @throws IOException If unable to read the archive
+     */
+    public void visit(File archive, Visitor visitor) throws IOException {
+        Map<String, Throwable> failures = new LinkedHashMap<>();
+        try (ZipArchive source = new ZipArchive(archive)) {
+            visit(source, patterns, "", visitor, failures);
+        }
+        if (!failures.isEmpty())
+            throw new IllegalStateException(RewriteArchive.formatFailures(failures),
+                failures.values().iterator().next());
+    }
+
+    private void visit(ZipArchive source, List<List<Pattern>> patterns, String prefix,
+                       Visitor visitor, Map<String, Throwable> failures) {
+        for (ZipArchive.Entry entry: source.getEntries()) {
+            if (entry.isDirectory())
+                continue;
+            List<List<Pattern>> tails = match(patterns, entry.name);
+            if (tails.isEmpty())
+                continue;
+            List<List<Pattern>> nested = new ArrayList<>();
+            for (List<Pattern> tail: tails)
+                if (!tail.isEmpty())
+                    nested.add(tail);
+            String path = prefix + entry.name;
+            try (ZipArchive archive = open(source, entry, path)) {
+                if (!nested.isEmpty())
+                    visit(archive, nested, path + SEPARATOR, visitor, failures);
+                else visitor.visit(archive, path);
+            } catch (Exception x) {
+                failures.put(path, x);
+            }
+        }
+    }
+
+    private void rewrite(ZipArchive source, ZipWriter writer, List<List<Pattern>> patterns,
+                         String prefix, ExecutorService executor,
+                         Map<String, Throwable> failures) throws IOException {
+        Deque<Pending> pending = new ArrayDeque<>();
+        try {
+            for (ZipArchive.Entry entry: ZipWriter.getWriteOrder(source, reproducible)) {
+                String path = prefix + entry.name;
+                List<List<Pattern>> tails = entry.isDirectory()
+                    ? Collections.emptyList() : match(patterns, entry.name);
+                List<List<Pattern>> nested = new ArrayList<>();
+                for (List<Pattern> tail: tails)
+                    if (!tail.isEmpty())
+                        nested.add(tail);
+                if (!nested.isEmpty()) {
+                    while (!pending.isEmpty())
+                        writeNext(source, writer, pending, failures);
+                    rewriteNested(source, entry, writer, nested, path, executor, failures);
+                } else if (tails.isEmpty() && pending.isEmpty()) {
+                    copy(source, entry, writer);
+                } else {
+                    pending.add(new Pending(entry, path, tails.isEmpty() ? null
+                        : executor.submit(() -> process(source, entry, path))));
+                    while (pending.size() > 2 * maxParallel)
+                        writeNext(source, writer, pending, failures);
+                }
+            }
+            while (!pending.isEmpty())
+                writeNext(source, writer, pending, failures);
+        } finally {
+            for (Pending item: pending)
+                if (null != item.processed)
+                    item.processed.cancel(true); // Only if the rewrite failed
+        }
+    }
+
+    private void rewriteNested(ZipArchive parent, ZipArchive.Entry entry, ZipWriter writer,
+                               List<List<Pattern>> patterns, String path,
+                               ExecutorService executor,
+                               Map<String, Throwable> failures) throws IOException {
+        long start = metrics.start();
+        int method = compression.getMethod(entry.name, entry.method);
+        try (ZipArchive nested = open(parent, entry, path)) {
+            String prefix = path + SEPARATOR;
+            if (DEFLATED == method) {
+                try (ZipWriter nestedWriter = createWriter(new ZipWriter(writer.open(entry)))) {
+                    rewrite(nested, nestedWriter, patterns, prefix, executor, failures);
+                }
+            } else {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                    (int) Math.min(Integer.MAX_VALUE - 8, entry.size + 8192));
+                try (ZipWriter nestedWriter = createWriter(new ZipWriter(bytes))) {
+                    rewrite(nested, nestedWriter, patterns, prefix, executor, failures);
+                }
+                writer.write(entry, compression.compress(bytes.toByteArray(), STORED));
+            }
+        } catch (IOException | RuntimeException x) {
+            failures.put(path, x); // The output is discarded
+        }
+        metrics.record("rewrite", start, entry.size);
+    }
+
+    /**
+     * Processes a matched entry into memory.
+     * @return The processed entry, or null if the filter does not accept it
+     */
+    private ZipWriter.Compressed process(ZipArchive parent, ZipArchive.Entry entry, String path)
+        throws Exception {
+        long start = metrics.start();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+            (int) Math.min(Integer.MAX_VALUE - 8, entry.size + 8192));
+        try (ZipArchive archive = open(parent, entry, path)) {
+            if (null != filter && !filter.accept(archive))
+                return null; // Copied raw
+            try (ZipWriter writer = createWriter(new ZipWriter(bytes))) {
+                processor.apply(archive, writer);
+            }
+        }
+        ZipWriter.Compressed data = compression.compress(
+            bytes.toByteArray(), compression.getMethod(entry.name, entry.method));
+        metrics.record("nested", start, entry.size);
+        metrics.recordJar(path, start, entry.size);
+        return data;
+    }
+
+    private void writeNext(ZipArchive source, ZipWriter writer, Deque<Pending> pending,
+                           Map<String, Throwable> failures) throws IOException {
+        Pending item = pending.remove();
+        if (null == item.processed) {
+            copy(source, item.entry, writer);
+            return;
+        }
+        ZipWriter.Compressed data;
+        try {
+            data = item.processed.get();
+            if (null == data) {
+                copy(source, item.entry, writer);
+                return;
+            }
+        } catch (ExecutionException x) {
+            failures.put(item.path, x.getCause());
+            return;
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while processing " + item.path, x);
+        }
+        long start = metrics.start();
+        if (failures.isEmpty()) // Otherwise the output is discarded
+            writer.write(item.entry, data);
+        metrics.record("write", start, data.compressedSize);
+    }
+
+    private void copy(ZipArchive source, ZipArchive.Entry entry, ZipWriter writer)
+        throws IOException {
+        long start = metrics.start();
+        writer.copy(source, entry);
+        metrics.record("copy", start, entry.compressedSize);
+    }
+
+    private ZipWriter createWriter(ZipWriter writer) {
+        return writer.setLevel(compression.getLevel()).setReproducible(reproducible);
+    }
+
+    /**
+     * Opens a nested archive over the bytes of its entry. A stored entry is
+     * sliced from the parent when the parent bytes are in memory; otherwise
+     * the entry is read into memory.
+     */
+    private static ZipArchive open(ZipArchive parent, ZipArchive.Entry entry, String path)
+        throws IOException {
+        ByteBuffer bytes = parent.slice(entry);
+        if (null == bytes)
+            bytes = ByteBuffer.wrap(parent.readAllBytes(entry));
+        return new ZipArchive(path, bytes);
+    }
+
+    private static List<List<Pattern>> match(List<List<Pattern>> patterns, String name) {
+        List<List<Pattern>> tails = new ArrayList<>();
+        for (List<Pattern> levels: patterns)
+            if (levels.get(0).matcher(name).matches())
+                tails.add(levels.subList(1, levels.size()));
+        return tails;
+    }
+
+    /**
+     * Parses the patterns into one regular expression per level.
+     * @param patterns The patterns
+     * @return The levels of each pattern
+     * @throws IllegalArgumentException If a pattern has an empty level
+     */
+    static List<List<Pattern>> parse(List<String> patterns) {
+        if (null == patterns || patterns.isEmpty())
+            throw new IllegalArgumentException("No nested patterns provided");
+        List<List<Pattern>> parsed = new ArrayList<>();
+        for (String pattern: patterns) {
+            List<Pattern> levels = new ArrayList<>();
+            for (String glob: pattern.split(Pattern.quote(SEPARATOR), -1)) {
+                if (glob.isEmpty())
+                    throw new IllegalArgumentException("Invalid nested pattern: " + pattern);
+                levels.add(toRegex(glob));
+            }
+            parsed.add(levels);
+        }
+        return parsed;
+    }
+
+    /**
+     * Converts a glob to a regular expression over entry names.
+     * @param glob The glob
+     * @return The regular expression
+     */
+    static Pattern toRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < glob.length(); ++i) {
+            char c = glob.charAt(i);
+            if (glob.startsWith("**/", i)) {
+                regex.append("(?:.*/)?");
+                i += 2;
+            } else if (glob.startsWith("**", i)) {
+                regex.append(".*");
+                ++i;
+            } else if ('*' == c)
+                regex.append("[^/]*");
+            else if ('?' == c)
+                regex.append("[^/]");
+            else regex.append(Pattern.quote(String.valueOf(c)));
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    /**
+     * An entry waiting to be written, processed or copied.
+     */
+    private static final class Pending {
+
+        final ZipArchive.Entry entry;
+
+        final String path;
+
+        final Future<ZipWriter.Compressed> processed;
+
+        Pending(ZipArchive.Entry entry, String path, Future<ZipWriter.Compressed> processed) {
+            this.entry = entry;
+            this.path = path;
+            this.processed = processed;
+        }
+    }
+}
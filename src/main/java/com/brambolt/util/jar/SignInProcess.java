@@ -0,0 +1,518 @@
+/*
+ * Copyright 2017-2020 Brambolt ehf.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brambolt.util.jar;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.security.DigestOutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * <p>Signs jar files inside the running JVM, without forking the
+ * <code>jarsigner</code> executable. The signing key is read from the key
+ * store once, when the first jar is signed, and is then reused for every
+ * subsequent jar. With a shared <code>SigningCredentials.Source</code> the
+ * key is unlocked once for every signer using it. Instances are safe to
+ * share between threads.</p>
+ *
+ * <p>The signed jars have the same layout as jars signed by
+ * <code>jarsigner</code> with the <code>-sigFile</code> option, using
+ * <code>SHA-256</code> digests and no timestamp.</p>
+ *
+ * <p>Removing old signature files and adding manifest attributes can be
+ * combined with signing, so each jar is read and written only once.</p>
+ *
+ * <p>A reproducible signer writes fixed entry times and sorts the entries,
+ * so signing the same jar with the same RSA key gives the same bytes. DSA
+ * and EC signatures are randomized and differ every time.</p>
+ *
+ * <p>The heap needed to sign a jar does not depend on its size, only on its
+ * number of entries: a few fixed buffers, and roughly half a kilobyte per
+ * entry for the central directory and the digests. A jar of 512 MB, or one
+ * with 60,000 entries, signs within a 64 MB heap; the
+ * <code>SigningMemoryBenchmark</code> checks this.</p>
+ *
+ * <p>Given a fork/join pool, the entry digests are computed on the pool, a
+ * contiguous batch of central directory entries per task, so signing one
+ * large jar scales with the number of cores. The manifest is written in the
+ * same order either way.</p>
+ */
+public class SignInProcess implements Signer {
+
+  /**
+   * The digest algorithm used for the manifest and signature file.
+   */
+  static final String DIGEST_ALGORITHM = "SHA-256";
+
+  /**
+   * The number of entries digested by one fork/join task.
+   */
+  private static final int BATCH = 64;
+
+  public final String signatureFileNamePrefix;
+
+  public final File signingStore;
+
+  public final String signingStorePassword;
+
+  public final String signingAlias;
+
+  public final String signingKeyPassword;
+
+  private SigningCredentials.Source credentialSource = SigningCredentials.DIRECT;
+
+  private SigningCredentials credentials;
+
+  private volatile boolean reproducible = false;
+
+  private volatile ForkJoinPool pool;
+
+  public SignInProcess(
+      String signatureFileNamePrefix, File signingStore,
+      String signingStorePassword, String signingAlias,
+      String signingKeyPassword) {
+    this.signatureFileNamePrefix = signatureFileNamePrefix;
+    this.signingStore = signingStore;
+    this.signingStorePassword = signingStorePassword;
+    this.signingAlias = signingAlias;
+    this.signingKeyPassword = signingKeyPassword;
+  }
+
+  /**
+   * Sets where the signing key is unlocked from. The default reads the key
+   * store; a shared source lets signers reuse a key that is already
+   * unlocked.
+   * @param credentialSource The credential source
+   * @return This signer
+   */
+  public SignInProcess setCredentialSource(SigningCredentials.Source credentialSource) {
+    this.credentialSource = null != credentialSource ? credentialSource : SigningCredentials.DIRECT;
+    return this;
+  }
+
+  /**
+   * Sets whether signed jars are written reproducibly, with fixed entry
+   * times and the entries sorted in <code>ZipWriter.REPRODUCIBLE_ORDER</code>.
+   * @param reproducible Whether to write reproducible jars
+   * @return This signer
+   */
+  public SignInProcess setReproducible(boolean reproducible) {
+    this.reproducible = reproducible;
+    return this;
+  }
+
+  /**
+   * Sets the pool to compute entry digests on. The pool is not shut down.
+   * @param pool The pool, or null to compute the digests on the signing
+   *  thread
+   * @return This signer
+   */
+  public SignInProcess setPool(ForkJoinPool pool) {
+    this.pool = pool;
+    return this;
+  }
+
+  /**
+   * Signs the parameter jar file. The signed jar is written to a temporary
+   * file next to the original, which is then replaced.
+   * @param jarFile The jar file to sign
+   * @throws Exception If signing fails
+   */
+  @Override
+  public void apply(File jarFile) throws Exception {
+    apply(jarFile, false, Collections.emptyList());
+  }
+
+  /**
+   * Removes existing signing data, adds manifest attributes and signs the
+   * parameter jar file, in a single pass. Each entry is read once to compute
+   * its digest, and is then copied to the signed jar without being
+   * decompressed or compressed again. The signed jar is written to a
+   * temporary file next to the original, which is then replaced.
+   * @param jarFile The jar file to process
+   * @param unsign Whether existing signature files are removed
+   * @param attributes The main manifest attributes to add, if not present
+   * @throws Exception If processing fails
+   */
+  public void apply(File jarFile, boolean unsign, List<String> attributes) throws Exception {
+    String signatureFileName = getSignatureFileName();
+    loadKey();
+    File signed = File.createTempFile(
+        jarFile.getName(), ".tmp", jarFile.getAbsoluteFile().getParentFile());
+    try {
+      try (ZipArchive jar = new ZipArchive(jarFile);
+           ZipWriter writer = new ZipWriter(signed).setReproducible(reproducible)) {
+        sign(jar, signatureFileName, unsign, attributes, writer);
+      }
+      RewriteArchive.move(signed.toPath(), jarFile.toPath());
+    } finally {
+      Files.deleteIfExists(signed.toPath());
+    }
+  }
+
+  /**
+   * Removes existing signing data, adds manifest attributes and signs a jar
+   * that is read from and written to archives, like a jar nested in a WAR
+   * file. The writer is not closed.
+   * @param jar The jar to process
+   * @param writer The writer for the signed jar
+   * @param unsign Whether existing signature files are removed
+   * @param attributes The main manifest attributes to add, if not present
+   * @throws Exception If processing fails
+   */
+  public void apply(ZipArchive jar, ZipWriter writer, boolean unsign, List<String> attributes)
+      throws Exception {
+    String signatureFileName = getSignatureFileName();
+    loadKey();
+    sign(jar, signatureFileName, unsign, attributes, writer);
+  }
+
+  /**
+   * Finds the base name of the signature files. Like <code>jarsigner</code>
+   * the prefix is converted to upper case and truncated to eight characters.
+   * @return The signature file base name
+   * @throws IllegalStateException If the prefix is missing or invalid
+   */
+  String getSignatureFileName() {
+    if (null == signatureFileNamePrefix || signatureFileNamePrefix.isEmpty())
+      throw new IllegalStateException(
+          "No signature file name prefix provided");
+    if (!signatureFileNamePrefix.matches("[A-Za-z0-9_-]+"))
+      throw new IllegalStateException(
+          "Invalid signature file name prefix: " + signatureFileNamePrefix);
+    String name = signatureFileNamePrefix.toUpperCase(Locale.ENGLISH);
+    return name.length() > 8 ? name.substring(0, 8) : name;
+  }
+
+  /**
+   * Unlocks the signing key and certificate chain from the credential
+   * source, unless already unlocked.
+   * @return The credentials
+   * @throws GeneralSecurityException If the key can not be recovered
+   * @throws IOException If unable to read the key store
+   */
+  synchronized SigningCredentials loadKey() throws GeneralSecurityException, IOException {
+    if (null != credentials && !credentials.isReleased())
+      return credentials; // Already unlocked
+    credentials = credentialSource.unlock(
+        signingStore, signingStorePassword, signingAlias, signingKeyPassword);
+    return credentials;
+  }
+
+  /**
+   * Writes a signed copy of the parameter jar. The heap use does not depend
+   * on the entry sizes: entry data is streamed through the digests, and the
+   * manifest and <code>.SF</code> file are written one section at a time as
+   * they are compressed. What is retained is proportional to the number of
+   * entries, one digest per entry and per manifest section, on top of the
+   * central directory held by the archive.
+   * @param jar The jar to sign
+   * @param signatureFileName The signature file base name
+   * @param unsign Whether existing signature files are removed
+   * @param attributes The main manifest attributes to add, if not present
+   * @param writer The writer for the signed jar
+   * @throws Exception If signing fails
+   */
+  void sign(ZipArchive jar, String signatureFileName, boolean unsign,
+            List<String> attributes, ZipWriter writer) throws Exception {
+    SigningCredentials credentials = loadKey();
+    PrivateKey privateKey = credentials.getPrivateKey();
+    X509Certificate[] certificateChain = credentials.getCertificateChain();
+    Map<String, byte[]> digests = digest(jar);
+    String extension = SignatureBlock.getExtension(privateKey);
+    String base = "META-INF/" + signatureFileName;
+    long time = System.currentTimeMillis();
+    ZipArchive.Entry metaInf = jar.getEntry("META-INF/");
+    if (null != metaInf)
+      writer.copy(jar, metaInf);
+    ManifestDigests manifest;
+    try (OutputStream out = writer.open(JarManifest.PATH, time)) {
+      manifest = writeManifest(jar, attributes, digests, out);
+    }
+    Signature signature = SignatureBlock.initSign(privateKey);
+    try (OutputStream out = writer.open(base + ".SF", time)) {
+      writeSignatureFile(manifest, signature, out);
+    }
+    writer.write(base + "." + extension, time, ZipArchive.DEFLATED,
+        SignatureBlock.create(privateKey, certificateChain, signature));
+    for (ZipArchive.Entry entry: ZipWriter.getWriteOrder(jar, reproducible)) {
+      String name = entry.name.toUpperCase(Locale.ENGLISH);
+      if (name.equals("META-INF/") || name.equals(JarManifest.PATH) ||
+          isSignatureFile(name, base))
+        continue; // Already written, or replaced
+      if (unsign && isSigningRelated(entry.name))
+        continue; // Removed
+      writer.copy(jar, entry);
+    }
+  }
+
+  /**
+   * Computes the digest of every entry that is signed, on the pool if there
+   * is one and the jar has more than one batch of entries.
+   * @param jar The jar
+   * @return The digests, by entry name, in central directory order
+   * @throws Exception If unable to read an entry
+   */
+  private Map<String, byte[]> digest(ZipArchive jar) throws Exception {
+    List<ZipArchive.Entry> entries = new ArrayList<>();
+    for (ZipArchive.Entry entry: jar.getEntries())
+      if (!entry.isDirectory() && !isSigningRelated(entry.name))
+        entries.add(entry);
+    byte[][] digests = new byte[entries.size()][];
+    ForkJoinPool pool = this.pool;
+    if (null != pool && entries.size() > BATCH) {
+      Queue<IOException> failures = new ConcurrentLinkedQueue<>();
+      pool.invoke(new DigestTask(jar, entries, 0, entries.size(), digests, failures));
+      if (!failures.isEmpty())
+        throw failures.peek();
+    } else digest(jar, entries, 0, entries.size(), digests);
+    Map<String, byte[]> result = new LinkedHashMap<>();
+    for (int i = 0; i < digests.length; ++i)
+      result.put(entries.get(i).name, digests[i]);
+    return result;
+  }
+
+  /**
+   * Writes the manifest with the added main attributes and the entry
+   * digests. The original manifest is read one section at a time. Sections
+   * for signed entries get the new digest; entries without a section get a
+   * new section at the end, in central directory order.
+   * @param jar The jar
+   * @param attributes The main manifest attributes to add, if not present
+   * @param digests The entry digests
+   * @param out The stream to write the manifest to
+   * @return The digests of the manifest and its sections
+   * @throws Exception If unable to read or write
+   */
+  private ManifestDigests writeManifest(
+      ZipArchive jar, List<String> attributes, Map<String, byte[]> digests,
+      OutputStream out) throws Exception {
+    MessageDigest digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+    DigestOutputStream manifestOut = new DigestOutputStream(
+        out, MessageDigest.getInstance(DIGEST_ALGORITHM));
+    ManifestDigests result = new ManifestDigests();
+    String digestName = DIGEST_ALGORITHM + "-Digest";
+    Set<String> written = new HashSet<>();
+    ZipArchive.Entry entry = jar.getEntry(JarManifest.PATH);
+    try (ManifestReader reader = null == entry ? null : new ManifestReader(jar.getInputStream(entry))) {
+      JarManifest main = null == reader
+          ? JarManifest.create(getCreatedBy())
+          : JarManifest.parse(reader.readMain());
+      main.addMainAttributes(attributes);
+      byte[] mainBytes = main.getMain();
+      manifestOut.write(mainBytes);
+      result.main = digest.digest(mainBytes);
+      JarManifest.Section section = null == reader ? null : reader.readSection();
+      for (; null != section; section = reader.readSection()) {
+        byte[] bytes = section.getBytes();
+        byte[] entryDigest = digests.get(section.name);
+        if (null != entryDigest && written.add(section.name))
+          bytes = JarManifest.putAttribute(bytes, digestName, encode(entryDigest));
+        manifestOut.write(bytes);
+        if (null != entryDigest)
+          result.add(section.name, digest.digest(bytes));
+      }
+    }
+    for (Map.Entry<String, byte[]> entryDigest: digests.entrySet()) {
+      if (written.contains(entryDigest.getKey()))
+        continue;
+      byte[] bytes = JarManifest.createSection(
+          entryDigest.getKey(), digestName, encode(entryDigest.getValue()));
+      manifestOut.write(bytes);
+      result.add(entryDigest.getKey(), digest.digest(bytes));
+    }
+    result.manifest = manifestOut.getMessageDigest().digest();
+    return result;
+  }
+
+  /**
+   * Writes the <code>.SF</code> file one section at a time, updating the
+   * signature with every byte written.
+   * @param manifest The digests of the manifest and its sections
+   * @param signature The signature to update
+   * @param out The stream to write the file to
+   * @throws Exception If unable to write or sign
+   */
+  private void writeSignatureFile(
+      ManifestDigests manifest, Signature signature, OutputStream out)
+      throws Exception {
+    ByteArrayOutputStream section = new ByteArrayOutputStream();
+    JarManifest.writeAttribute(section, "Signature-Version", "1.0");
+    JarManifest.writeAttribute(section, "Created-By", getCreatedBy());
+    JarManifest.writeAttribute(section, DIGEST_ALGORITHM + "-Digest-Manifest",
+        encode(manifest.manifest));
+    JarManifest.writeAttribute(section, DIGEST_ALGORITHM + "-Digest-Manifest-Main-Attributes",
+        encode(manifest.main));
+    section.write('\r');
+    section.write('\n');
+    write(section, signature, out);
+    for (int i = 0; i < manifest.names.size(); ++i) {
+      JarManifest.writeAttribute(section, "Name", manifest.names.get(i));
+      JarManifest.writeAttribute(section, DIGEST_ALGORITHM + "-Digest",
+          encode(manifest.sections.get(i)));
+      section.write('\r');
+      section.write('\n');
+      write(section, signature, out);
+    }
+  }
+
+  private static void write(ByteArrayOutputStream section, Signature signature, OutputStream out)
+      throws IOException, SignatureException {
+    byte[] bytes = section.toByteArray();
+    signature.update(bytes);
+    out.write(bytes);
+    section.reset();
+  }
+
+  /**
+   * The digests recorded in the <code>.SF</code> file.
+   */
+  private static final class ManifestDigests {
+
+    byte[] manifest;
+
+    byte[] main;
+
+    final List<String> names = new ArrayList<>();
+
+    final List<byte[]> sections = new ArrayList<>();
+
+    void add(String name, byte[] digest) {
+      names.add(name);
+      sections.add(digest);
+    }
+  }
+
+  private String getCreatedBy() {
+    return String.format("%s (%s)",
+        System.getProperty("java.version"), System.getProperty("java.vendor"));
+  }
+
+  /**
+   * Checks whether the parameter entry name is signing related. Signing
+   * related entries are not digested in the manifest.
+   * @param entryName The entry name to check
+   * @return True if and only if the entry is the manifest or signing data
+   */
+  static boolean isSigningRelated(String entryName) {
+    return JarManifest.PATH.equalsIgnoreCase(entryName) || RewriteJar.isSigningData(entryName);
+  }
+
+  private static boolean isSignatureFile(String upperCaseName, String base) {
+    return upperCaseName.equals(base + ".SF") || upperCaseName.equals(base + ".RSA") ||
+        upperCaseName.equals(base + ".DSA") || upperCaseName.equals(base + ".EC");
+  }
+
+  private static byte[] digest(MessageDigest digest, ZipArchive jar,
+                               ZipArchive.Entry entry, byte[] buffer) throws IOException {
+    try (InputStream in = jar.getInputStream(entry)) {
+      for (int n = in.read(buffer); n >= 0; n = in.read(buffer))
+        digest.update(buffer, 0, n);
+    }
+    return digest.digest();
+  }
+
+  /**
+   * Digests a range of entries into the matching range of the digests,
+   * splitting the range in two until each part is small enough. Each task
+   * reads its own entries with positional reads; read failures are
+   * collected rather than thrown, so the first is reported as it is.
+   */
+  private static final class DigestTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final ZipArchive jar;
+
+    private final List<ZipArchive.Entry> entries;
+
+    private final int from;
+
+    private final int to;
+
+    private final byte[][] digests;
+
+    private final Queue<IOException> failures;
+
+    DigestTask(ZipArchive jar, List<ZipArchive.Entry> entries, int from, int to,
+               byte[][] digests, Queue<IOException> failures) {
+      this.jar = jar;
+      this.entries = entries;
+      this.from = from;
+      this.to = to;
+      this.digests = digests;
+      this.failures = failures;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from > BATCH) {
+        int middle = (from + to) >>> 1;
+        invokeAll(
+            new DigestTask(jar, entries, from, middle, digests, failures),
+            new DigestTask(jar, entries, middle, to, digests, failures));
+        return;
+      }
+      if (!failures.isEmpty())
+        return; // Another batch failed
+      try {
+        digest(jar, entries, from, to, digests);
+      } catch (IOException x) {
+        failures.add(x);
+      }
+    }
+  }
+
+  private static void digest(ZipArchive jar, List<ZipArchive.Entry> entries,
+                             int from, int to, byte[][] digests) throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+    } catch (GeneralSecurityException x) {
+      throw new IllegalStateException("Unsupported digest: " + DIGEST_ALGORITHM, x);
+    }
+    byte[] buffer = new byte[65536];
+    for (int i = from; i < to; ++i)
+      digests[i] = digest(digest, jar, entries.get(i), buffer);
+  }
+
+  private static String encode(byte[] bytes) {
+    return Base64.getEncoder().encodeToString(bytes);
+  }
+}
@@ -17,13 +17,47 @@
 package com.brambolt.util.jar;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
- * Signs jar files using a jar signer executable provided with a JDK.
+ * <p>Signs jar files using a jar signer executable provided with a JDK.</p>
+ *
+ * <p>Jars can be signed asynchronously with {@link #applyAsync}, which
+ * returns at once and runs up to <code>maxProcesses</code> jar signer
+ * processes at the same time. The standard output and error of each process
+ * are captured separately, so the output of concurrent processes is never
+ * interleaved. A process that runs longer than the timeout, or whose future
+ * is cancelled, is destroyed.</p>
  */
-public class SignWithJarsigner {
+public class SignWithJarsigner implements Signer {
+
+  /**
+   * The captured output of a jar signer process.
+   */
+  public static final class Output {
+
+    public final String stdout;
+
+    public final String stderr;
+
+    Output(String stdout, String stderr) {
+      this.stdout = stdout;
+      this.stderr = stderr;
+    }
+  }
 
   public final String signatureFileNamePrefix;
 
@@ -39,6 +73,12 @@ public class SignWithJarsigner {
 
   private File jarsigner;
 
+  private int maxProcesses = Runtime.getRuntime().availableProcessors();
+
+  private long timeoutMillis = 0L;
+
+  private ThreadPoolExecutor executor;
+
   public SignWithJarsigner(
       String signatureFileNamePrefix, File signingStore,
       String signingStorePassword, String signingAlias,
@@ -56,9 +96,56 @@ public class SignWithJarsigner {
       this.signingStorePassword = signingStorePassword;
       this.signingAlias = signingAlias;
       this.signingKeyPassword = signingKeyPassword;
+      this.javaHome = javaHome;
+      this.jarsigner = jarsigner;
+  }
+
+  /**
+   * Sets the maximum number of jar signer processes running at the same
+   * time. Must be set before the first jar is signed.
+   * @param maxProcesses The process limit, at least one
+   * @return The signer
+   */
+  public SignWithJarsigner setMaxProcesses(int maxProcesses) {
+    this.maxProcesses = Math.max(1, maxProcesses);
+    return this;
   }
 
+  /**
+   * Sets the time a jar signer process may run before it is destroyed.
+   * @param timeout The timeout, or zero for no timeout
+   * @param unit The timeout unit
+   * @return The signer
+   */
+  public SignWithJarsigner setTimeout(long timeout, TimeUnit unit) {
+    this.timeoutMillis = Math.max(0L, unit.toMillis(timeout));
+    return this;
+  }
+
+  /**
+   * Signs the parameter jar file and waits for the jar signer to complete.
+   * @param jarFile The jar file to sign
+   * @throws Exception If signing fails
+   */
+  @Override
   public void apply(File jarFile) throws Exception {
+    try {
+      applyAsync(jarFile).get();
+    } catch (ExecutionException x) {
+      Throwable cause = x.getCause();
+      throw cause instanceof Exception ? (Exception) cause : x;
+    }
+  }
+
+  /**
+   * Starts signing the parameter jar file. The jar signer process is started
+   * when fewer than <code>maxProcesses</code> processes are running.
+   * Cancelling the returned future destroys the process.
+   * @param jarFile The jar file to sign
+   * @return The captured process output, when the jar is signed
+   * @throws IllegalStateException If the jar signer or prefix is missing
+   */
+  public CompletableFuture<Output> applyAsync(File jarFile) {
     File signer = (null != jarsigner) ? jarsigner : findJarsigner();
     if (null == signer)
       throw new IllegalStateException("No jarsigner assigned");
@@ -76,18 +163,122 @@ public class SignWithJarsigner {
         "-keypass", signingKeyPassword,
         jarFile.getAbsolutePath(),
         signingAlias);
-    execute(command);
+    return executeAsync(command);
+  }
+
+  /**
+   * Runs the parameter command on the process executor.
+   * @param command The command to run
+   * @return The captured output, when the process exits successfully
+   */
+  CompletableFuture<Output> executeAsync(List<String> command) {
+    AtomicReference<Process> process = new AtomicReference<>();
+    CompletableFuture<Output> future = new CompletableFuture<Output>() {
+      @Override
+      public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean cancelled = super.cancel(mayInterruptIfRunning);
+        Process running = process.get();
+        if (null != running)
+          running.destroyForcibly();
+        return cancelled;
+      }
+    };
+    getExecutor().execute(() -> {
+      if (future.isDone())
+        return; // Cancelled before the process was started
+      try {
+        future.complete(execute(command, process, future));
+      } catch (Throwable x) {
+        future.completeExceptionally(x);
+      }
+    });
+    return future;
+  }
+
+  /**
+   * Runs the parameter command and waits for it to exit. The standard
+   * output and error are redirected to temporary files, so the process can
+   * never block on a full pipe.
+   * @param command The command to run
+   * @param process Receives the process, so it can be destroyed on cancel
+   * @param future The future of the command, checked for cancellation
+   * @return The captured output
+   * @throws Exception If the process fails, times out or is cancelled
+   */
+  private Output execute(List<String> command, AtomicReference<Process> process,
+                         CompletableFuture<Output> future) throws Exception {
+    File stdout = File.createTempFile("jarsigner", ".out");
+    File stderr = File.createTempFile("jarsigner", ".err");
+    try {
+      process.set(new ProcessBuilder()
+          .command(command)
+          .redirectOutput(stdout)
+          .redirectError(stderr)
+          .start());
+      if (future.isCancelled())
+        process.get().destroyForcibly();
+      boolean exited = true;
+      if (timeoutMillis > 0)
+        exited = process.get().waitFor(timeoutMillis, TimeUnit.MILLISECONDS);
+      else process.get().waitFor();
+      Output output = new Output(read(stdout), read(stderr));
+      if (future.isCancelled())
+        throw new CancellationException(formatMessage(command));
+      if (!exited) {
+        process.get().destroyForcibly();
+        throw new Exception(String.format("%s (timed out after %d ms)",
+            formatMessage(command), timeoutMillis));
+      }
+      if (0 != process.get().exitValue())
+        throw new Exception(formatMessage(command, output));
+      return output;
+    } finally {
+      Files.deleteIfExists(stdout.toPath());
+      Files.deleteIfExists(stderr.toPath());
+    }
   }
 
-  void execute(List<String> command) throws Exception {
-    Process process = new ProcessBuilder().inheritIO().command(command).start();
-    int exitValue = process.waitFor();
-    if (0 != exitValue)
-      throw new Exception(formatMessage(command));
+  private static String read(File file) throws IOException {
+    return new String(Files.readAllBytes(file.toPath()), Charset.defaultCharset()).trim();
+  }
+
+  private synchronized ThreadPoolExecutor getExecutor() {
+    if (null == executor) {
+      AtomicInteger count = new AtomicInteger();
+      executor = new ThreadPoolExecutor(maxProcesses, maxProcesses,
+          30L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "jarsigner-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          });
+      executor.allowCoreThreadTimeOut(true);
+    }
+    return executor;
   }
 
   String formatMessage(List<String> command) {
-    return String.format("Jarsigner failed: %s", String.join(" ", command));
+    return String.format("Jarsigner failed: %s", String.join(" ", mask(command)));
+  }
+
+  /**
+   * Replaces the key store and key passwords in the parameter command, so
+   * it can be logged and reported.
+   * @param command The command
+   * @return A copy of the command with the passwords masked
+   */
+  static List<String> mask(List<String> command) {
+    List<String> masked = new ArrayList<>(command);
+    for (int i = 0; i + 1 < masked.size(); ++i)
+      if ("-storepass".equals(masked.get(i)) || "-keypass".equals(masked.get(i)))
+        masked.set(++i, "****");
+    return masked;
+  }
+
+  private String formatMessage(List<String> command, Output output) {
+    String details = output.stderr.isEmpty() ? output.stdout : output.stderr;
+    return details.isEmpty()
+        ? formatMessage(command)
+        : String.format("%s%n%s", formatMessage(command), details);
   }
 
   File findJarsigner() {
@@ -106,7 +297,7 @@ public class SignWithJarsigner {
   }
 
   File findJavaHome() {
-    return new File(System.getProperty("java.home"));
+    return null != javaHome ? javaHome : new File(System.getProperty("java.home"));
   }
 
   String getJarsignerFileName() {
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2017-2020 Brambolt ehf.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brambolt.util.jar;
+
+import java.io.ByteArrayOutputStream;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+
+/**
+ * <p>Creates the signature block file for a signed jar, the
+ * <code>.RSA</code>, <code>.DSA</code> or <code>.EC</code> file next to the
+ * <code>.SF</code> file in the <code>META-INF</code> directory.</p>
+ *
+ * <p>The block is a detached PKCS#7 <code>SignedData</code> structure over
+ * the <code>.SF</code> file content, without signed attributes, which is the
+ * format the <code>jarsigner</code> executable produces when no timestamp
+ * authority is used.</p>
+ */
+final class SignatureBlock {
+
+    private static final String OID_SIGNED_DATA = "1.2.840.113549.1.7.2";
+
+    private static final String OID_DATA = "1.2.840.113549.1.7.1";
+
+    private static final String OID_SHA_256 = "2.16.840.1.101.3.4.2.1";
+
+    private static final String OID_RSA = "1.2.840.113549.1.1.1";
+
+    private static final String OID_SHA_256_WITH_DSA = "2.16.840.1.101.3.4.3.2";
+
+    private static final String OID_SHA_256_WITH_ECDSA = "1.2.840.10045.4.3.2";
+
+    private SignatureBlock() {}
+
+    /**
+     * Finds the signature block file extension for the parameter key.
+     * @param key The signing key
+     * @return The file extension, without the period
+     * @throws IllegalArgumentException If the key algorithm is not supported
+     */
+    static String getExtension(PrivateKey key) {
+        switch (key.getAlgorithm()) {
+            case "RSA": return "RSA";
+            case "DSA": return "DSA";
+            case "EC": return "EC";
+            default: throw new IllegalArgumentException(
+                "Unsupported signing key algorithm: " + key.getAlgorithm());
+        }
+    }
+
+    /**
+     * Signs the parameter content and creates the signature block.
+     * @param key The signing key
+     * @param chain The certificate chain of the signing key
+     * @param content The <code>.SF</code> file content to sign
+     * @return The DER-encoded signature block
+     * @throws GeneralSecurityException If unable to sign
+     */
+    static byte[] create(PrivateKey key, X509Certificate[] chain, byte[] content)
+        throws GeneralSecurityException {
+        Signature signature = initSign(key);
+        signature.update(content);
+        return create(key, chain, signature);
+    }
+
+    /**
+     * Creates a signature initialized with the parameter key, so the
+     * <code>.SF</code> file content can be signed as it is written.
+     * @param key The signing key
+     * @return The signature
+     * @throws GeneralSecurityException If unable to initialize the signature
+     */
+    static Signature initSign(PrivateKey key) throws GeneralSecurityException {
+        Signature signature = Signature.getInstance(getSignatureAlgorithm(getExtension(key)));
+        signature.initSign(key);
+        return signature;
+    }
+
+    /**
+     * Creates the signature block from a signature that has been updated
+     * with the complete <code>.SF</code> file content.
+     * @param key The signing key
+     * @param chain The certificate chain of the signing key
+     * @param signature The signature, from <code>initSign</code>
+     * @return The DER-encoded signature block
+     * @throws GeneralSecurityException If unable to sign
+     */
+    static byte[] create(PrivateKey key, X509Certificate[] chain, Signature signature)
+        throws GeneralSecurityException {
+        String extension = getExtension(key);
+        byte[] signed = signature.sign();
+        X509Certificate certificate = chain[0];
+        byte[] signerInfo = sequence(
+            integer(new byte[] { 1 }),
+            sequence(
+                certificate.getIssuerX500Principal().getEncoded(),
+                integer(certificate.getSerialNumber().toByteArray())),
+            sequence(oid(OID_SHA_256)),
+            getEncryptionAlgorithm(extension),
+            tlv(0x04, signed));
+        ByteArrayOutputStream certificates = new ByteArrayOutputStream();
+        for (X509Certificate c: chain) {
+            byte[] encoded = c.getEncoded();
+            certificates.write(encoded, 0, encoded.length);
+        }
+        byte[] signedData = sequence(
+            integer(new byte[] { 1 }),
+            tlv(0x31, sequence(oid(OID_SHA_256))),
+            sequence(oid(OID_DATA)),
+            tlv(0xA0, certificates.toByteArray()),
+            tlv(0x31, signerInfo));
+        return sequence(oid(OID_SIGNED_DATA), tlv(0xA0, signedData));
+    }
+
+    private static String getSignatureAlgorithm(String extension) {
+        switch (extension) {
+            case "RSA": return "SHA256withRSA";
+            case "DSA": return "SHA256withDSA";
+            default: return "SHA256withECDSA";
+        }
+    }
+
+    private static byte[] getEncryptionAlgorithm(String extension) {
+        switch (extension) {
+            case "RSA": return sequence(oid(OID_RSA), tlv(0x05, new byte[0]));
+            case "DSA": return sequence(oid(OID_SHA_256_WITH_DSA));
+            default: return sequence(oid(OID_SHA_256_WITH_ECDSA));
+        }
+    }
+
+    private static byte[] sequence(byte[]... elements) {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        for (byte[] element: elements)
+            content.write(element, 0, element.length);
+        return tlv(0x30, content.toByteArray());
+    }
+
+    private static byte[] integer(byte[] value) {
+        return tlv(0x02, value);
+    }
+
+    private static byte[] oid(String oid) {
+        String[] components = oid.split("\\.");
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        content.write(Integer.parseInt(components[0]) * 40 + Integer.parseInt(components[1]));
+        for (int i = 2; i < components.length; ++i) {
+            long value = Long.parseLong(components[i]);
+            int shift = 63 - Long.numberOfLeadingZeros(value | 1);
+            shift -= shift % 7;
+            for (; shift > 0; shift -= 7)
+                content.write((int) (0x80 | ((value >>> shift) & 0x7F)));
+            content.write((int) (value & 0x7F));
+        }
+        return tlv(0x06, content.toByteArray());
+    }
+
+    private static byte[] tlv(int tag, byte[] value) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(value.length + 6);
+        out.write(tag);
+        int length = value.length;
+        if (length < 0x80)
+            out.write(length);
+        else {
+            int bytes = (32 - Integer.numberOfLeadingZeros(length) + 7) / 8;
+            out.write(0x80 | bytes);
+            for (int i = bytes - 1; i >= 0; --i)
+                out.write((length >>> (8 * i)) & 0xFF);
+        }
+        out.write(value, 0, value.length);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2017-2020 Brambolt ehf.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brambolt.util.jar;
+
+import java.io.File;
+
+/**
+ * Signs jar files in place.
+ */
+public interface Signer {
+
+    /**
+     * Signs the parameter jar file. The file is replaced by the signed jar.
+     * @param jarFile The jar file to sign
+     * @throws Exception If signing fails
+     */
+    void apply(File jarFile) throws Exception;
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2017-2020 Brambolt ehf.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brambolt.util.jar;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.Certificate;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>A persistent cache of signed jars. The cache key combines a digest of
+ * the jar content before processing with the signing certificate
+ * fingerprint, the signature file name prefix and the manifest attributes,
+ * so a jar that was processed before with the same parameters can be
+ * replaced with the earlier result instead of being signed again.</p>
+ *
+ * <p>The cache is a directory of jar files named by key. The total size is
+ * capped; when the cap is exceeded, the least recently used jars are
+ * evicted. The file modification time records the last use.</p>
+ */
+public class SigningCache {
+
+    /**
+     * The default size cap, one gigabyte.
+     */
+    public static final long DEFAULT_MAX_BYTES = 1024L * 1024L * 1024L;
+
+    private static final String SUFFIX = ".jar";
+
+    private final File dir;
+
+    private final long maxBytes;
+
+    private final AtomicInteger hits = new AtomicInteger();
+
+    private final AtomicInteger misses = new AtomicInteger();
+
+    /**
+     * Constructor.
+     * @param dir The cache directory, created if it does not exist
+     * @param maxBytes The maximum total size of the cached jars
+     */
+    public SigningCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return The cache directory
+     */
+    public File getDir() {
+        return dir;
+    }
+
+    /**
+     * @return The number of jars restored from the cache
+     */
+    public int getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return The number of jars looked up but not found
+     */
+    public int getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Computes the cache key for a jar.
+     * @param jar The jar, before processing
+     * @param certificateFingerprint The signing certificate fingerprint
+     * @param signatureFileNamePrefix The signature file name prefix
+     * @param attributes The manifest attributes added to the jar
+     * @param unsign Whether existing signing data is removed
+     * @return The cache key
+     * @throws IOException If unable to read the jar
+     */
+    public String key(File jar, String certificateFingerprint,
+                      String signatureFileNamePrefix, List<String> attributes,
+                      boolean unsign) throws IOException {
+        return key(jar, certificateFingerprint, signatureFileNamePrefix, attributes, unsign, false);
+    }
+
+    /**
+     * Computes the cache key for a jar. Reproducible jars get keys of their
+     * own, since their entry times and order differ.
+     * @param jar The jar, before processing
+     * @param certificateFingerprint The signing certificate fingerprint
+     * @param signatureFileNamePrefix The signature file name prefix
+     * @param attributes The manifest attributes added to the jar
+     * @param unsign Whether existing signing data is removed
+     * @param reproducible Whether the jar is written reproducibly
+     * @return The cache key
+     * @throws IOException If unable to read the jar
+     */
+    public String key(File jar, String certificateFingerprint,
+                      String signatureFileNamePrefix, List<String> attributes,
+                      boolean unsign, boolean reproducible) throws IOException {
+        MessageDigest digest = sha256();
+        try (InputStream in = new FileInputStream(jar)) {
+            byte[] buffer = new byte[65536];
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer))
+                digest.update(buffer, 0, n);
+        }
+        update(digest, certificateFingerprint);
+        update(digest, signatureFileNamePrefix);
+        for (String attribute: attributes)
+            update(digest, attribute);
+        update(digest, Boolean.toString(unsign));
+        if (reproducible)
+            update(digest, "reproducible"); // Keeps the earlier keys valid
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Replaces the parameter jar with the cached jar for the key, if any.
+     * @param key The cache key
+     * @param jar The jar to replace
+     * @return True if and only if the jar was restored from the cache
+     * @throws IOException If unable to copy the cached jar
+     */
+    public boolean restore(String key, File jar) throws IOException {
+        File cached = new File(dir, key + SUFFIX);
+        if (!cached.isFile()) {
+            misses.incrementAndGet();
+            return false;
+        }
+        try {
+            Files.copy(cached.toPath(), jar.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.setLastModifiedTime(cached.toPath(), FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (NoSuchFileException x) {
+            misses.incrementAndGet(); // Evicted concurrently
+            return false;
+        }
+        hits.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Adds the parameter processed jar to the cache, then evicts the least
+     * recently used jars if the cache is larger than the cap.
+     * @param key The cache key
+     * @param jar The processed jar
+     * @throws IOException If unable to copy the jar
+     */
+    public void store(String key, File jar) throws IOException {
+        Files.createDirectories(dir.toPath());
+        File tmp = File.createTempFile("cache-", ".tmp", dir);
+        try {
+            Files.copy(jar.toPath(), tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            RewriteArchive.move(tmp.toPath(), new File(dir, key + SUFFIX).toPath());
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+        evict();
+    }
+
+    /**
+     * Deletes the least recently used jars until the cache is within the cap.
+     */
+    synchronized void evict() {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        if (null == files)
+            return;
+        long total = 0;
+        for (File file: files)
+            total += file.length();
+        if (total <= maxBytes)
+            return;
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File file: files) {
+            if (total <= maxBytes)
+                break;
+            long length = file.length();
+            if (file.delete())
+                total -= length;
+        }
+    }
+
+    /**
+     * Computes the SHA-256 fingerprint of the parameter certificate.
+     * @param certificate The certificate
+     * @return The fingerprint, as a hex string
+     * @throws GeneralSecurityException If the certificate can not be encoded
+     */
+    public static String fingerprint(Certificate certificate) throws GeneralSecurityException {
+        return toHex(sha256().digest(certificate.getEncoded()));
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        digest.update((byte) 0);
+        if (null != value)
+            digest.update(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException x) {
+            throw new IllegalStateException(x); // Every JVM supports SHA-256
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b: bytes)
+            hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+}
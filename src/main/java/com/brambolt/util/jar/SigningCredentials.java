@@ -0,0 +1,174 @@
+/*
+ * Copyright 2017-2020 Brambolt ehf.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brambolt.util.jar;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import javax.security.auth.DestroyFailedException;
+
+/**
+ * <p>A signing key and certificate chain unlocked from a key store. Loading
+ * a key store with a strong key derivation function can take hundreds of
+ * milliseconds, so the credentials can be unlocked once and shared by every
+ * signer that uses the same key.</p>
+ *
+ * <p>The key material is held until it is released. Signing with released
+ * credentials fails.</p>
+ */
+public class SigningCredentials {
+
+    /**
+     * Unlocks signing credentials, directly or from a shared session.
+     */
+    public interface Source {
+
+        /**
+         * Unlocks the credentials for a key store alias.
+         * @param signingStore The key store file
+         * @param signingStorePassword The key store password
+         * @param signingAlias The alias of the signing key
+         * @param signingKeyPassword The signing key password
+         * @return The credentials
+         * @throws GeneralSecurityException If the key can not be recovered
+         * @throws IOException If unable to read the key store
+         */
+        SigningCredentials unlock(
+            File signingStore, String signingStorePassword,
+            String signingAlias, String signingKeyPassword)
+            throws GeneralSecurityException, IOException;
+    }
+
+    /**
+     * Reads the key store every time credentials are unlocked.
+     */
+    public static final Source DIRECT = SigningCredentials::unlock;
+
+    private final String description;
+
+    private final String fingerprint;
+
+    private PrivateKey privateKey;
+
+    private X509Certificate[] certificateChain;
+
+    private SigningCredentials(
+        String description, PrivateKey privateKey, X509Certificate[] certificateChain)
+        throws GeneralSecurityException {
+        this.description = description;
+        this.privateKey = privateKey;
+        this.certificateChain = certificateChain;
+        this.fingerprint = SigningCache.fingerprint(certificateChain[0]);
+    }
+
+    /**
+     * Reads the signing key and certificate chain from a key store.
+     * @param signingStore The key store file
+     * @param signingStorePassword The key store password
+     * @param signingAlias The alias of the signing key
+     * @param signingKeyPassword The signing key password
+     * @return The credentials
+     * @throws GeneralSecurityException If the key can not be recovered
+     * @throws IOException If unable to read the key store
+     * @throws IllegalStateException If there is no key with the alias
+     */
+    public static SigningCredentials unlock(
+        File signingStore, String signingStorePassword,
+        String signingAlias, String signingKeyPassword)
+        throws GeneralSecurityException, IOException {
+        if (null == signingStore)
+            throw new IllegalStateException("No signing store provided");
+        KeyStore store = KeyStore.getInstance(KeyStore.getDefaultType());
+        try (InputStream in = new FileInputStream(signingStore)) {
+            store.load(in, toCharArray(signingStorePassword));
+        }
+        PrivateKey key = (PrivateKey) store.getKey(signingAlias, toCharArray(signingKeyPassword));
+        Certificate[] chain = store.getCertificateChain(signingAlias);
+        if (null == key || null == chain || 0 == chain.length)
+            throw new IllegalStateException(String.format(
+                "No signing key with alias %s in %s", signingAlias, signingStore));
+        X509Certificate[] x509Chain = new X509Certificate[chain.length];
+        for (int i = 0; i < chain.length; ++i)
+            x509Chain[i] = (X509Certificate) chain[i];
+        return new SigningCredentials(signingAlias + " in " + signingStore, key, x509Chain);
+    }
+
+    private static char[] toCharArray(String password) {
+        return null == password ? null : password.toCharArray();
+    }
+
+    /**
+     * @return The signing key
+     * @throws IllegalStateException If the credentials were released
+     */
+    public synchronized PrivateKey getPrivateKey() {
+        checkNotReleased();
+        return privateKey;
+    }
+
+    /**
+     * @return The certificate chain, starting with the signing certificate
+     * @throws IllegalStateException If the credentials were released
+     */
+    public synchronized X509Certificate[] getCertificateChain() {
+        checkNotReleased();
+        return certificateChain.clone();
+    }
+
+    /**
+     * @return The SHA-256 fingerprint of the signing certificate, as used in
+     *  signed jar cache keys
+     */
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * @return True if and only if the credentials were released
+     */
+    public synchronized boolean isReleased() {
+        return null == privateKey;
+    }
+
+    /**
+     * Releases the key material. The key is destroyed if the provider
+     * supports it; otherwise the references are dropped.
+     */
+    public synchronized void release() {
+        if (null == privateKey)
+            return; // Already released
+        try {
+            if (!privateKey.isDestroyed())
+                privateKey.destroy();
+        } catch (DestroyFailedException ignored) {
+            // Most providers do not support destroying keys
+        }
+        privateKey = null;
+        certificateChain = null;
+    }
+
+    private void checkNotReleased() {
+        if (null == privateKey)
+            throw new IllegalStateException("Signing credentials released: " + description);
+    }
+}
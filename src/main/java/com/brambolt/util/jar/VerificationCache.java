@@ -0,0 +1,253 @@
+/*
+ * Copyright 2017-2020 Brambolt ehf.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brambolt.util.jar;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>A persistent cache of jars that passed a check. The cache key combines
+ * a digest of the jar bytes with the signature file name prefix and the
+ * manifest attributes checked for, so a jar that passed before with the same
+ * parameters is skipped without being opened.</p>
+ *
+ * <p>The cache is a directory of empty marker files named by key. For jars
+ * nested in a WAR file the digest is computed over the stored entry bytes,
+ * without decompressing them, together with the compression method, and
+ * such keys never match the key of a jar file. The file modification time
+ * records the last use, so stale markers can be pruned by age.</p>
+ */
+public class VerificationCache {
+
+    /**
+     * Included in every key, changed when the checks change so that earlier
+     * results are not reused.
+     */
+    private static final String VERSION = "1";
+
+    private static final String SUFFIX = ".ok";
+
+    private final File dir;
+
+    private final AtomicInteger hits = new AtomicInteger();
+
+    private final AtomicInteger misses = new AtomicInteger();
+
+    /**
+     * Constructor.
+     * @param dir The cache directory, created if it does not exist
+     */
+    public VerificationCache(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * @return The cache directory
+     */
+    public File getDir() {
+        return dir;
+    }
+
+    /**
+     * @return The number of jars found in the cache
+     */
+    public int getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return The number of jars looked up but not found
+     */
+    public int getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return The share of lookups found in the cache, from 0 to 1
+     */
+    public double getHitRate() {
+        int lookups = hits.get() + misses.get();
+        return 0 == lookups ? 0.0 : (double) hits.get() / lookups;
+    }
+
+    /**
+     * Computes the cache key for a jar file.
+     * @param jar The jar file
+     * @param signatureFileNamePrefix The signature file name prefix checked for
+     * @param attributes The manifest attributes checked for
+     * @return The cache key
+     * @throws IOException If unable to read the jar
+     */
+    public String key(File jar, String signatureFileNamePrefix, List<String> attributes)
+        throws IOException {
+        return key(jar, signatureFileNamePrefix, attributes, false);
+    }
+
+    /**
+     * Computes the cache key for a jar file.
+     * @param jar The jar file
+     * @param signatureFileNamePrefix The signature file name prefix checked for
+     * @param attributes The manifest attributes checked for
+     * @param verify Whether signatures are verified
+     * @return The cache key
+     * @throws IOException If unable to read the jar
+     */
+    public String key(File jar, String signatureFileNamePrefix, List<String> attributes,
+                      boolean verify) throws IOException {
+        try (InputStream in = new FileInputStream(jar)) {
+            return key(in, "file", signatureFileNamePrefix, attributes, verify);
+        }
+    }
+
+    /**
+     * Computes the cache key for a jar nested in an archive. The stored
+     * entry bytes are digested as they are, without decompressing them.
+     * @param archive The archive
+     * @param entry The jar entry
+     * @param signatureFileNamePrefix The signature file name prefix checked for
+     * @param attributes The manifest attributes checked for
+     * @return The cache key
+     * @throws IOException If unable to read the entry
+     */
+    public String key(ZipArchive archive, ZipArchive.Entry entry,
+                      String signatureFileNamePrefix, List<String> attributes)
+        throws IOException {
+        return key(archive, entry, signatureFileNamePrefix, attributes, false);
+    }
+
+    /**
+     * Computes the cache key for a jar nested in an archive.
+     * @param archive The archive
+     * @param entry The jar entry
+     * @param signatureFileNamePrefix The signature file name prefix checked for
+     * @param attributes The manifest attributes checked for
+     * @param verify Whether signatures are verified
+     * @return The cache key
+     * @throws IOException If unable to read the entry
+     */
+    public String key(ZipArchive archive, ZipArchive.Entry entry,
+                      String signatureFileNamePrefix, List<String> attributes,
+                      boolean verify) throws IOException {
+        try (InputStream in = archive.getRawInputStream(entry)) {
+            return key(in, "entry:" + entry.method, signatureFileNamePrefix, attributes, verify);
+        }
+    }
+
+    private String key(InputStream in, String source, String signatureFileNamePrefix,
+                       List<String> attributes, boolean verify) throws IOException {
+        MessageDigest digest = sha256();
+        byte[] buffer = new byte[65536];
+        for (int n = in.read(buffer); n >= 0; n = in.read(buffer))
+            digest.update(buffer, 0, n);
+        update(digest, VERSION);
+        update(digest, source);
+        update(digest, signatureFileNamePrefix);
+        if (null != attributes)
+            for (String attribute: attributes)
+                update(digest, attribute);
+        update(digest, Boolean.toString(verify));
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Looks up a key, recording a hit or a miss.
+     * @param key The cache key
+     * @return True if and only if a jar with the key passed before
+     */
+    public boolean contains(String key) {
+        File marker = new File(dir, key + SUFFIX);
+        if (!marker.isFile()) {
+            misses.incrementAndGet();
+            return false;
+        }
+        marker.setLastModified(System.currentTimeMillis());
+        hits.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Records that a jar with the parameter key passed.
+     * @param key The cache key
+     * @throws IOException If unable to write the marker file
+     */
+    public void add(String key) throws IOException {
+        Files.createDirectories(dir.toPath());
+        File marker = new File(dir, key + SUFFIX);
+        if (!marker.createNewFile())
+            marker.setLastModified(System.currentTimeMillis());
+    }
+
+    /**
+     * Removes all entries, so every jar is checked again.
+     * @return The number of entries removed
+     */
+    public int invalidate() {
+        File[] markers = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        if (null == markers)
+            return 0;
+        int removed = 0;
+        for (File marker: markers)
+            if (marker.delete())
+                removed++;
+        return removed;
+    }
+
+    /**
+     * Removes the entries not used since the parameter time.
+     * @param time The time, in milliseconds since the epoch
+     * @return The number of entries removed
+     */
+    public int invalidate(long time) {
+        File[] markers = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        if (null == markers)
+            return 0;
+        int removed = 0;
+        for (File marker: markers)
+            if (marker.lastModified() < time && marker.delete())
+                removed++;
+        return removed;
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        digest.update((byte) 0);
+        if (null != value)
+            digest.update(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException x) {
+            throw new IllegalStateException(x); // Every JVM supports SHA-256
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b: bytes)
+            hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+}
@@ -0,0 +1,595 @@
+/*
+ * Copyright 2017-2020 Brambolt ehf.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brambolt.util.jar;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * <p>Verifies the signatures of a jar. The signature block is checked against
+ * the <code>.SF</code> file, the <code>.SF</code> file against the manifest,
+ * and the digest of every entry against the manifest. Every entry other than
+ * the signing data itself must be signed.</p>
+ *
+ * <p>The entry digests are computed on a fork/join pool, a batch of entries
+ * per task, so verifying a large jar scales with the number of cores. The
+ * signer certificate is taken from the signature block as it is; whether it
+ * is trusted or valid is not checked.</p>
+ */
+public class VerifySigningData {
+
+    private static final String OID_SIGNED_DATA = "1.2.840.113549.1.7.2";
+
+    private static final String OID_MESSAGE_DIGEST = "1.2.840.113549.1.9.4";
+
+    /**
+     * The digest attribute prefixes to look for, strongest first.
+     */
+    private static final String[] DIGESTS = { "SHA-512", "SHA-384", "SHA-256", "SHA1", "SHA-1" };
+
+    static final String[] BLOCK_EXTENSIONS = { ".RSA", ".DSA", ".EC" };
+
+    /**
+     * The number of entries digested by one fork/join task.
+     */
+    private static final int BATCH = 8;
+
+    /**
+     * The signature file name prefix to verify, or null to verify every
+     * signature found.
+     */
+    private final String signatureFileNamePrefix;
+
+    private final ForkJoinPool pool;
+
+    /**
+     * Constructor. Entry digests are computed on the common pool.
+     * @param signatureFileNamePrefix The signature file name prefix to verify,
+     *                                or null for every signature
+     */
+    public VerifySigningData(String signatureFileNamePrefix) {
+        this(signatureFileNamePrefix, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Constructor.
+     * @param signatureFileNamePrefix The signature file name prefix to verify,
+     *                                or null for every signature
+     * @param pool The pool to compute entry digests on
+     */
+    public VerifySigningData(String signatureFileNamePrefix, ForkJoinPool pool) {
+        this.signatureFileNamePrefix =
+            null == signatureFileNamePrefix || signatureFileNamePrefix.isEmpty()
+                ? null : signatureFileNamePrefix;
+        this.pool = pool;
+    }
+
+    /**
+     * Verifies the parameter jar.
+     * @param jar The jar to verify
+     * @return The jar, if verification succeeds
+     * @throws IllegalStateException If the jar is not signed, or if a
+     *                               signature or digest does not match
+     * @throws IOException If unable to read the jar
+     */
+    public ZipArchive apply(ZipArchive jar) throws IOException {
+        List<SignatureFile> signatures = readSignatureFiles(jar);
+        Map<String, Digest> expected = readManifest(jar, signatures);
+        Set<String> signed = new HashSet<>();
+        boolean all = false;
+        for (SignatureFile signature: signatures) {
+            signature.throwIfInvalid();
+            if (signature.manifestMatched)
+                all = true;
+            else signed.addAll(signature.sections.keySet());
+        }
+        List<ZipArchive.Entry> entries = new ArrayList<>();
+        for (ZipArchive.Entry entry: jar.getEntries()) {
+            if (entry.isDirectory() || isSigningRelated(entry.name))
+                continue;
+            if (!expected.containsKey(entry.name) || !(all || signed.contains(entry.name)))
+                throw new IllegalStateException("Unsigned entry: " + entry.name);
+            entries.add(entry);
+        }
+        verifyEntries(jar, entries, expected);
+        return jar;
+    }
+
+    /**
+     * Reads the signature files to verify and checks each against its
+     * signature block.
+     * @param jar The jar
+     * @return The signature files
+     * @throws IOException If unable to read
+     */
+    private List<SignatureFile> readSignatureFiles(ZipArchive jar) throws IOException {
+        List<SignatureFile> signatures = new ArrayList<>();
+        for (ZipArchive.Entry entry: jar.getEntries("META-INF/")) {
+            String baseName = entry.name.substring("META-INF/".length());
+            if (baseName.contains("/") || !baseName.toUpperCase(Locale.ROOT).endsWith(".SF"))
+                continue;
+            String prefix = baseName.substring(0, baseName.length() - ".SF".length());
+            if (null != signatureFileNamePrefix && !signatureFileNamePrefix.equals(prefix))
+                continue;
+            byte[] content = jar.readAllBytes(entry);
+            verifyBlock(readBlock(jar, prefix), content, prefix);
+            signatures.add(new SignatureFile(prefix, content));
+        }
+        if (signatures.isEmpty())
+            throw new IllegalStateException(null == signatureFileNamePrefix
+                ? "Unsigned jar: " + jar.getName()
+                : String.format("Missing %s.SF", signatureFileNamePrefix));
+        return signatures;
+    }
+
+    private static byte[] readBlock(ZipArchive jar, String prefix) throws IOException {
+        for (String extension: BLOCK_EXTENSIONS) {
+            ZipArchive.Entry block = jar.getEntry("META-INF/" + prefix + extension);
+            if (null != block)
+                return jar.readAllBytes(block);
+        }
+        throw new IllegalStateException(String.format("Missing %s.RSA", prefix));
+    }
+
+    /**
+     * Reads the manifest one section at a time, comparing the manifest and
+     * section digests with each signature file, and collects the expected
+     * entry digests.
+     * @param jar The jar
+     * @param signatures The signature files
+     * @return The expected entry digests, by entry name
+     * @throws IOException If unable to read the manifest
+     */
+    private static Map<String, Digest> readManifest(ZipArchive jar, List<SignatureFile> signatures)
+        throws IOException {
+        ZipArchive.Entry entry = jar.getEntry(JarManifest.PATH);
+        if (null == entry)
+            throw new IllegalStateException("Missing " + JarManifest.PATH);
+        Map<String, Digest> expected = new HashMap<>();
+        try (ManifestReader reader = new ManifestReader(jar.getInputStream(entry))) {
+            byte[] main = reader.readMain();
+            for (SignatureFile signature: signatures)
+                signature.updateMain(main);
+            for (JarManifest.Section section = reader.readSection();
+                 null != section; section = reader.readSection()) {
+                for (SignatureFile signature: signatures)
+                    signature.updateSection(section);
+                Digest digest = Digest.find(section.getBytes());
+                if (null != section.name && null != digest)
+                    expected.put(section.name, digest);
+            }
+        }
+        return expected;
+    }
+
+    /**
+     * Compares the entry digests with the manifest on the fork/join pool.
+     * @param jar The jar
+     * @param entries The entries to verify
+     * @param expected The expected digests, by entry name
+     * @throws IllegalStateException If a digest does not match
+     * @throws IOException If unable to read an entry
+     */
+    private void verifyEntries(
+        ZipArchive jar, List<ZipArchive.Entry> entries, Map<String, Digest> expected)
+        throws IOException {
+        Queue<String> mismatches = new ConcurrentLinkedQueue<>();
+        Queue<IOException> failures = new ConcurrentLinkedQueue<>();
+        pool.invoke(new DigestTask(jar, entries, 0, entries.size(), expected, mismatches, failures));
+        if (!failures.isEmpty())
+            throw failures.peek();
+        if (!mismatches.isEmpty())
+            throw new IllegalStateException(
+                "Digest mismatch: " + new TreeSet<>(mismatches).first());
+    }
+
+    /**
+     * Checks the signature block against the <code>.SF</code> file content.
+     * @param block The DER-encoded PKCS#7 signature block
+     * @param content The <code>.SF</code> file content
+     * @param prefix The signature file name prefix, for messages
+     * @throws IllegalStateException If the signature does not match
+     */
+    static void verifyBlock(byte[] block, byte[] content, String prefix) {
+        try {
+            Der info = Der.read(block, 0);
+            List<Der> contentInfo = info.children();
+            if (!OID_SIGNED_DATA.equals(contentInfo.get(0).oid()))
+                throw new IllegalStateException("Invalid signature block: " + prefix);
+            List<Der> signedData = contentInfo.get(1).children().get(0).children();
+            List<Der> signerInfos = signedData.get(signedData.size() - 1).children();
+            if (signerInfos.isEmpty())
+                throw new IllegalStateException("Invalid signature block: " + prefix);
+            Certificates certificates = new Certificates(block);
+            for (Der signerInfo: signerInfos)
+                if (!verifySigner(signerInfo.children(), certificates, content))
+                    throw new IllegalStateException("Invalid signature: " + prefix);
+        } catch (GeneralSecurityException | IndexOutOfBoundsException x) {
+            throw new IllegalStateException("Unable to verify signature: " + prefix, x);
+        }
+    }
+
+    private static boolean verifySigner(List<Der> signerInfo, Certificates certificates, byte[] content)
+        throws GeneralSecurityException {
+        List<Der> issuerAndSerial = signerInfo.get(1).children();
+        X509Certificate certificate = certificates.find(
+            issuerAndSerial.get(0).encoded(), new BigInteger(issuerAndSerial.get(1).content()));
+        String digest = getDigestAlgorithm(signerInfo.get(2).children().get(0).oid());
+        int i = 3;
+        Der attributes = null;
+        if (0xA0 == signerInfo.get(i).tag)
+            attributes = signerInfo.get(i++);
+        String encryption = getEncryptionAlgorithm(signerInfo.get(i++).children().get(0).oid());
+        byte[] signed = signerInfo.get(i).content();
+        Signature signature = Signature.getInstance(digest.replace("-", "") + "with" + encryption);
+        signature.initVerify(certificate.getPublicKey());
+        if (null == attributes)
+            signature.update(content);
+        else {
+            byte[] messageDigest = MessageDigest.getInstance(digest).digest(content);
+            if (!Arrays.equals(messageDigest, findMessageDigest(attributes)))
+                return false;
+            byte[] encoded = attributes.encoded();
+            encoded[0] = 0x31; // Signed attributes are signed as a SET
+            signature.update(encoded);
+        }
+        return signature.verify(signed);
+    }
+
+    private static byte[] findMessageDigest(Der attributes) throws GeneralSecurityException {
+        for (Der attribute: attributes.children()) {
+            List<Der> fields = attribute.children();
+            if (OID_MESSAGE_DIGEST.equals(fields.get(0).oid()))
+                return fields.get(1).children().get(0).content();
+        }
+        return null;
+    }
+
+    private static String getDigestAlgorithm(String oid) throws GeneralSecurityException {
+        switch (oid) {
+            case "1.3.14.3.2.26": return "SHA-1";
+            case "2.16.840.1.101.3.4.2.1": return "SHA-256";
+            case "2.16.840.1.101.3.4.2.2": return "SHA-384";
+            case "2.16.840.1.101.3.4.2.3": return "SHA-512";
+            default: throw new GeneralSecurityException("Unsupported digest algorithm: " + oid);
+        }
+    }
+
+    private static String getEncryptionAlgorithm(String oid) throws GeneralSecurityException {
+        if (oid.startsWith("1.2.840.113549.1.1."))
+            return "RSA";
+        if (oid.startsWith("1.2.840.10040.4.") || oid.startsWith("2.16.840.1.101.3.4.3."))
+            return "DSA";
+        if (oid.startsWith("1.2.840.10045."))
+            return "ECDSA";
+        throw new GeneralSecurityException("Unsupported signature algorithm: " + oid);
+    }
+
+    /**
+     * Checks whether the parameter entry is signing data, which is not
+     * itself signed: the manifest, and signature files and blocks directly
+     * under <code>META-INF</code>.
+     * @param name The entry name
+     * @return True if and only if the entry is signing data
+     */
+    static boolean isSigningRelated(String name) {
+        return JarManifest.PATH.equalsIgnoreCase(name) || RewriteJar.isSigningData(name);
+    }
+
+    /**
+     * A digest attribute value and its algorithm.
+     */
+    private static final class Digest {
+
+        final String algorithm;
+
+        final byte[] value;
+
+        Digest(String algorithm, byte[] value) {
+            this.algorithm = algorithm;
+            this.value = value;
+        }
+
+        /**
+         * Finds the strongest digest attribute with the parameter suffix.
+         * @param bytes The raw section bytes
+         * @param suffix The attribute name suffix, like <code>-Digest</code>
+         * @return The digest, or null if the section has none
+         */
+        static Digest find(byte[] bytes, String suffix) {
+            List<String[]> attributes = JarManifest.parseAttributes(bytes);
+            for (String algorithm: DIGESTS)
+                for (String[] attribute: attributes)
+                    if (attribute[0].equalsIgnoreCase(algorithm + suffix))
+                        return new Digest(algorithm, Base64.getDecoder().decode(attribute[1].trim()));
+            return null;
+        }
+
+        static Digest find(byte[] bytes) {
+            return find(bytes, "-Digest");
+        }
+
+        boolean matches(byte[] content) {
+            return Arrays.equals(value, digest(algorithm).digest(content));
+        }
+    }
+
+    /**
+     * A <code>.SF</code> file, and the results of comparing it with the
+     * manifest as the manifest is read.
+     */
+    private static final class SignatureFile {
+
+        final String prefix;
+
+        final Digest manifest;
+
+        final Digest mainAttributes;
+
+        final Map<String, Digest> sections = new HashMap<>();
+
+        MessageDigest manifestDigest;
+
+        boolean manifestMatched = false;
+
+        boolean mainAttributesMatched = true;
+
+        String sectionMismatch;
+
+        SignatureFile(String prefix, byte[] content) throws IOException {
+            this.prefix = prefix;
+            try (ManifestReader reader = new ManifestReader(new ByteArrayInputStream(content))) {
+                byte[] main = reader.readMain();
+                manifest = Digest.find(main, "-Digest-Manifest");
+                mainAttributes = Digest.find(main, "-Digest-Manifest-Main-Attributes");
+                for (JarManifest.Section section = reader.readSection();
+                     null != section; section = reader.readSection()) {
+                    Digest digest = Digest.find(section.getBytes());
+                    if (null != section.name && null != digest)
+                        sections.put(section.name, digest);
+                }
+            }
+            if (null != manifest)
+                manifestDigest = digest(manifest.algorithm);
+        }
+
+        void updateMain(byte[] main) {
+            if (null != manifestDigest)
+                manifestDigest.update(main);
+            if (null != mainAttributes)
+                mainAttributesMatched = mainAttributes.matches(main);
+        }
+
+        void updateSection(JarManifest.Section section) {
+            if (null != manifestDigest)
+                manifestDigest.update(section.getBytes());
+            Digest digest = null != section.name ? sections.get(section.name) : null;
+            if (null != digest && null == sectionMismatch && !digest.matches(section.getBytes()))
+                sectionMismatch = section.name;
+        }
+
+        /**
+         * Completes the comparison with the manifest. Individual sections
+         * only need to match if the digest of the whole manifest does not.
+         * @throws IllegalStateException If the manifest does not match
+         */
+        void throwIfInvalid() {
+            if (null != manifestDigest)
+                manifestMatched = Arrays.equals(manifest.value, manifestDigest.digest());
+            if (manifestMatched)
+                return;
+            if (!mainAttributesMatched)
+                throw new IllegalStateException(String.format(
+                    "Invalid %s.SF: manifest main attributes do not match", prefix));
+            if (null != sectionMismatch)
+                throw new IllegalStateException(String.format(
+                    "Invalid %s.SF: manifest section does not match: %s", prefix, sectionMismatch));
+        }
+    }
+
+    /**
+     * Digests a range of entries, splitting the range until it is small
+     * enough. Mismatches and read failures are collected rather than thrown,
+     * so the first can be reported with its original message.
+     */
+    private static final class DigestTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ZipArchive jar;
+
+        private final List<ZipArchive.Entry> entries;
+
+        private final int from;
+
+        private final int to;
+
+        private final Map<String, Digest> expected;
+
+        private final Queue<String> mismatches;
+
+        private final Queue<IOException> failures;
+
+        DigestTask(ZipArchive jar, List<ZipArchive.Entry> entries, int from, int to,
+                   Map<String, Digest> expected, Queue<String> mismatches,
+                   Queue<IOException> failures) {
+            this.jar = jar;
+            this.entries = entries;
+            this.from = from;
+            this.to = to;
+            this.expected = expected;
+            this.mismatches = mismatches;
+            this.failures = failures;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > BATCH) {
+                int middle = (from + to) >>> 1;
+                invokeAll(
+                    new DigestTask(jar, entries, from, middle, expected, mismatches, failures),
+                    new DigestTask(jar, entries, middle, to, expected, mismatches, failures));
+                return;
+            }
+            byte[] buffer = new byte[65536];
+            for (int i = from; i < to; ++i) {
+                ZipArchive.Entry entry = entries.get(i);
+                Digest digest = expected.get(entry.name);
+                MessageDigest actual = digest(digest.algorithm);
+                try (InputStream in = jar.getInputStream(entry)) {
+                    for (int n = in.read(buffer); n >= 0; n = in.read(buffer))
+                        actual.update(buffer, 0, n);
+                } catch (IOException x) {
+                    failures.add(x);
+                    return;
+                }
+                if (!Arrays.equals(digest.value, actual.digest()))
+                    mismatches.add(entry.name);
+            }
+        }
+    }
+
+    /**
+     * The certificates in a signature block.
+     */
+    private static final class Certificates {
+
+        private final List<X509Certificate> certificates = new ArrayList<>();
+
+        Certificates(byte[] block) throws GeneralSecurityException {
+            for (Certificate certificate: CertificateFactory.getInstance("X.509")
+                .generateCertificates(new ByteArrayInputStream(block)))
+                certificates.add((X509Certificate) certificate);
+        }
+
+        X509Certificate find(byte[] issuer, BigInteger serialNumber)
+            throws GeneralSecurityException {
+            for (X509Certificate certificate: certificates)
+                if (serialNumber.equals(certificate.getSerialNumber()) &&
+                    Arrays.equals(issuer, certificate.getIssuerX500Principal().getEncoded()))
+                    return certificate;
+            throw new GeneralSecurityException("No signer certificate in signature block");
+        }
+    }
+
+    /**
+     * A DER-encoded value, read in place. Only definite lengths are
+     * supported, which is all DER allows.
+     */
+    private static final class Der {
+
+        final byte[] bytes;
+
+        final int tag;
+
+        final int offset;
+
+        final int start;
+
+        final int end;
+
+        private Der(byte[] bytes, int tag, int offset, int start, int end) {
+            this.bytes = bytes;
+            this.tag = tag;
+            this.offset = offset;
+            this.start = start;
+            this.end = end;
+        }
+
+        static Der read(byte[] bytes, int offset) throws GeneralSecurityException {
+            int pos = offset;
+            int tag = bytes[pos++] & 0xFF;
+            int length = bytes[pos++] & 0xFF;
+            if (length >= 0x80) {
+                int n = length & 0x7F;
+                if (0 == n || n > 3)
+                    throw new GeneralSecurityException("Unsupported DER length");
+                length = 0;
+                for (int i = 0; i < n; ++i)
+                    length = (length << 8) | (bytes[pos++] & 0xFF);
+            }
+            if (pos + length > bytes.length)
+                throw new GeneralSecurityException("Truncated DER value");
+            return new Der(bytes, tag, offset, pos, pos + length);
+        }
+
+        List<Der> children() throws GeneralSecurityException {
+            List<Der> children = new ArrayList<>();
+            for (int pos = start; pos < end; ) {
+                Der child = read(bytes, pos);
+                children.add(child);
+                pos = child.end;
+            }
+            return children;
+        }
+
+        byte[] content() {
+            return Arrays.copyOfRange(bytes, start, end);
+        }
+
+        byte[] encoded() {
+            return Arrays.copyOfRange(bytes, offset, end);
+        }
+
+        String oid() throws GeneralSecurityException {
+            if (0x06 != tag || start == end)
+                throw new GeneralSecurityException("Expected an object identifier");
+            StringBuilder oid = new StringBuilder();
+            int first = bytes[start] & 0xFF;
+            oid.append(Math.min(first / 40, 2)).append('.').append(first - 40 * Math.min(first / 40, 2));
+            long value = 0;
+            for (int pos = start + 1; pos < end; ++pos) {
+                value = (value << 7) | (bytes[pos] & 0x7F);
+                if (0 == (bytes[pos] & 0x80)) {
+                    oid.append('.').append(value);
+                    value = 0;
+                }
+            }
+            return oid.toString();
+        }
+    }
+
+    private static MessageDigest digest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (GeneralSecurityException x) {
+            throw new IllegalStateException("Unsupported digest algorithm: " + algorithm, x);
+        }
+    }
+}
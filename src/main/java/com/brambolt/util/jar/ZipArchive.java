@@ -0,0 +1,853 @@
+/*
+ * Copyright 2017-2020 Brambolt ehf.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brambolt.util.jar;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * <p>Reads a zip archive through its central directory. Only the end of
+ * central directory record and the central directory are read when the
+ * archive is opened; entry data is read on demand with positional reads, so
+ * several threads can read different entries at the same time.</p>
+ *
+ * <p>The archive can be a file or a buffer in memory, such as a jar nested
+ * inside a WAR file, which can then be read without being written to
+ * disk. Files that are only inspected can be memory-mapped with
+ * {@link #map(File)}, so the central directory is parsed in place instead of
+ * being copied to the heap.</p>
+ *
+ * <p>Entry objects are created on first use. Looking up the manifest or
+ * listing the <code>META-INF</code> entries compares the names in the central
+ * directory bytes and only creates the matching entries, so inspecting a jar
+ * with many entries allocates little.</p>
+ *
+ * <p>Entries can be read decompressed, or raw, as the compressed bytes
+ * stored in the archive. Raw entries can be copied to another archive with
+ * a <code>ZipWriter</code> without being decompressed and compressed
+ * again.</p>
+ */
+public class ZipArchive implements Closeable {
+
+    static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+
+    static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+
+    static final int END_SIGNATURE = 0x06054b50;
+
+    static final int ZIP64_END_SIGNATURE = 0x06064b50;
+
+    static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+
+    static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+
+    static final int LOCAL_HEADER_SIZE = 30;
+
+    static final int CENTRAL_HEADER_SIZE = 46;
+
+    static final int END_SIZE = 22;
+
+    static final int STORED = 0;
+
+    static final int DEFLATED = 8;
+
+    /**
+     * An entry in the central directory.
+     */
+    public static final class Entry {
+
+        public final String name;
+
+        final int versionMadeBy;
+
+        final int versionNeeded;
+
+        final int flags;
+
+        public final int method;
+
+        final long dosTime;
+
+        public final long crc;
+
+        public final long compressedSize;
+
+        public final long size;
+
+        final byte[] extra;
+
+        final byte[] comment;
+
+        final int internalAttributes;
+
+        final long externalAttributes;
+
+        final long localHeaderOffset;
+
+        Entry(String name, int versionMadeBy, int versionNeeded, int flags,
+              int method, long dosTime, long crc, long compressedSize, long size,
+              byte[] extra, byte[] comment, int internalAttributes,
+              long externalAttributes, long localHeaderOffset) {
+            this.name = name;
+            this.versionMadeBy = versionMadeBy;
+            this.versionNeeded = versionNeeded;
+            this.flags = flags;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.extra = extra;
+            this.comment = comment;
+            this.internalAttributes = internalAttributes;
+            this.externalAttributes = externalAttributes;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        /**
+         * @return True if and only if the entry is a directory
+         */
+        public boolean isDirectory() {
+            return name.endsWith("/");
+        }
+
+        /**
+         * @return The entry modification time, in milliseconds since the epoch
+         */
+        public long getTime() {
+            return fromDosTime(dosTime);
+        }
+    }
+
+    private final String name;
+
+    private final Source source;
+
+    private final ByteBuffer directory;
+
+    private final int[] offsets;
+
+    private List<Entry> entries;
+
+    private Map<String, Entry> index;
+
+    /**
+     * Opens the parameter zip file and reads the central directory.
+     * @param file The zip file to read
+     * @throws IOException If the file can not be read or is not a zip file
+     */
+    public ZipArchive(File file) throws IOException {
+        this(file.getPath(), new FileSource(
+            FileChannel.open(file.toPath(), StandardOpenOption.READ)));
+    }
+
+    /**
+     * Memory-maps the parameter zip file and reads the central directory.
+     * The mapping lasts until it is garbage collected, even after the archive
+     * is closed, and on some platforms a mapped file can not be replaced or
+     * deleted. Use this for archives that are only read, not for archives
+     * that are rewritten in place. Files too large to map in one buffer are
+     * read with positional reads instead.
+     * @param file The zip file to read
+     * @return The archive
+     * @throws IOException If the file can not be read or is not a zip file
+     */
+    public static ZipArchive map(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                return new ZipArchive(file.getPath(), new FileSource(channel));
+            return new ZipArchive(file.getPath(), new MappedSource(
+                channel, channel.map(FileChannel.MapMode.READ_ONLY, 0, size)));
+        } catch (IOException | RuntimeException x) {
+            channel.close();
+            throw x;
+        }
+    }
+
+    /**
+     * Reads the central directory of the parameter archive bytes.
+     * @param name The archive name, used in messages
+     * @param bytes The archive bytes, from position to limit
+     * @throws IOException If the bytes are not a zip archive
+     */
+    public ZipArchive(String name, ByteBuffer bytes) throws IOException {
+        this(name, new BufferSource(bytes.slice()));
+    }
+
+    private ZipArchive(String name, Source source) throws IOException {
+        this.name = name;
+        this.source = source;
+        try {
+            long[] count = new long[1];
+            this.directory = readCentralDirectory(count);
+            this.offsets = findHeaders(directory, count[0]);
+        } catch (IOException | RuntimeException x) {
+            source.close();
+            throw x;
+        }
+    }
+
+    /**
+     * @return The archive name, normally the file path
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The archive length, in bytes
+     * @throws IOException If unable to read the length
+     */
+    public long length() throws IOException {
+        return source.size();
+    }
+
+    /**
+     * @return The number of entries
+     */
+    public int size() {
+        return offsets.length;
+    }
+
+    /**
+     * @return The entries, in central directory order
+     */
+    public synchronized List<Entry> getEntries() {
+        if (null == entries) {
+            List<Entry> result = new ArrayList<>(offsets.length);
+            Map<String, Entry> index = new HashMap<>();
+            for (int offset: offsets) {
+                Entry entry = readEntry(directory, offset);
+                result.add(entry);
+                index.putIfAbsent(entry.name, entry);
+            }
+            this.entries = Collections.unmodifiableList(result);
+            this.index = index;
+        }
+        return entries;
+    }
+
+    /**
+     * Finds the entries with names that start with the parameter prefix,
+     * without creating the other entries.
+     * @param prefix The entry name prefix, like <code>META-INF/</code>
+     * @return The matching entries, in central directory order
+     */
+    public List<Entry> getEntries(String prefix) {
+        byte[] bytes = prefix.getBytes(StandardCharsets.UTF_8);
+        List<Entry> result = new ArrayList<>();
+        for (int offset: offsets)
+            if (startsWith(offset, bytes, false))
+                result.add(readEntry(directory, offset));
+        return result;
+    }
+
+    /**
+     * Finds the entry with the parameter name. If the entries have not been
+     * listed, the central directory is searched without creating the other
+     * entries.
+     * @param name The entry name
+     * @return The entry, or null if there is no such entry
+     */
+    public Entry getEntry(String name) {
+        synchronized (this) {
+            if (null != index)
+                return index.get(name);
+        }
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        for (int offset: offsets)
+            if (startsWith(offset, bytes, true))
+                return readEntry(directory, offset);
+        return null;
+    }
+
+    private boolean startsWith(int offset, byte[] prefix, boolean exact) {
+        int nameLength = directory.getShort(offset + 28) & 0xFFFF;
+        if (nameLength < prefix.length || (exact && nameLength != prefix.length))
+            return false;
+        int start = offset + CENTRAL_HEADER_SIZE;
+        for (int i = 0; i < prefix.length; ++i)
+            if (directory.get(start + i) != prefix[i])
+                return false;
+        return true;
+    }
+
+    /**
+     * Transfers a range of the archive bytes to the parameter channel. For
+     * archive files the transfer is channel to channel, which lets the
+     * operating system copy the bytes without passing them through the heap.
+     * @param position The archive position to start at
+     * @param count The maximum number of bytes to transfer
+     * @param target The channel to transfer to
+     * @return The number of bytes transferred
+     * @throws IOException If unable to transfer
+     */
+    long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        return source.transferTo(position, count, target);
+    }
+
+    /**
+     * Finds the offset of the entry data, following the local header.
+     * @param entry The entry
+     * @return The offset of the first data byte
+     * @throws IOException If the local header can not be read
+     */
+    long getDataOffset(Entry entry) throws IOException {
+        ByteBuffer header = read(entry.localHeaderOffset, LOCAL_HEADER_SIZE);
+        if (LOCAL_HEADER_SIGNATURE != header.getInt(0))
+            throw new ZipException("Invalid local header for " + entry.name + " in " + name);
+        return entry.localHeaderOffset + LOCAL_HEADER_SIZE +
+            (header.getShort(26) & 0xFFFF) + (header.getShort(28) & 0xFFFF);
+    }
+
+    /**
+     * Reads the extra field from the local header of the parameter entry.
+     * @param entry The entry
+     * @return The local extra field bytes
+     * @throws IOException If the local header can not be read
+     */
+    byte[] getLocalExtra(Entry entry) throws IOException {
+        ByteBuffer header = read(entry.localHeaderOffset, LOCAL_HEADER_SIZE);
+        int nameLength = header.getShort(26) & 0xFFFF;
+        int extraLength = header.getShort(28) & 0xFFFF;
+        ByteBuffer extra = read(entry.localHeaderOffset + LOCAL_HEADER_SIZE + nameLength, extraLength);
+        byte[] bytes = new byte[extraLength];
+        extra.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Provides the bytes of a stored entry without copying them, when the
+     * archive is memory-mapped or in memory.
+     * @param entry The entry
+     * @return A buffer over the entry bytes, or null if the entry is
+     *      compressed or the archive bytes must be read
+     * @throws IOException If the local header can not be read
+     */
+    public ByteBuffer slice(Entry entry) throws IOException {
+        if (STORED != entry.method || entry.size > Integer.MAX_VALUE)
+            return null;
+        ByteBuffer bytes = source.slice(getDataOffset(entry), (int) entry.size);
+        if (null != bytes && bytes.remaining() < entry.size)
+            throw new EOFException("Unexpected end of " + name);
+        return bytes;
+    }
+
+    /**
+     * Opens a stream over the compressed entry bytes.
+     * @param entry The entry to read
+     * @return The raw input stream
+     * @throws IOException If the entry can not be read
+     */
+    public InputStream getRawInputStream(Entry entry) throws IOException {
+        return new RawInputStream(getDataOffset(entry), entry.compressedSize, false);
+    }
+
+    /**
+     * Opens a stream over the decompressed entry bytes.
+     * @param entry The entry to read
+     * @return The input stream
+     * @throws IOException If the entry can not be read
+     */
+    public InputStream getInputStream(Entry entry) throws IOException {
+        switch (entry.method) {
+            case STORED:
+                return getRawInputStream(entry);
+            case DEFLATED:
+                final Inflater inflater = new Inflater(true);
+                return new InflaterInputStream(
+                    new RawInputStream(getDataOffset(entry), entry.compressedSize, true),
+                    inflater, 8192) {
+                    private boolean closed = false;
+                    @Override
+                    public void close() throws IOException {
+                        if (closed)
+                            return;
+                        closed = true;
+                        super.close();
+                        inflater.end();
+                    }
+                };
+            default:
+                throw new ZipException(String.format(
+                    "Unsupported compression method %d for %s in %s",
+                    entry.method, entry.name, name));
+        }
+    }
+
+    /**
+     * Reads the decompressed bytes of a small entry, like the manifest.
+     * @param entry The entry to read
+     * @return The entry bytes
+     * @throws IOException If the entry can not be read
+     */
+    public byte[] readAllBytes(Entry entry) throws IOException {
+        if (entry.size > Integer.MAX_VALUE - 8)
+            throw new ZipException("Entry too large: " + entry.name);
+        byte[] bytes = new byte[(int) entry.size];
+        try (InputStream in = getInputStream(entry)) {
+            int offset = 0;
+            while (offset < bytes.length) {
+                int n = in.read(bytes, offset, bytes.length - offset);
+                if (n < 0)
+                    throw new EOFException("Unexpected end of " + entry.name + " in " + name);
+                offset += n;
+            }
+        }
+        return bytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+
+    /**
+     * Reads the central directory.
+     * @param count Receives the number of entries the end of central
+     *  directory record declares
+     * @return The central directory
+     * @throws ZipException If the end of central directory record is invalid
+     * @throws IOException If unable to read the archive
+     */
+    private ByteBuffer readCentralDirectory(long[] count) throws IOException {
+        long length = source.size();
+        if (length < END_SIZE)
+            throw new ZipException("Not a zip file: " + name);
+        int tailLength = (int) Math.min(length, END_SIZE + 0xFFFF);
+        ByteBuffer tail = read(length - tailLength, tailLength);
+        int end = -1;
+        for (int i = tailLength - END_SIZE; i >= 0; --i)
+            if (END_SIGNATURE == tail.getInt(i)) {
+                end = i;
+                break;
+            }
+        if (end < 0)
+            throw new ZipException("No end of central directory record in " + name);
+        long entries = tail.getShort(end + 10) & 0xFFFF;
+        long directorySize = tail.getInt(end + 12) & 0xFFFFFFFFL;
+        long directoryOffset = tail.getInt(end + 16) & 0xFFFFFFFFL;
+        long endOffset = length - tailLength + end;
+        if (0xFFFF == entries || 0xFFFFFFFFL == directorySize || 0xFFFFFFFFL == directoryOffset) {
+            ByteBuffer zip64 = readZip64End(endOffset);
+            if (null != zip64) {
+                entries = zip64.getLong(32);
+                directorySize = zip64.getLong(40);
+                directoryOffset = zip64.getLong(48);
+            }
+        }
+        if (directorySize > Integer.MAX_VALUE || directoryOffset + directorySize > length)
+            throw new ZipException("Invalid central directory in " + name);
+        count[0] = entries;
+        return read(directoryOffset, (int) directorySize);
+    }
+
+    /**
+     * Finds the offsets of the central directory headers. A damaged
+     * directory fails rather than giving fewer entries, since the archive
+     * would otherwise be rewritten without them.
+     * @param directory The central directory
+     * @param count The number of entries declared by the end record
+     * @return The header offsets, in directory order
+     * @throws ZipException If a header is invalid or the count does not match
+     */
+    private int[] findHeaders(ByteBuffer directory, long count) throws ZipException {
+        if (count > Integer.MAX_VALUE)
+            throw new ZipException("Invalid central directory in " + name);
+        int[] offsets = new int[(int) Math.min(count, directory.limit() / CENTRAL_HEADER_SIZE)];
+        int found = 0;
+        int pos = 0;
+        while (pos < directory.limit()) {
+            if (pos + CENTRAL_HEADER_SIZE > directory.limit() ||
+                CENTRAL_HEADER_SIGNATURE != directory.getInt(pos))
+                throw new ZipException(String.format(
+                    "Invalid central directory header %d in %s", found, name));
+            long next = (long) pos + CENTRAL_HEADER_SIZE + (directory.getShort(pos + 28) & 0xFFFF) +
+                (directory.getShort(pos + 30) & 0xFFFF) + (directory.getShort(pos + 32) & 0xFFFF);
+            if (next > directory.limit())
+                throw new ZipException(String.format(
+                    "Invalid central directory header %d in %s", found, name));
+            if (found == offsets.length)
+                throw new ZipException(String.format(
+                    "Central directory has more than %d entries in %s", count, name));
+            offsets[found++] = pos;
+            pos = (int) next;
+        }
+        if (found != count)
+            throw new ZipException(String.format(
+                "Central directory has %d entries, expected %d, in %s", found, count, name));
+        return offsets;
+    }
+
+    private ByteBuffer readZip64End(long endOffset) throws IOException {
+        if (endOffset < 20)
+            return null;
+        ByteBuffer locator = read(endOffset - 20, 20);
+        if (ZIP64_LOCATOR_SIGNATURE != locator.getInt(0))
+            return null;
+        ByteBuffer zip64 = read(locator.getLong(8), 56);
+        if (ZIP64_END_SIGNATURE != zip64.getInt(0))
+            throw new ZipException("Invalid zip64 end of central directory in " + name);
+        return zip64;
+    }
+
+    private Entry readEntry(ByteBuffer directory, int pos) {
+        int nameLength = directory.getShort(pos + 28) & 0xFFFF;
+        int extraLength = directory.getShort(pos + 30) & 0xFFFF;
+        int commentLength = directory.getShort(pos + 32) & 0xFFFF;
+        byte[] name = bytes(directory, pos + CENTRAL_HEADER_SIZE, nameLength);
+        byte[] extra = bytes(directory, pos + CENTRAL_HEADER_SIZE + nameLength, extraLength);
+        byte[] comment = bytes(directory, pos + CENTRAL_HEADER_SIZE + nameLength + extraLength, commentLength);
+        long compressedSize = directory.getInt(pos + 20) & 0xFFFFFFFFL;
+        long size = directory.getInt(pos + 24) & 0xFFFFFFFFL;
+        long offset = directory.getInt(pos + 42) & 0xFFFFFFFFL;
+        if (0xFFFFFFFFL == compressedSize || 0xFFFFFFFFL == size || 0xFFFFFFFFL == offset) {
+            // The actual values are in the zip64 extended information field,
+            // in this order, but only for the values that overflowed:
+            ByteBuffer field = findExtraField(extra, 0x0001);
+            if (null != field) {
+                if (0xFFFFFFFFL == size)
+                    size = field.getLong();
+                if (0xFFFFFFFFL == compressedSize)
+                    compressedSize = field.getLong();
+                if (0xFFFFFFFFL == offset)
+                    offset = field.getLong();
+            }
+        }
+        return new Entry(
+            new String(name, StandardCharsets.UTF_8),
+            directory.getShort(pos + 4) & 0xFFFF,
+            directory.getShort(pos + 6) & 0xFFFF,
+            directory.getShort(pos + 8) & 0xFFFF,
+            directory.getShort(pos + 10) & 0xFFFF,
+            directory.getInt(pos + 12) & 0xFFFFFFFFL,
+            directory.getInt(pos + 16) & 0xFFFFFFFFL,
+            compressedSize, size, extra, comment,
+            directory.getShort(pos + 36) & 0xFFFF,
+            directory.getInt(pos + 38) & 0xFFFFFFFFL,
+            offset);
+    }
+
+    /**
+     * Finds an extra field by header ID.
+     * @param extra The extra field bytes
+     * @param headerId The header ID to look for
+     * @return A buffer positioned at the field data, or null if not found
+     */
+    static ByteBuffer findExtraField(byte[] extra, int headerId) {
+        ByteBuffer buffer = ByteBuffer.wrap(extra).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.remaining() >= 4) {
+            int id = buffer.getShort() & 0xFFFF;
+            int length = buffer.getShort() & 0xFFFF;
+            if (length > buffer.remaining())
+                return null;
+            if (id == headerId) {
+                ByteBuffer field = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+                field.limit(length);
+                return field;
+            }
+            buffer.position(buffer.position() + length);
+        }
+        return null;
+    }
+
+    private static byte[] bytes(ByteBuffer buffer, int pos, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; ++i)
+            bytes[i] = buffer.get(pos + i);
+        return bytes;
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = source.slice(position, length);
+        if (null != buffer) {
+            if (buffer.remaining() < length)
+                throw new EOFException("Unexpected end of " + name);
+            return buffer.order(ByteOrder.LITTLE_ENDIAN);
+        }
+        buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            int n = source.read(buffer, position + buffer.position());
+            if (n < 0)
+                throw new EOFException("Unexpected end of " + name);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Converts an MS-DOS date and time to Java time.
+     * @param dosTime The date in the high and the time in the low 16 bits
+     * @return The time in milliseconds since the epoch
+     */
+    static long fromDosTime(long dosTime) {
+        LocalDateTime time = LocalDateTime.of(
+            (int) ((dosTime >> 25) & 0x7F) + 1980,
+            Math.max(1, Math.min(12, (int) ((dosTime >> 21) & 0x0F))),
+            Math.max(1, (int) ((dosTime >> 16) & 0x1F)),
+            Math.min(23, (int) ((dosTime >> 11) & 0x1F)),
+            Math.min(59, (int) ((dosTime >> 5) & 0x3F)),
+            Math.min(59, (int) ((dosTime << 1) & 0x3E)));
+        try {
+            return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (RuntimeException x) {
+            return 0L;
+        }
+    }
+
+    /**
+     * Converts a Java time to an MS-DOS date and time.
+     * @param time The time in milliseconds since the epoch
+     * @return The date in the high and the time in the low 16 bits
+     */
+    static long toDosTime(long time) {
+        LocalDateTime d = LocalDateTime.ofInstant(
+            java.time.Instant.ofEpochMilli(time), ZoneId.systemDefault());
+        if (d.getYear() < 1980)
+            return (1 << 21) | (1 << 16);
+        return ((long) (d.getYear() - 1980) << 25) | (d.getMonthValue() << 21) |
+            (d.getDayOfMonth() << 16) | (d.getHour() << 11) |
+            (d.getMinute() << 5) | (d.getSecond() >> 1);
+    }
+
+    /**
+     * The archive bytes.
+     */
+    private interface Source extends Closeable {
+
+        long size() throws IOException;
+
+        int read(ByteBuffer target, long position) throws IOException;
+
+        long transferTo(long position, long count, WritableByteChannel target) throws IOException;
+
+        /**
+         * Provides a range of the archive bytes without copying them.
+         * @param position The position of the first byte
+         * @param length The number of bytes
+         * @return A buffer over the range, or null if the bytes must be read
+         */
+        default ByteBuffer slice(long position, int length) {
+            return null;
+        }
+    }
+
+    private static final class FileSource implements Source {
+
+        private final FileChannel channel;
+
+        FileSource(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public int read(ByteBuffer target, long position) throws IOException {
+            return channel.read(target, position);
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target)
+            throws IOException {
+            return channel.transferTo(position, count, target);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * A memory-mapped archive file. Reads copy from the mapping, and
+     * transfers go through the channel.
+     */
+    private static final class MappedSource implements Source {
+
+        private final FileChannel channel;
+
+        private final BufferSource mapping;
+
+        MappedSource(FileChannel channel, MappedByteBuffer buffer) {
+            this.channel = channel;
+            this.mapping = new BufferSource(buffer);
+        }
+
+        @Override
+        public long size() {
+            return mapping.size();
+        }
+
+        @Override
+        public int read(ByteBuffer target, long position) {
+            return mapping.read(target, position);
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target)
+            throws IOException {
+            return channel.transferTo(position, count, target);
+        }
+
+        @Override
+        public ByteBuffer slice(long position, int length) {
+            return mapping.slice(position, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private static final class BufferSource implements Source {
+
+        private final ByteBuffer buffer;
+
+        BufferSource(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public ByteBuffer slice(long position, int length) {
+            if (position > buffer.limit())
+                return ByteBuffer.allocate(0);
+            return range(position, length).slice();
+        }
+
+        @Override
+        public long size() {
+            return buffer.limit();
+        }
+
+        @Override
+        public int read(ByteBuffer target, long position) {
+            if (position >= buffer.limit())
+                return -1;
+            ByteBuffer range = range(position, target.remaining());
+            int n = range.remaining();
+            target.put(range);
+            return n;
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target)
+            throws IOException {
+            if (position >= buffer.limit())
+                return 0;
+            return target.write(range(position, count));
+        }
+
+        private ByteBuffer range(long position, long count) {
+            ByteBuffer range = buffer.duplicate();
+            range.position((int) position);
+            range.limit((int) Math.min(buffer.limit(), position + count));
+            return range;
+        }
+
+        @Override
+        public void close() {
+            // Nothing to release
+        }
+    }
+
+    /**
+     * Reads a bounded range of the archive with positional reads. When used
+     * for inflation a single trailing zero byte is provided, which the
+     * inflater may need to detect the end of the deflated data.
+     */
+    private final class RawInputStream extends InputStream {
+
+        private long position;
+
+        private long remaining;
+
+        private boolean padding;
+
+        RawInputStream(long position, long length, boolean padding) {
+            this.position = position;
+            this.remaining = length;
+            this.padding = padding;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return 1 == read(one, 0, 1) ? (one[0] & 0xFF) : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (0 == length)
+                return 0;
+            if (remaining <= 0) {
+                if (!padding)
+                    return -1;
+                padding = false;
+                bytes[offset] = 0;
+                return 1;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(
+                bytes, offset, (int) Math.min(length, remaining));
+            int n = source.read(buffer, position);
+            if (n < 0)
+                throw new EOFException("Unexpected end of " + name);
+            position += n;
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, remaining));
+            position += skipped;
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, remaining);
+        }
+    }
+}
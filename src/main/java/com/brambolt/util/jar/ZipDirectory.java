@@ -0,0 +1,204 @@
+/*
+ * Copyright 2017-2020 Brambolt ehf.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brambolt.util.jar;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static com.brambolt.util.jar.ZipArchive.STORED;
+
+/**
+ * <p>Zips an expanded archive directory to replace the archive it was
+ * expanded from. The entries are written in the order of the original
+ * archive, followed by any new files in name order, so the output order does
+ * not depend on the file system.</p>
+ *
+ * <p>A reproducible archive is written with fixed entry times and the
+ * entries sorted in <code>ZipWriter.REPRODUCIBLE_ORDER</code>, whatever the
+ * order of the original archive.</p>
+ *
+ * <p>Each entry is compressed as the <code>Compression</code> chooses, with
+ * the method it had in the original archive as the default. With parallel
+ * compression the entries are compressed to temporary files on a pool,
+ * a bounded number ahead of the one being written.</p>
+ */
+public class ZipDirectory {
+
+    private final Compression compression;
+
+    private boolean reproducible = false;
+
+    /**
+     * Constructor.
+     * @param compression The compression to write entries with
+     */
+    public ZipDirectory(Compression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Sets whether the archive is written reproducibly.
+     * @param reproducible Whether to write a reproducible archive
+     * @return This zipper
+     */
+    public ZipDirectory setReproducible(boolean reproducible) {
+        this.reproducible = reproducible;
+        return this;
+    }
+
+    /**
+     * Zips the parameter directory and replaces the archive with the result.
+     * @param dir The expanded archive
+     * @param archive The archive the directory was expanded from
+     * @return The archive file
+     * @throws IOException If unable to read or write
+     */
+    public File apply(File dir, File archive) throws IOException {
+        File parent = archive.getAbsoluteFile().getParentFile();
+        File target = File.createTempFile(archive.getName(), ".tmp", parent);
+        Path tmpDir = compression.isParallel() ? Files.createTempDirectory(archive.getName()) : null;
+        try {
+            Map<String, Integer> methods = new HashMap<>();
+            List<String> names = new ArrayList<>();
+            try (ZipArchive source = new ZipArchive(archive)) {
+                for (ZipArchive.Entry entry: source.getEntries()) {
+                    names.add(entry.name);
+                    methods.put(entry.name, entry.method);
+                }
+            }
+            List<String> order = order(dir, names);
+            if (reproducible)
+                order.sort(ZipWriter.REPRODUCIBLE_ORDER);
+            write(dir, order, methods, target, tmpDir);
+            RewriteArchive.move(target.toPath(), archive.toPath());
+        } finally {
+            Files.deleteIfExists(target.toPath());
+            RewriteArchive.delete(tmpDir);
+        }
+        return archive;
+    }
+
+    /**
+     * Lists the entries to write: the original entries still in the
+     * directory, in their original order, and then the new files and
+     * directories, sorted by name.
+     */
+    static List<String> order(File dir, List<String> original) throws IOException {
+        Path root = dir.toPath();
+        List<String> found;
+        try (Stream<Path> walk = Files.walk(root)) {
+            found = walk.filter(path -> !path.equals(root))
+                .map(path -> toEntryName(root, path))
+                .sorted()
+                .collect(Collectors.toList());
+        }
+        Set<String> present = new LinkedHashSet<>(found);
+        Set<String> names = new LinkedHashSet<>();
+        for (String name: original)
+            if (present.contains(name))
+                names.add(name);
+        names.addAll(found);
+        return new ArrayList<>(names);
+    }
+
+    private void write(File dir, List<String> names, Map<String, Integer> methods,
+                       File target, Path tmpDir) throws IOException {
+        ExecutorService executor = null != tmpDir
+            ? Executors.newFixedThreadPool(compression.getParallelism()) : null;
+        Deque<Future<ZipWriter.Compressed>> pending = new ArrayDeque<>();
+        Deque<String> pendingNames = new ArrayDeque<>();
+        try (ZipWriter writer = new ZipWriter(target)
+                 .setLevel(compression.getLevel()).setReproducible(reproducible)) {
+            int index = 0;
+            for (String name: names) {
+                File file = new File(dir, name);
+                int method = compression.getMethod(name, methods.getOrDefault(name, -1));
+                if (null == executor)
+                    write(writer, name, file, method);
+                else {
+                    File compressed = tmpDir.resolve(Integer.toString(index++)).toFile();
+                    pending.add(name.endsWith("/")
+                        ? CompletableFuture.completedFuture(null)
+                        : executor.submit(() -> compression.compress(file, method, compressed)));
+                    pendingNames.add(name);
+                    if (pending.size() > 2 * compression.getParallelism())
+                        writeNext(writer, dir, pending, pendingNames);
+                }
+            }
+            while (!pending.isEmpty())
+                writeNext(writer, dir, pending, pendingNames);
+        } finally {
+            if (null != executor)
+                executor.shutdownNow();
+        }
+    }
+
+    private static void writeNext(ZipWriter writer, File dir,
+                                  Deque<Future<ZipWriter.Compressed>> pending,
+                                  Deque<String> pendingNames) throws IOException {
+        String name = pendingNames.remove();
+        ZipWriter.Compressed data;
+        try {
+            data = pending.remove().get();
+        } catch (ExecutionException x) {
+            Throwable cause = x.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            throw new IllegalStateException("Unable to compress " + name, cause);
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing " + name, x);
+        }
+        File file = new File(dir, name);
+        if (null == data) {
+            writer.write(name, file.lastModified(), STORED, new byte[0]);
+            return; // A directory
+        }
+        writer.write(name, file.lastModified(), data);
+        if (!data.file.equals(file))
+            Files.deleteIfExists(data.file.toPath());
+    }
+
+    private static void write(ZipWriter writer, String name, File file, int method)
+        throws IOException {
+        if (name.endsWith("/"))
+            writer.write(name, file.lastModified(), STORED, new byte[0]);
+        else writer.write(name, file.lastModified(), method, file);
+    }
+
+    private static String toEntryName(Path root, Path path) {
+        String name = root.relativize(path).toString().replace(File.separatorChar, '/');
+        return Files.isDirectory(path) ? name + "/" : name;
+    }
+}
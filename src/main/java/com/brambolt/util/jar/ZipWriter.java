@@ -0,0 +1,614 @@
+/*
+ * Copyright 2017-2020 Brambolt ehf.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brambolt.util.jar;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipException;
+
+import static com.brambolt.util.jar.ZipArchive.CENTRAL_HEADER_SIGNATURE;
+import static com.brambolt.util.jar.ZipArchive.DATA_DESCRIPTOR_SIGNATURE;
+import static com.brambolt.util.jar.ZipArchive.DEFLATED;
+import static com.brambolt.util.jar.ZipArchive.END_SIGNATURE;
+import static com.brambolt.util.jar.ZipArchive.LOCAL_HEADER_SIGNATURE;
+import static com.brambolt.util.jar.ZipArchive.STORED;
+
+/**
+ * <p>Writes a zip archive. Entries can be copied raw from a
+ * <code>ZipArchive</code>, which transfers the compressed bytes and keeps
+ * the original CRC, sizes and attributes, or written from new content.</p>
+ *
+ * <p>A reproducible writer gives every entry the same fixed time and drops
+ * the time stamps in extra fields, so the bytes only depend on the names,
+ * content and order of the entries. <code>REPRODUCIBLE_ORDER</code> is the
+ * entry order reproducible archives are written in.</p>
+ *
+ * <p>An archive written to a stream, like an entry of another archive
+ * being written, is never held on disk.</p>
+ *
+ * <p>Zip64 archives are not written; the writer fails if the archive grows
+ * beyond 65535 entries or 4 GB.</p>
+ */
+public class ZipWriter implements Closeable {
+
+    private static final int FLAG_DATA_DESCRIPTOR = 0x0008;
+
+    private static final int FLAG_UTF8 = 0x0800;
+
+    private static final int VERSION = 20;
+
+    /**
+     * The entry time in reproducible archives, 1980-02-01 00:00:00 as a DOS
+     * date and time. The DOS fields hold local time, so a constant value is
+     * the same in every time zone.
+     */
+    static final long REPRODUCIBLE_DOS_TIME = (2 << 21) | (1 << 16);
+
+    /**
+     * The entry order of reproducible archives: the <code>META-INF/</code>
+     * directory, the manifest, the other <code>META-INF</code> files and then
+     * every other entry, each group sorted by name.
+     */
+    public static final Comparator<String> REPRODUCIBLE_ORDER =
+        Comparator.comparingInt(ZipWriter::rank).thenComparing(Comparator.naturalOrder());
+
+    private final WritableByteChannel channel;
+
+    private final CountingOutputStream out;
+
+    private final ByteArrayOutputStream centralDirectory = new ByteArrayOutputStream();
+
+    private int count = 0;
+
+    private int level = Deflater.DEFAULT_COMPRESSION;
+
+    private boolean reproducible = false;
+
+    private boolean closed = false;
+
+    /**
+     * Creates or truncates the parameter file and opens it for writing.
+     * @param file The zip file to write
+     * @throws IOException If the file can not be opened
+     */
+    public ZipWriter(File file) throws IOException {
+        this(FileChannel.open(file.toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.WRITE));
+    }
+
+    /**
+     * Writes the archive to the parameter stream, which is closed when the
+     * writer is closed.
+     * @param stream The stream to write the archive to
+     */
+    public ZipWriter(OutputStream stream) {
+        this(Channels.newChannel(stream));
+    }
+
+    private ZipWriter(WritableByteChannel channel) {
+        this.channel = channel;
+        this.out = new CountingOutputStream(
+            new BufferedOutputStream(Channels.newOutputStream(channel), 65536));
+    }
+
+    /**
+     * Sets the deflate level used for entries written from new content.
+     * @param level The level, from 0 to 9, or -1 for the default level
+     * @return The writer
+     */
+    public ZipWriter setLevel(int level) {
+        this.level = level;
+        return this;
+    }
+
+    /**
+     * Sets whether entries get the fixed reproducible time instead of their
+     * own, and time stamp extra fields are dropped from copied entries.
+     * @param reproducible Whether to write a reproducible archive
+     * @return The writer
+     */
+    public ZipWriter setReproducible(boolean reproducible) {
+        this.reproducible = reproducible;
+        return this;
+    }
+
+    /**
+     * Copies an entry from another archive without decompressing it. The
+     * compressed bytes are transferred channel to channel.
+     * @param archive The archive to copy from
+     * @param entry The entry to copy
+     * @throws IOException If unable to copy
+     */
+    public void copy(ZipArchive archive, ZipArchive.Entry entry) throws IOException {
+        long dataOffset = archive.getDataOffset(entry);
+        byte[] localExtra = stripExtra(archive.getLocalExtra(entry));
+        byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+        int flags = entry.flags & ~FLAG_DATA_DESCRIPTOR;
+        long offset = writeLocalHeader(entry.versionNeeded, flags, entry.method,
+            entry.dosTime, entry.crc, entry.compressedSize, entry.size, name, localExtra);
+        out.flush();
+        long position = dataOffset;
+        long remaining = entry.compressedSize;
+        while (remaining > 0) {
+            long n = archive.transferTo(position, remaining, channel);
+            if (n <= 0)
+                throw new ZipException("Unable to copy " + entry.name + " from " + archive.getName());
+            position += n;
+            remaining -= n;
+        }
+        out.count += entry.compressedSize;
+        writeCentralHeader(entry.versionMadeBy, entry.versionNeeded, flags,
+            entry.method, entry.dosTime, entry.crc, entry.compressedSize,
+            entry.size, name, stripExtra(entry.extra), entry.comment,
+            entry.internalAttributes, entry.externalAttributes, offset);
+    }
+
+    /**
+     * Writes an entry with new content, keeping the name, time, compression
+     * method and attributes of the parameter template entry.
+     * @param template The entry to take metadata from
+     * @param content The new entry content
+     * @throws IOException If unable to write
+     */
+    public void write(ZipArchive.Entry template, File content) throws IOException {
+        write(template, content, template.method);
+    }
+
+    /**
+     * Writes an entry with new content, keeping the name, time and attributes
+     * of the parameter template entry.
+     * @param template The entry to take metadata from
+     * @param content The new entry content
+     * @param method The compression method, <code>STORED</code> (0) or
+     *  <code>DEFLATED</code> (8)
+     * @throws IOException If unable to write
+     */
+    public void write(ZipArchive.Entry template, File content, int method) throws IOException {
+        write(template.name, template.dosTime, method, content,
+            template.versionMadeBy, template.externalAttributes);
+    }
+
+    /**
+     * Writes an entry compressed ahead of time, keeping the name, time and
+     * attributes of the parameter template entry.
+     * @param template The entry to take metadata from
+     * @param data The compressed content
+     * @throws IOException If unable to write
+     */
+    public void write(ZipArchive.Entry template, Compressed data) throws IOException {
+        writeCompressed(template.name.getBytes(StandardCharsets.UTF_8), template.dosTime,
+            data, template.versionMadeBy, template.externalAttributes);
+    }
+
+    /**
+     * Writes an entry compressed ahead of time.
+     * @param name The entry name
+     * @param time The entry time, in milliseconds since the epoch
+     * @param data The compressed content
+     * @throws IOException If unable to write
+     */
+    public void write(String name, long time, Compressed data) throws IOException {
+        writeCompressed(name.getBytes(StandardCharsets.UTF_8), ZipArchive.toDosTime(time),
+            data, VERSION, 0L);
+    }
+
+    /**
+     * Writes an entry with new content.
+     * @param name The entry name
+     * @param time The entry time, in milliseconds since the epoch
+     * @param method The compression method, <code>STORED</code> (0) or
+     *  <code>DEFLATED</code> (8)
+     * @param content The entry content
+     * @throws IOException If unable to write
+     */
+    public void write(String name, long time, int method, File content) throws IOException {
+        write(name, ZipArchive.toDosTime(time), method, content, VERSION, 0L);
+    }
+
+    /**
+     * Writes an entry with new content.
+     * @param name The entry name
+     * @param time The entry time, in milliseconds since the epoch
+     * @param method The compression method
+     * @param content The entry content
+     * @throws IOException If unable to write
+     */
+    public void write(String name, long time, int method, byte[] content) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        long dosTime = ZipArchive.toDosTime(time);
+        CRC32 crc = new CRC32();
+        crc.update(content, 0, content.length);
+        byte[] data = content;
+        if (DEFLATED == method) {
+            ByteArrayOutputStream deflated = new ByteArrayOutputStream(content.length / 2 + 64);
+            Deflater deflater = new Deflater(level, true);
+            try (DeflaterOutputStream dos = new DeflaterOutputStream(deflated, deflater)) {
+                dos.write(content);
+            } finally {
+                deflater.end();
+            }
+            data = deflated.toByteArray();
+        }
+        int flags = getFlags(name);
+        long offset = writeLocalHeader(VERSION, flags, method, dosTime,
+            crc.getValue(), data.length, content.length, nameBytes, new byte[0]);
+        out.write(data);
+        writeCentralHeader(VERSION, VERSION, flags, method, dosTime, crc.getValue(),
+            data.length, content.length, nameBytes, new byte[0], new byte[0],
+            0, 0L, offset);
+    }
+
+    private void write(String name, long dosTime, int method, File content,
+                       int versionMadeBy, long externalAttributes) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if (STORED == method)
+            writeStored(nameBytes, dosTime, content, versionMadeBy, externalAttributes);
+        else if (DEFLATED == method)
+            writeDeflated(nameBytes, dosTime, content, versionMadeBy, externalAttributes);
+        else throw new ZipException(String.format(
+            "Unsupported compression method %d for %s", method, name));
+    }
+
+    private void writeStored(byte[] name, long dosTime, File content,
+                             int versionMadeBy, long externalAttributes) throws IOException {
+        Compressed data = new Compression().compress(content, STORED, null);
+        writeCompressed(name, dosTime, data, versionMadeBy, externalAttributes);
+    }
+
+    private void writeCompressed(byte[] name, long dosTime, Compressed data,
+                                 int versionMadeBy, long externalAttributes) throws IOException {
+        int flags = getFlags(new String(name, StandardCharsets.UTF_8));
+        long offset = writeLocalHeader(VERSION, flags, data.method, dosTime,
+            data.crc, data.compressedSize, data.size, name, new byte[0]);
+        if (null != data.bytes) {
+            out.write(data.bytes);
+            writeCentralHeader(versionMadeBy, VERSION, flags, data.method, dosTime,
+                data.crc, data.compressedSize, data.size, name, new byte[0], new byte[0],
+                0, externalAttributes, offset);
+            return;
+        }
+        out.flush();
+        try (FileChannel source = FileChannel.open(data.file.toPath(), StandardOpenOption.READ)) {
+            long position = 0;
+            while (position < data.compressedSize) {
+                long n = source.transferTo(position, data.compressedSize - position, channel);
+                if (n <= 0)
+                    throw new ZipException("Unable to copy " + data.file);
+                position += n;
+            }
+        }
+        out.count += data.compressedSize;
+        writeCentralHeader(versionMadeBy, VERSION, flags, data.method, dosTime,
+            data.crc, data.compressedSize, data.size, name, new byte[0], new byte[0],
+            0, externalAttributes, offset);
+    }
+
+    private void writeDeflated(byte[] name, long dosTime, File content,
+                               int versionMadeBy, long externalAttributes) throws IOException {
+        try (InputStream in = Files.newInputStream(content.toPath());
+             OutputStream entry = open(name, dosTime, versionMadeBy, externalAttributes)) {
+            byte[] buffer = new byte[65536];
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer))
+                entry.write(buffer, 0, n);
+        }
+    }
+
+    /**
+     * Opens a deflated entry for writing. The content is compressed as it is
+     * written, and the sizes and checksum follow the data in a descriptor,
+     * so the content never has to be held in memory. The entry is complete
+     * when the stream is closed, and nothing else may be written until then.
+     * @param name The entry name
+     * @param time The entry time, in milliseconds since the epoch
+     * @return The stream to write the entry content to
+     * @throws IOException If unable to write the entry header
+     */
+    public OutputStream open(String name, long time) throws IOException {
+        return open(name.getBytes(StandardCharsets.UTF_8), ZipArchive.toDosTime(time), VERSION, 0L);
+    }
+
+    /**
+     * Opens a deflated entry for writing, keeping the name, time and
+     * attributes of the parameter template entry.
+     * @param template The entry to take metadata from
+     * @return The stream to write the entry content to
+     * @throws IOException If unable to write the entry header
+     * @see #open(String, long)
+     */
+    public OutputStream open(ZipArchive.Entry template) throws IOException {
+        return open(template.name.getBytes(StandardCharsets.UTF_8), template.dosTime,
+            template.versionMadeBy, template.externalAttributes);
+    }
+
+    private OutputStream open(byte[] name, long dosTime, int versionMadeBy,
+                              long externalAttributes) throws IOException {
+        int flags = getFlags(new String(name, StandardCharsets.UTF_8)) | FLAG_DATA_DESCRIPTOR;
+        long offset = writeLocalHeader(VERSION, flags, DEFLATED, dosTime, 0L, 0L, 0L, name, new byte[0]);
+        long start = out.count;
+        CRC32 crc = new CRC32();
+        Deflater deflater = new Deflater(level, true);
+        DeflaterOutputStream dos = new DeflaterOutputStream(out, deflater, 65536); // Finished, never closed
+        return new OutputStream() {
+            private long size = 0;
+            private boolean closed = false;
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+            @Override
+            public void write(byte[] bytes, int off, int length) throws IOException {
+                crc.update(bytes, off, length);
+                size += length;
+                dos.write(bytes, off, length);
+            }
+            @Override
+            public void close() throws IOException {
+                if (closed)
+                    return;
+                closed = true;
+                try {
+                    dos.finish();
+                } finally {
+                    deflater.end();
+                }
+                long compressedSize = out.count - start;
+                ByteBuffer descriptor = buffer(16);
+                descriptor.putInt(DATA_DESCRIPTOR_SIGNATURE);
+                descriptor.putInt((int) crc.getValue());
+                descriptor.putInt((int) checkSize(compressedSize));
+                descriptor.putInt((int) checkSize(size));
+                out.write(descriptor.array());
+                writeCentralHeader(versionMadeBy, VERSION, flags, DEFLATED, dosTime,
+                    crc.getValue(), compressedSize, size, name, new byte[0], new byte[0],
+                    0, externalAttributes, offset);
+            }
+        };
+    }
+
+    private long writeLocalHeader(int versionNeeded, int flags, int method,
+                                  long dosTime, long crc, long compressedSize,
+                                  long size, byte[] name, byte[] extra) throws IOException {
+        long offset = checkSize(out.count);
+        ByteBuffer header = buffer(ZipArchive.LOCAL_HEADER_SIZE);
+        header.putInt(LOCAL_HEADER_SIGNATURE);
+        header.putShort((short) versionNeeded);
+        header.putShort((short) flags);
+        header.putShort((short) method);
+        header.putInt((int) (reproducible ? REPRODUCIBLE_DOS_TIME : dosTime));
+        header.putInt((int) crc);
+        header.putInt((int) checkSize(compressedSize));
+        header.putInt((int) checkSize(size));
+        header.putShort((short) name.length);
+        header.putShort((short) extra.length);
+        out.write(header.array());
+        out.write(name);
+        out.write(extra);
+        return offset;
+    }
+
+    private void writeCentralHeader(int versionMadeBy, int versionNeeded, int flags,
+                                    int method, long dosTime, long crc,
+                                    long compressedSize, long size, byte[] name,
+                                    byte[] extra, byte[] comment, int internalAttributes,
+                                    long externalAttributes, long offset) throws IOException {
+        if (++count > 0xFFFF)
+            throw new ZipException("Too many entries, zip64 is not supported");
+        ByteBuffer header = buffer(ZipArchive.CENTRAL_HEADER_SIZE);
+        header.putInt(CENTRAL_HEADER_SIGNATURE);
+        header.putShort((short) versionMadeBy);
+        header.putShort((short) versionNeeded);
+        header.putShort((short) flags);
+        header.putShort((short) method);
+        header.putInt((int) (reproducible ? REPRODUCIBLE_DOS_TIME : dosTime));
+        header.putInt((int) crc);
+        header.putInt((int) compressedSize);
+        header.putInt((int) size);
+        header.putShort((short) name.length);
+        header.putShort((short) extra.length);
+        header.putShort((short) comment.length);
+        header.putShort((short) 0);
+        header.putShort((short) internalAttributes);
+        header.putInt((int) externalAttributes);
+        header.putInt((int) offset);
+        centralDirectory.write(header.array());
+        centralDirectory.write(name);
+        centralDirectory.write(extra);
+        centralDirectory.write(comment);
+    }
+
+    /**
+     * Writes the central directory and closes the file.
+     * @throws IOException If unable to write
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            long offset = checkSize(out.count);
+            centralDirectory.writeTo(out);
+            ByteBuffer end = buffer(ZipArchive.END_SIZE);
+            end.putInt(END_SIGNATURE);
+            end.putShort((short) 0);
+            end.putShort((short) 0);
+            end.putShort((short) count);
+            end.putShort((short) count);
+            end.putInt(centralDirectory.size());
+            end.putInt((int) offset);
+            end.putShort((short) 0);
+            out.write(end.array());
+            out.flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static int getFlags(String name) {
+        for (int i = 0; i < name.length(); ++i)
+            if (name.charAt(i) > 0x7F)
+                return FLAG_UTF8;
+        return 0;
+    }
+
+    private static long checkSize(long value) throws ZipException {
+        if (value >= 0xFFFFFFFFL)
+            throw new ZipException("Archive too large, zip64 is not supported");
+        return value;
+    }
+
+    private static ByteBuffer buffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Lists the entries of an archive in the order they are written.
+     * @param archive The archive
+     * @param reproducible Whether the entries are sorted for a reproducible
+     *  archive
+     * @return The entries, in the original order unless reproducible
+     */
+    static List<ZipArchive.Entry> getWriteOrder(ZipArchive archive, boolean reproducible) {
+        if (!reproducible)
+            return archive.getEntries();
+        List<ZipArchive.Entry> entries = new ArrayList<>(archive.getEntries());
+        entries.sort(Comparator.comparing(entry -> entry.name, REPRODUCIBLE_ORDER));
+        return entries;
+    }
+
+    private static int rank(String name) {
+        if ("META-INF/".equals(name))
+            return 0;
+        if (JarManifest.PATH.equals(name))
+            return 1;
+        return name.startsWith("META-INF/") && name.indexOf('/', 9) < 0 ? 2 : 3;
+    }
+
+    /**
+     * Removes zip64 extended information fields, which are not needed when
+     * sizes and offsets fit the regular header fields, and the time stamp
+     * fields of a reproducible archive.
+     */
+    private byte[] stripExtra(byte[] extra) {
+        if (null == extra || 0 == extra.length)
+            return new byte[0];
+        ByteBuffer buffer = ByteBuffer.wrap(extra).order(ByteOrder.LITTLE_ENDIAN);
+        ByteArrayOutputStream result = new ByteArrayOutputStream(extra.length);
+        while (buffer.remaining() >= 4) {
+            int start = buffer.position();
+            int id = buffer.getShort() & 0xFFFF;
+            int length = buffer.getShort() & 0xFFFF;
+            if (length > buffer.remaining())
+                break;
+            buffer.position(buffer.position() + length);
+            if (0x0001 != id && !(reproducible && isTimeStamp(id)))
+                result.write(extra, start, 4 + length);
+        }
+        return result.toByteArray();
+    }
+
+    /**
+     * Checks for the extended time stamp, NTFS and Info-ZIP Unix extra
+     * fields, which hold file times.
+     */
+    private static boolean isTimeStamp(int id) {
+        return 0x5455 == id || 0x000A == id || 0x5855 == id;
+    }
+
+    /**
+     * Entry content compressed ahead of writing, so entries can be compressed
+     * on other threads and written in order. The file or byte array holds
+     * the bytes as they are stored in the archive.
+     */
+    public static final class Compressed {
+
+        final int method;
+
+        final long crc;
+
+        final long size;
+
+        final long compressedSize;
+
+        public final File file;
+
+        final byte[] bytes;
+
+        Compressed(int method, long crc, long size, long compressedSize, File file) {
+            this.method = method;
+            this.crc = crc;
+            this.size = size;
+            this.compressedSize = compressedSize;
+            this.file = file;
+            this.bytes = null;
+        }
+
+        Compressed(int method, long crc, long size, byte[] bytes) {
+            this.method = method;
+            this.crc = crc;
+            this.size = size;
+            this.compressedSize = bytes.length;
+            this.file = null;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Counts the bytes written, so entry offsets are known.
+     */
+    private static final class CountingOutputStream extends FilterOutputStream {
+
+        long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            ++count;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            out.write(bytes, offset, length);
+            count += length;
+        }
+    }
+}
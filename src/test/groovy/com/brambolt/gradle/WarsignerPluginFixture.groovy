@@ -47,6 +47,71 @@ plugins {
 import com.brambolt.gradle.warsigner.tasks.SignWar
 // Not ready - look at samples/simple to continue...
 
+""", testProjectDir)
+  }
+
+  static applyAndSignWarWithWorkers(TemporaryFolder testProjectDir) {
+    createBuildFile('build-apply-sign-war-workers.gradle', """
+plugins {
+  id 'com.brambolt.gradle.warsigner'
+}
+
+import com.brambolt.gradle.warsigner.tasks.SignWar
+
+task signWar(type: SignWar) {
+  signatureFileNamePrefix = 'XXX'
+  signingAlias = 'warsigner'
+  signingKeyPassword = 'warsigner'
+  signingStore = file('warsigner.keystore')
+  signingStorePassword = 'warsigner'
+  war = file('fixture.war')
+  streaming = true
+  unsign = true
+  attributes = [ 'Permissions: all-permissions' ]
+  workerIsolation = 'classLoader'
+}
+""", testProjectDir)
+  }
+
+  static applyAndSignWarWithoutSigning(TemporaryFolder testProjectDir, String workerIsolation) {
+    createBuildFile('build-apply-sign-war-no-sign.gradle', """
+plugins {
+  id 'com.brambolt.gradle.warsigner'
+}
+
+import com.brambolt.gradle.warsigner.tasks.SignWar
+
+task signWar(type: SignWar) {
+  signatureFileNamePrefix = 'XXX'
+  signingAlias = 'warsigner'
+  signingKeyPassword = 'warsigner'
+  signingStore = file('warsigner.keystore')
+  signingStorePassword = 'warsigner'
+  war = file('fixture.war')
+  streaming = true
+  sign = false
+  attributes = [ 'Permissions: all-permissions' ]
+  ${null != workerIsolation ? "workerIsolation = '${workerIsolation}'" : ''}
+}
+""", testProjectDir)
+  }
+
+  static applyAndSignWarWithoutAlias(TemporaryFolder testProjectDir) {
+    createBuildFile('build-apply-sign-war-no-alias.gradle', """
+plugins {
+  id 'com.brambolt.gradle.warsigner'
+}
+
+import com.brambolt.gradle.warsigner.tasks.SignWar
+
+task signWar(type: SignWar) {
+  signatureFileNamePrefix = 'XXX'
+  signingKeyPassword = 'warsigner'
+  signingStore = file('warsigner.keystore')
+  signingStorePassword = 'warsigner'
+  war = file('fixture.war')
+  attributes = [ 'Permissions: all-permissions' ]
+}
 """, testProjectDir)
   }
 }
@@ -16,11 +16,17 @@
 
 package com.brambolt.gradle
 
+import org.gradle.testkit.runner.GradleRunner
 import org.junit.Rule
 import org.junit.rules.TemporaryFolder
 import spock.lang.Specification
 
+import java.util.jar.JarFile
+import java.util.zip.ZipEntry
+import java.util.zip.ZipFile
+
 import static com.brambolt.gradle.testkit.Builds.runTask
+import static com.brambolt.gradle.testkit.Fixtures.createFileFixture
 import static org.gradle.testkit.runner.TaskOutcome.SUCCESS
 
 class WarsignerPluginSpec extends Specification {
@@ -33,7 +39,8 @@ class WarsignerPluginSpec extends Specification {
     buildFiles = [
       applyFalse: WarsignerPluginFixture.applyFalse(testProjectDir),
       applyOnly: WarsignerPluginFixture.applyOnly(testProjectDir),
-      applyAndSignWar: WarsignerPluginFixture.applyAndSignWar(testProjectDir)
+      applyAndSignWar: WarsignerPluginFixture.applyAndSignWar(testProjectDir),
+      applyAndSignWarWithWorkers: WarsignerPluginFixture.applyAndSignWarWithWorkers(testProjectDir)
     ]
   }
 
@@ -54,6 +61,64 @@ class WarsignerPluginSpec extends Specification {
     result.task(":tasks").outcome == SUCCESS
   }
 
+  def 'can sign war with workers'() {
+    given:
+    createFileFixture('fixture.war', testProjectDir)
+    createFileFixture('warsigner.keystore', testProjectDir)
+    when:
+    def result = runTask(testProjectDir.root,
+      '-b', buildFiles.applyAndSignWarWithWorkers.name as String, 'signWar')
+    then:
+    result.task(":signWar").outcome == SUCCESS
+  }
+
+  def 'adds attributes without signing when sign is false'() {
+    given:
+    File war = createFileFixture('fixture.war', testProjectDir)
+    createFileFixture('warsigner.keystore', testProjectDir)
+    File buildFile = WarsignerPluginFixture.applyAndSignWarWithoutSigning(testProjectDir, workerIsolation)
+    when:
+    def result = runTask(testProjectDir.root, '-b', buildFile.name, 'signWar')
+    Map<String, String> jar = readApplicationJar(war)
+    then:
+    result.task(":signWar").outcome == SUCCESS
+    jar[JarFile.MANIFEST_NAME].contains('Permissions: all-permissions')
+    !jar.keySet().any { it.startsWith('META-INF/XXX.') }
+    where:
+    workerIsolation << [null, 'classLoader']
+  }
+
+  def 'reports a missing signing alias'() {
+    given:
+    createFileFixture('fixture.war', testProjectDir)
+    createFileFixture('warsigner.keystore', testProjectDir)
+    File buildFile = WarsignerPluginFixture.applyAndSignWarWithoutAlias(testProjectDir)
+    when:
+    def result = GradleRunner.create()
+      .withProjectDir(testProjectDir.root)
+      .withPluginClasspath()
+      .withArguments('-b', buildFile.name, 'signWar')
+      .buildAndFail()
+    then:
+    result.output.contains('Missing signing alias; use -PsigningAlias')
+  }
+
+  /**
+   * Reads the entries of the application jar in the parameter WAR file.
+   * @return The entry content, by entry name
+   */
+  Map<String, String> readApplicationJar(File war) {
+    File jar = new File(testProjectDir.root, 'application.jar')
+    new ZipFile(war).withCloseable { ZipFile zip ->
+      jar.bytes = zip.getInputStream(zip.getEntry('application-jars/gradle-wrapper.jar')).bytes
+    }
+    new ZipFile(jar).withCloseable { ZipFile zip ->
+      zip.entries().toList().collectEntries { ZipEntry entry ->
+        [(entry.name): zip.getInputStream(entry).getText('UTF-8')]
+      }
+    }
+  }
+
   /*
   def 'can sign war'() {
     when:
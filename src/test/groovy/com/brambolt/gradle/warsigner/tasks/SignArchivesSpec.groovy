@@ -0,0 +1,190 @@
+/*
+ * Copyright 2017-2020 Brambolt ehf.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brambolt.gradle.warsigner.tasks
+
+import com.brambolt.util.jar.CheckJar
+import com.brambolt.util.jar.CheckWar
+import org.gradle.api.GradleException
+import org.gradle.api.Project
+import org.gradle.testfixtures.ProjectBuilder
+import org.junit.Rule
+import org.junit.rules.TemporaryFolder
+import spock.lang.Specification
+
+import java.util.zip.ZipEntry
+import java.util.zip.ZipFile
+import java.util.zip.ZipInputStream
+import java.util.zip.ZipOutputStream
+
+import static com.brambolt.gradle.testkit.Fixtures.createFileFixture
+import static com.brambolt.util.jar.Attributes.ALL_PERMISSIONS
+
+class SignArchivesSpec extends Specification {
+
+  @Rule TemporaryFolder testProjectDir = new TemporaryFolder()
+
+  File jar
+
+  File war
+
+  File ear
+
+  File keyStore
+
+  SignArchives task
+
+  def setup() {
+    jar = createFileFixture('gradle-wrapper.jar', testProjectDir, '-1')
+    war = createFileFixture('fixture.war', testProjectDir)
+    ear = new File(testProjectDir.root, 'fixture.ear')
+    new ZipOutputStream(new FileOutputStream(ear)).withCloseable { ZipOutputStream out ->
+      out.putNextEntry(new ZipEntry('nested.war'))
+      out.write(war.bytes)
+      out.closeEntry()
+    }
+    keyStore = createFileFixture('warsigner.keystore', testProjectDir)
+  }
+
+  private SignArchives createTask(Object archives) {
+    Project project = ProjectBuilder.builder().withProjectDir(testProjectDir.root).build()
+    task = project.task(type: SignArchives, 'signArchives') as SignArchives
+    task.signatureFileNamePrefix = 'XXX'
+    task.signingAlias = 'warsigner'
+    task.signingKeyPassword = 'warsigner'
+    task.signingStore = keyStore
+    task.signingStorePassword = 'warsigner'
+    task.archives = archives
+    task.attributes = [ ALL_PERMISSIONS ]
+    task.maxParallelJars = 2
+    task.configure({})
+    task
+  }
+
+  def 'can sign jar, war and ear'() {
+    given:
+    createTask([jar, war, ear])
+    when:
+    task.apply()
+    new CheckJar('XXX', [ALL_PERMISSIONS]).apply(jar)
+    new CheckWar('XXX', [ALL_PERMISSIONS]).apply(war)
+    File nested = new File(testProjectDir.root, 'nested.war')
+    new ZipFile(ear).withCloseable { ZipFile zip ->
+      nested.bytes = zip.getInputStream(zip.getEntry('nested.war')).bytes
+    }
+    new CheckWar('XXX', [ALL_PERMISSIONS]).apply(nested)
+    then:
+    noExceptionThrown()
+    task.metrics.jarCount == 3
+  }
+
+  def 'can sign jars in nested archives by pattern'() {
+    given:
+    createTask([ear])
+    task.nestedPatterns = ['*.war!/application-jars/*.jar']
+    task.jarCompression = jarCompression
+    when:
+    task.apply()
+    File nested = new File(testProjectDir.root, 'nested.war')
+    int method = new ZipFile(ear).withCloseable { ZipFile zip ->
+      nested.bytes = zip.getInputStream(zip.getEntry('nested.war')).bytes
+      zip.getEntry('nested.war').method
+    }
+    new CheckWar('XXX', [ALL_PERMISSIONS]).apply(nested)
+    then:
+    noExceptionThrown()
+    method == expected
+    task.metrics.jarCount == 1
+    where:
+    jarCompression | expected
+    'keep'         | ZipEntry.DEFLATED
+    'store'        | ZipEntry.STORED
+  }
+
+  def 'plans the work without changing anything'() {
+    given:
+    createTask([jar, war, ear])
+    task.planOnly = true
+    List<byte[]> before = [jar, war, ear]*.bytes
+    when:
+    task.apply()
+    List<String> lines = PlanReport.getDefaultFile(task).readLines()
+    then:
+    [jar, war, ear]*.bytes == before
+    lines.any { it.startsWith("${jar.name}: add attributes, sign") }
+    lines.any { it.startsWith('fixture.war!/application-jars/') }
+    lines.any { it.startsWith('fixture.ear!/nested.war!/application-jars/') }
+    lines.last() ==~ /\d+ of \d+ jar\(s\) need work/
+  }
+
+  def 'leaves compliant jars as they were'() {
+    given:
+    createTask([jar, ear])
+    task.nestedPatterns = ['*.war!/application-jars/*.jar']
+    task.apply()
+    List<byte[]> signed = [jar.bytes, readNestedJar()]
+    task.skipCompliant = true
+    when:
+    task.apply()
+    then:
+    [jar.bytes, readNestedJar()] == signed
+    task.plans.values().every { it.compliant }
+    task.plans.keySet().any { it.startsWith('fixture.ear!/nested.war!/') }
+  }
+
+  def 'plans jars with the same name in different archives apart'() {
+    given:
+    createTask([war, ear])
+    task.skipCompliant = true
+    when:
+    task.apply()
+    then:
+    task.plans.keySet() == [
+      'fixture.war!/application-jars/gradle-wrapper.jar',
+      'fixture.ear!/nested.war!/application-jars/gradle-wrapper.jar'] as Set
+  }
+
+  def 'resolves patterns relative to the project directory'() {
+    given:
+    createTask('*.war')
+    expect:
+    task.archiveFiles.files == [war] as Set
+  }
+
+  def 'reports unsupported archives'() {
+    given:
+    File zip = new File(testProjectDir.root, 'fixture.zip')
+    zip.bytes = jar.bytes
+    createTask([war, zip])
+    when:
+    task.apply()
+    then:
+    def exception = thrown(GradleException)
+    exception.message.contains('fixture.zip')
+    !exception.message.contains('fixture.war')
+  }
+
+  private byte[] readNestedJar() {
+    new ZipFile(ear).withCloseable { ZipFile zip ->
+      new ZipInputStream(zip.getInputStream(zip.getEntry('nested.war'))).withCloseable { ZipInputStream in ->
+        for (ZipEntry entry = in.nextEntry; null != entry; entry = in.nextEntry)
+          if (entry.name.endsWith('.jar'))
+            return in.bytes
+        null
+      }
+    }
+  }
+}
@@ -16,8 +16,10 @@
 
 package com.brambolt.gradle.warsigner.tasks
 
+import com.brambolt.gradle.warsigner.SigningCredentialService
 import com.brambolt.util.jar.CheckJar
 import com.brambolt.util.jar.RemoveSigningData
+import com.brambolt.util.jar.SigningCredentials
 import org.gradle.testfixtures.ProjectBuilder
 import org.junit.Rule
 import org.junit.rules.TemporaryFolder
@@ -89,4 +91,33 @@ class SignJarSpec extends Specification {
     then:
     notThrown IllegalStateException
   }
+
+  def 'signing tasks share the unlocked key'() {
+    given:
+    SignJar other = task.project.task(type: SignJar, 'signOther') as SignJar
+    other.signingAlias = 'warsigner'
+    other.signingKeyPassword = 'warsigner'
+    other.signingStore = keyStore
+    other.signingStorePassword = 'warsigner'
+    other.signatureFileNamePrefix = 'XXX'
+    other.jar = jar2
+    task.signatureFileNamePrefix = 'XXX'
+    task.jar = jar1
+    when:
+    task.apply()
+    other.apply()
+    new CheckJar('XXX').apply(jar1)
+    new CheckJar('XXX').apply(jar2)
+    SigningCredentialService service = task.credentialService.get()
+    then:
+    other.credentialService.get().is(service)
+    1 == service.unlocks
+    when:
+    SigningCredentials credentials = service.unlock(keyStore, 'warsigner', 'warsigner', 'warsigner')
+    service.close()
+    credentials.privateKey
+    then:
+    credentials.released
+    thrown IllegalStateException
+  }
 }
@@ -17,6 +17,10 @@
 package com.brambolt.gradle.warsigner.tasks
 
 import com.brambolt.util.jar.CheckWar
+import com.brambolt.util.jar.Signer
+import com.brambolt.util.jar.ZipArchive
+import groovy.json.JsonSlurper
+import org.gradle.api.GradleException
 import org.gradle.testfixtures.ProjectBuilder
 import org.junit.Rule
 import org.junit.rules.TemporaryFolder
@@ -76,4 +80,268 @@ class SignWarSpec extends Specification {
     then:
     noExceptionThrown()
   }
+
+  def 'can sign streaming'() {
+    given:
+    task = ProjectBuilder.builder().build().task(type: SignWar, 'sign') as SignWar
+    task.signatureFileNamePrefix = 'XXX'
+    task.signingAlias = 'warsigner'
+    task.signingKeyPassword = 'warsigner'
+    task.signingStore = keyStore
+    task.signingStorePassword = 'warsigner'
+    task.war = war
+    task.streaming = true
+    task.attributes = [ ALL_PERMISSIONS ]
+    task.configure({})
+    when:
+    task.apply()
+    new CheckWar(task.signatureFileNamePrefix, [ALL_PERMISSIONS]).apply(war)
+    then:
+    noExceptionThrown()
+  }
+
+  def 'adds attributes without signing when sign is false'() {
+    given:
+    task = ProjectBuilder.builder().build().task(type: SignWar, 'sign') as SignWar
+    task.signatureFileNamePrefix = 'XXX'
+    task.signingAlias = 'warsigner'
+    task.signingKeyPassword = 'warsigner'
+    task.signingStore = keyStore
+    task.signingStorePassword = 'warsigner'
+    task.war = war
+    task.streaming = streaming
+    task.sign = false
+    task.attributes = [ ALL_PERMISSIONS ]
+    task.configure({})
+    when:
+    task.apply()
+    new CheckWar([ALL_PERMISSIONS]).apply(war)
+    new CheckWar('XXX').apply(war)
+    then:
+    def exception = thrown(IllegalStateException)
+    exception.message == 'Missing XXX.RSA'
+    where:
+    streaming << [false, true]
+  }
+
+  def 'signed jars verify'() {
+    given:
+    task = ProjectBuilder.builder().build().task(type: SignWar, 'sign') as SignWar
+    task.signatureFileNamePrefix = 'XXX'
+    task.signingAlias = 'warsigner'
+    task.signingKeyPassword = 'warsigner'
+    task.signingStore = keyStore
+    task.signingStorePassword = 'warsigner'
+    task.war = war
+    task.streaming = true
+    task.unsign = true
+    task.attributes = [ ALL_PERMISSIONS ]
+    task.configure({})
+    when:
+    task.apply()
+    new CheckWar(task.signatureFileNamePrefix, [ALL_PERMISSIONS]).setVerify(true).apply(war)
+    then:
+    noExceptionThrown()
+  }
+
+  def 'signs with a digest pool and releases it'() {
+    given:
+    task = ProjectBuilder.builder().build().task(type: SignWar, 'sign') as SignWar
+    task.signatureFileNamePrefix = 'XXX'
+    task.signingAlias = 'warsigner'
+    task.signingKeyPassword = 'warsigner'
+    task.signingStore = keyStore
+    task.signingStorePassword = 'warsigner'
+    task.war = war
+    task.streaming = true
+    task.attributes = [ ALL_PERMISSIONS ]
+    task.digestParallelism = 2
+    task.configure({})
+    when:
+    task.apply()
+    new CheckWar(task.signatureFileNamePrefix, [ALL_PERMISSIONS]).setVerify(true).apply(war)
+    then:
+    noExceptionThrown()
+    null == task.signer.@pool
+  }
+
+  def 'can store signed jars'() {
+    given:
+    task = ProjectBuilder.builder().build().task(type: SignWar, 'sign') as SignWar
+    task.signatureFileNamePrefix = 'XXX'
+    task.signingAlias = 'warsigner'
+    task.signingKeyPassword = 'warsigner'
+    task.signingStore = keyStore
+    task.signingStorePassword = 'warsigner'
+    task.war = war
+    task.streaming = streaming
+    task.unsign = true
+    task.attributes = [ ALL_PERMISSIONS ]
+    task.jarCompression = 'store'
+    task.compressionLevel = 1
+    task.compressionParallelism = parallelism
+    task.configure({})
+    when:
+    task.apply()
+    new CheckWar(task.signatureFileNamePrefix, [ALL_PERMISSIONS]).setVerify(true).apply(war)
+    List<Integer> methods = new ZipArchive(war).withCloseable { ZipArchive archive ->
+      archive.entries.findAll { it.name.endsWith('.jar') }*.method
+    }
+    then:
+    !methods.isEmpty()
+    methods.every { it == 0 }
+    where:
+    streaming | parallelism
+    false     | 1
+    false     | 4
+    true      | 1
+    true      | 4
+  }
+
+  def 'reproducible output is byte-identical'() {
+    given:
+    File copy = testProjectDir.newFile('copy.war')
+    copy.bytes = war.bytes
+    copy.setLastModified(war.lastModified() - 60000L)
+    def project = ProjectBuilder.builder().build()
+    List<SignWar> tasks = [war, copy].withIndex().collect { File file, int i ->
+      SignWar task = project.task(type: SignWar, "sign${i}") as SignWar
+      task.signatureFileNamePrefix = 'XXX'
+      task.signingAlias = 'warsigner'
+      task.signingKeyPassword = 'warsigner'
+      task.signingStore = keyStore
+      task.signingStorePassword = 'warsigner'
+      task.war = file
+      task.streaming = streaming
+      task.unsign = true
+      task.attributes = [ ALL_PERMISSIONS ]
+      task.reproducible = true
+      task.configure({})
+      task
+    }
+    when:
+    tasks*.apply()
+    List<String> names = new ZipArchive(war).withCloseable { ZipArchive archive ->
+      archive.entries*.name
+    }
+    then:
+    war.bytes == copy.bytes
+    names == names.toSorted()
+    new ZipArchive(war).withCloseable { ZipArchive archive ->
+      archive.entries.every { it.time == new GregorianCalendar(1980, 1, 1).timeInMillis }
+    }
+    new CheckWar(tasks[0].signatureFileNamePrefix, [ALL_PERMISSIONS]).setVerify(true).apply(war)
+    where:
+    streaming << [false, true]
+  }
+
+  def 'can sign with jarsigner processes'() {
+    given:
+    task = ProjectBuilder.builder().build().task(type: SignWar, 'sign') as SignWar
+    task.signatureFileNamePrefix = 'XXX'
+    task.signingAlias = 'warsigner'
+    task.signingKeyPassword = 'warsigner'
+    task.signingStore = keyStore
+    task.signingStorePassword = 'warsigner'
+    task.war = war
+    task.inProcess = false
+    task.maxJarsignerProcesses = 2
+    task.jarsignerTimeout = 120
+    task.attributes = [ ALL_PERMISSIONS ]
+    task.configure({})
+    when:
+    task.apply()
+    new CheckWar(task.signatureFileNamePrefix, [ALL_PERMISSIONS]).apply(war)
+    then:
+    noExceptionThrown()
+    (task.metrics.toMap().phases as Map).containsKey('sign')
+  }
+
+  def 'can sign to output'() {
+    given:
+    File output = new File(testProjectDir.root, 'output/signed.war')
+    byte[] original = war.bytes
+    task = ProjectBuilder.builder().build().task(type: SignWar, 'sign') as SignWar
+    task.signatureFileNamePrefix = 'XXX'
+    task.signingAlias = 'warsigner'
+    task.signingKeyPassword = 'warsigner'
+    task.signingStore = keyStore
+    task.signingStorePassword = 'warsigner'
+    task.war = war
+    task.outputWar = output
+    task.attributes = [ ALL_PERMISSIONS ]
+    task.configure({})
+    when:
+    task.apply()
+    new CheckWar(task.signatureFileNamePrefix, [ALL_PERMISSIONS]).apply(output)
+    then:
+    noExceptionThrown()
+    war.bytes == original
+  }
+
+  def 'writes metrics'() {
+    given:
+    File metricsFile = new File(testProjectDir.root, 'metrics.json')
+    task = ProjectBuilder.builder().build().task(type: SignWar, 'sign') as SignWar
+    task.signatureFileNamePrefix = 'XXX'
+    task.signingAlias = 'warsigner'
+    task.signingKeyPassword = 'warsigner'
+    task.signingStore = keyStore
+    task.signingStorePassword = 'warsigner'
+    task.war = war
+    task.streaming = streaming
+    task.metricsFile = metricsFile
+    task.configure({})
+    when:
+    task.apply()
+    Map metrics = new JsonSlurper().parse(metricsFile) as Map
+    then:
+    metrics.task == ':sign'
+    metrics.jars == 1
+    metrics.slowestJars*.name == ['fixture.war!/application-jars/gradle-wrapper.jar']
+    metrics.phases.keySet().containsAll(phases)
+    metrics.peakTempBytes > 0
+    where:
+    streaming | phases
+    false     | ['expand', 'sign', 'compress', 'cleanup']
+    true      | ['extract', 'sign', 'write', 'copy']
+  }
+
+  def 'reports every failed jar'() {
+    given:
+    File dir = testProjectDir.newFolder('expanded')
+    File applicationJars = new File(dir, 'application-jars')
+    applicationJars.mkdirs()
+    File jar = createFileFixture('gradle-wrapper.jar', testProjectDir)
+    new File(applicationJars, 'a.jar').bytes = jar.bytes
+    new File(applicationJars, 'b.jar').bytes = jar.bytes
+    task = ProjectBuilder.builder().build().task(type: SignWar, 'sign') as SignWar
+    task.unsign = false
+    task.signer = { File file -> throw new IOException("Unable to sign") } as Signer
+    task.maxParallelJars = 2
+    when:
+    task.apply(dir)
+    then:
+    def exception = thrown(GradleException)
+    exception.message.contains('a.jar')
+    exception.message.contains('b.jar')
+  }
+
+  def 'workers require the default signer'() {
+    given:
+    File dir = testProjectDir.newFolder('expanded')
+    File applicationJars = new File(dir, 'application-jars')
+    applicationJars.mkdirs()
+    File jar = createFileFixture('gradle-wrapper.jar', testProjectDir)
+    new File(applicationJars, 'a.jar').bytes = jar.bytes
+    task = ProjectBuilder.builder().build().task(type: SignWar, 'sign') as SignWar
+    task.unsign = false
+    task.signer = { File file -> file } as Signer
+    task.workerIsolation = 'none'
+    when:
+    task.apply(dir)
+    then:
+    def exception = thrown(GradleException)
+    exception.message.contains('default cleaner, attribute adder and signer')
+  }
 }
@@ -22,6 +22,7 @@ import spock.lang.Specification
 
 import java.nio.file.FileSystem
 
+import static com.brambolt.gradle.testkit.Fixtures.createFileFixture
 import static com.brambolt.gradle.testkit.Fixtures.createFileSystemFixture
 import static com.brambolt.util.jar.Attributes.ALL_PERMISSIONS
 
@@ -57,4 +58,51 @@ class CheckJarSpec extends Specification {
     then:
     thrown IllegalStateException
   }
+
+  def 'signed archive passes check without extraction'() {
+    given:
+    File signed = createFileFixture('gradle-wrapper.jar', testProjectDir, '-signed')
+    File keyStore = createFileFixture('warsigner.keystore', testProjectDir)
+    new SignInProcess('XXX', keyStore, 'warsigner', 'warsigner', 'warsigner').apply(signed)
+    when:
+    new ZipArchive(signed).withCloseable { new CheckJar('XXX', []).apply(it) }
+    then:
+    notThrown Throwable
+  }
+
+  def 'missing attribute fails archive check'() {
+    given:
+    File unsigned = createFileFixture('gradle-wrapper.jar', testProjectDir, '-unsigned')
+    when:
+    new ZipArchive(unsigned).withCloseable { new CheckJar(null, [ ALL_PERMISSIONS ]).apply(it) }
+    then:
+    thrown IllegalStateException
+  }
+
+  def 'signed file passes mapped check'() {
+    given:
+    File signed = createFileFixture('gradle-wrapper.jar', testProjectDir, '-mapped')
+    File keyStore = createFileFixture('warsigner.keystore', testProjectDir)
+    new SignInProcess('XXX', keyStore, 'warsigner', 'warsigner', 'warsigner').apply(signed)
+    when:
+    new CheckJar('XXX', []).apply(signed)
+    then:
+    notThrown Throwable
+  }
+
+  def 'mapped archive finds entries by prefix'() {
+    given:
+    File file = createFileFixture('gradle-wrapper.jar', testProjectDir, '-prefix')
+    when:
+    List<String> metaInf = ZipArchive.map(file).withCloseable { ZipArchive archive ->
+      archive.getEntries('META-INF/')*.name
+    }
+    List<String> expected = new ZipArchive(file).withCloseable { ZipArchive archive ->
+      archive.entries*.name.findAll { it.startsWith('META-INF/') }
+    }
+    then:
+    !metaInf.isEmpty()
+    metaInf == expected
+    ZipArchive.map(file).withCloseable { it.getEntry(JarManifest.PATH)?.name } == JarManifest.PATH
+  }
 }
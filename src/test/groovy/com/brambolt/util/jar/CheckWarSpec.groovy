@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017-2020 Brambolt ehf.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brambolt.util.jar
+
+import org.junit.Rule
+import org.junit.rules.TemporaryFolder
+import spock.lang.Specification
+
+import java.util.concurrent.ForkJoinPool
+
+import static com.brambolt.gradle.testkit.Fixtures.createFileFixture
+import static com.brambolt.util.jar.Attributes.ALL_PERMISSIONS
+
+class CheckWarSpec extends Specification {
+
+  @Rule TemporaryFolder testProjectDir = new TemporaryFolder()
+
+  File war
+
+  def setup() {
+    File keyStore = createFileFixture('warsigner.keystore', testProjectDir)
+    File unsigned = createFileFixture('gradle-wrapper.jar', testProjectDir, '-unsigned')
+    File signed = testProjectDir.newFile('signed.jar')
+    signed.bytes = unsigned.bytes
+    new SignInProcess('XXX', keyStore, 'warsigner', 'warsigner', 'warsigner')
+      .apply(signed, false, [ALL_PERMISSIONS])
+    File other = testProjectDir.newFile('other.jar')
+    other.bytes = unsigned.bytes
+    new SignInProcess('YYY', keyStore, 'warsigner', 'warsigner', 'warsigner')
+      .apply(other, false, [ALL_PERMISSIONS])
+    new SignInProcess('XXX', keyStore, 'warsigner', 'warsigner', 'warsigner').apply(other)
+    war = testProjectDir.newFile('check.war')
+    new ZipWriter(war).withCloseable { ZipWriter writer ->
+      writer.write('application-jars/c-signed.jar', 0L, ZipArchive.DEFLATED, signed)
+      writer.write('application-jars/b-unsigned.jar', 0L, ZipArchive.DEFLATED, unsigned)
+      writer.write('application-jars/a-other.jar', 0L, ZipArchive.STORED, other)
+    }
+  }
+
+  def 'reports every problem in every jar'() {
+    when:
+    CheckReport report = new CheckWar('XXX', [ALL_PERMISSIONS]).check(war, new Metrics())
+    then:
+    report.checked == 3
+    !report.stopped
+    report.failedJars == ['application-jars/a-other.jar', 'application-jars/b-unsigned.jar']
+    report.problems*.kind == [
+      CheckReport.Kind.UNEXPECTED_SIGNING_DATA,
+      CheckReport.Kind.UNEXPECTED_SIGNING_DATA,
+      CheckReport.Kind.MISSING_ATTRIBUTE,
+      CheckReport.Kind.MISSING_SIGNATURE_BLOCK
+    ]
+  }
+
+  def 'throws with the aggregated report'() {
+    when:
+    new CheckWar('XXX', [ALL_PERMISSIONS]).apply(war)
+    then:
+    def exception = thrown(CheckReport.CheckException)
+    exception.message.startsWith('Found 4 problem(s) in 2 jar(s):')
+    exception.message.contains('application-jars/b-unsigned.jar: Missing XXX.RSA')
+    exception.report.problems.size() == 4
+  }
+
+  def 'fail fast skips the remaining jars'() {
+    given:
+    ForkJoinPool pool = new ForkJoinPool(1)
+    when:
+    CheckReport report = new CheckWar('XXX', [ALL_PERMISSIONS])
+      .setPool(pool).setFailFast(true).check(war, new Metrics())
+    then:
+    report.stopped
+    report.checked < 3
+    !report.empty
+    cleanup:
+    pool.shutdown()
+  }
+}
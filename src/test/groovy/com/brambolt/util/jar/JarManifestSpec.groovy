@@ -0,0 +1,104 @@
+/*
+ * Copyright 2017-2020 Brambolt ehf.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brambolt.util.jar
+
+import spock.lang.Specification
+
+import java.nio.charset.StandardCharsets
+
+import static com.brambolt.util.jar.Attributes.ALL_PERMISSIONS
+
+class JarManifestSpec extends Specification {
+
+  def 'round trip keeps bytes'() {
+    given:
+    byte[] bytes = manifest.getBytes(StandardCharsets.UTF_8)
+    when:
+    JarManifest parsed = JarManifest.parse(bytes)
+    then:
+    parsed.toBytes() == bytes
+    parsed.getSections().size() == 2
+    JarManifest.parse(bytes).tap { getSections() }.toBytes() == bytes
+  }
+
+  def 'main attributes ignore case'() {
+    when:
+    JarManifest parsed = JarManifest.parse(manifest.getBytes(StandardCharsets.UTF_8))
+    then:
+    parsed.hasMainAttribute('permissions')
+    parsed.getMainAttribute('CODEBASE') == '*'
+    !parsed.hasMainAttribute('SHA-256-Digest')
+  }
+
+  def 'continuation lines are joined'() {
+    when:
+    JarManifest parsed = JarManifest.parse(manifest.getBytes(StandardCharsets.UTF_8))
+    then:
+    parsed.getMainAttribute('Application-Name') == 'A long application name that does not fit on a single manifest line'
+    parsed.getAttribute('com/brambolt/A.class', 'SHA-256-Digest') == 'abc='
+  }
+
+  def 'adds main attributes after version'() {
+    given:
+    JarManifest parsed = JarManifest.parse('Manifest-Version: 1.0\r\nCodebase: *\r\n\r\n'.bytes)
+    when:
+    boolean added = parsed.addMainAttributes([ALL_PERMISSIONS, 'codebase: ignored'])
+    then:
+    added
+    new String(parsed.toBytes(), StandardCharsets.UTF_8) ==
+      "Manifest-Version: 1.0\r\n${ALL_PERMISSIONS}\r\nCodebase: *\r\n\r\n"
+    !parsed.addMainAttributes([ALL_PERMISSIONS])
+  }
+
+  def 'check attributes uses main section only'() {
+    when:
+    new CheckAttributes('Build-Number').throwIf(
+      JarManifest.parse(manifest.getBytes(StandardCharsets.UTF_8)))
+    then:
+    def exception = thrown(IllegalStateException)
+    exception.message == 'Missing attribute: Build-Number'
+  }
+
+  def 'reader splits sections like the model'() {
+    given:
+    byte[] bytes = (manifest + '\r\n\nName: com/brambolt/C.class\nX: y').getBytes(StandardCharsets.UTF_8)
+    JarManifest parsed = JarManifest.parse(bytes)
+    when:
+    ManifestReader reader = new ManifestReader(new ByteArrayInputStream(bytes))
+    byte[] main = reader.readMain()
+    List<JarManifest.Section> sections = []
+    for (JarManifest.Section section = reader.readSection(); null != section; section = reader.readSection())
+      sections.add(section)
+    then:
+    main == parsed.getMain()
+    sections*.name == parsed.getSections()*.name
+    sections*.getBytes() == parsed.getSections()*.getBytes()
+  }
+
+  String manifest = 'Manifest-Version: 1.0\r\n' +
+    'Permissions: all-permissions\r\n' +
+    'Codebase: *\r\n' +
+    'Application-Name: A long application name that does not fit on a single \r\n' +
+    ' manifest line\r\n' +
+    '\r\n' +
+    'Name: com/brambolt/A.class\r\n' +
+    'SHA-256-Digest: abc=\r\n' +
+    '\r\n' +
+    'Name: com/brambolt/B.class\r\n' +
+    'Build-Number: 1\r\n' +
+    '\r\n'
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2017-2020 Brambolt ehf.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brambolt.util.jar
+
+import org.junit.Rule
+import org.junit.rules.TemporaryFolder
+import spock.lang.Specification
+
+import static com.brambolt.gradle.testkit.Fixtures.createFileFixture
+import static com.brambolt.util.jar.Attributes.ALL_PERMISSIONS
+import static com.brambolt.util.jar.PlanJar.Operation.ADD_ATTRIBUTES
+import static com.brambolt.util.jar.PlanJar.Operation.SIGN
+import static com.brambolt.util.jar.PlanJar.Operation.UNSIGN
+
+class PlanJarSpec extends Specification {
+
+  @Rule TemporaryFolder testProjectDir = new TemporaryFolder()
+
+  File jar
+
+  String fingerprint
+
+  SignInProcess signer
+
+  def setup() {
+    jar = createFileFixture('gradle-wrapper.jar', testProjectDir)
+    File keyStore = createFileFixture('warsigner.keystore', testProjectDir)
+    signer = new SignInProcess('XXX', keyStore, 'warsigner', 'warsigner', 'warsigner')
+    fingerprint = SigningCredentials.unlock(keyStore, 'warsigner', 'warsigner', 'warsigner').fingerprint
+  }
+
+  def 'unsigned jar needs attributes and signing'() {
+    when:
+    PlanJar.Plan plan = new PlanJar('XXX', fingerprint, [ALL_PERMISSIONS], true).apply(jar)
+    then:
+    plan.operations == [ADD_ATTRIBUTES, SIGN] as Set
+    !plan.compliant
+  }
+
+  def 'signed jar with every attribute is compliant'() {
+    given:
+    signer.apply(jar, true, [ALL_PERMISSIONS])
+    when:
+    PlanJar.Plan plan = new PlanJar('xxx', fingerprint, [ALL_PERMISSIONS], true).apply(jar)
+    then:
+    plan.compliant
+    plan.format() == "${jar.name}: compliant"
+  }
+
+  def 'signed jar without an attribute is unsigned and signed again'() {
+    given:
+    signer.apply(jar)
+    when:
+    PlanJar.Plan plan = new PlanJar('XXX', fingerprint, [ALL_PERMISSIONS], true).apply(jar)
+    then:
+    plan.operations == [UNSIGN, ADD_ATTRIBUTES, SIGN] as Set
+  }
+
+  def 'jar signed under another prefix is signed again'() {
+    given:
+    signer.apply(jar)
+    when:
+    PlanJar.Plan plan = new PlanJar('YYY', fingerprint, [], true).apply(jar)
+    then:
+    plan.operations == [UNSIGN, SIGN] as Set
+    plan.reasons.any { it.contains('YYY') }
+  }
+
+  def 'jar signed by another certificate is signed again'() {
+    given:
+    signer.apply(jar)
+    when:
+    PlanJar.Plan plan = new PlanJar('XXX', 'another', [], false).apply(jar)
+    then:
+    plan.operations == [SIGN] as Set
+    plan.reasons == ['Signed with another certificate']
+  }
+
+  def 'jar signed with an EC key is compliant'() {
+    given:
+    File ecKeyStore = new File(testProjectDir.root, 'ec.keystore')
+    Process keytool = new ProcessBuilder(
+      new File(System.getProperty('java.home'), 'bin/keytool').path, '-genkeypair',
+      '-keyalg', 'EC', '-alias', 'ec', '-dname', 'CN=ec', '-validity', '1',
+      '-keystore', ecKeyStore.path, '-storetype', 'PKCS12',
+      '-storepass', 'warsigner', '-keypass', 'warsigner').redirectErrorStream(true).start()
+    keytool.inputStream.text
+    assert 0 == keytool.waitFor()
+    new SignInProcess('XXX', ecKeyStore, 'warsigner', 'ec', 'warsigner').apply(jar, true, [ALL_PERMISSIONS])
+    String ecFingerprint = SigningCredentials.unlock(ecKeyStore, 'warsigner', 'ec', 'warsigner').fingerprint
+    when:
+    PlanJar.Plan plan = new PlanJar('XXX', ecFingerprint, [ALL_PERMISSIONS], true).apply(jar)
+    then:
+    plan.compliant
+  }
+
+  def 'signing data is removed when not signing'() {
+    given:
+    signer.apply(jar)
+    expect:
+    new PlanJar(null, null, [], true).apply(jar).operations == [UNSIGN] as Set
+    new PlanJar(null, null, [], false).apply(jar).compliant
+  }
+}
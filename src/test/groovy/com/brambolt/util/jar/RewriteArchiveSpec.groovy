@@ -0,0 +1,74 @@
+/*
+ * Copyright 2017-2020 Brambolt ehf.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brambolt.util.jar
+
+import org.junit.Rule
+import org.junit.rules.TemporaryFolder
+import spock.lang.Specification
+
+import java.util.zip.ZipEntry
+import java.util.zip.ZipFile
+
+import static com.brambolt.gradle.testkit.Fixtures.createFileFixture
+
+class RewriteArchiveSpec extends Specification {
+
+  @Rule TemporaryFolder testProjectDir = new TemporaryFolder()
+
+  File jar
+
+  def setup() {
+    jar = createFileFixture('gradle-wrapper.jar', testProjectDir)
+  }
+
+  def 'copies untouched entries raw'() {
+    given:
+    Map<String, List<Long>> before = describe(jar)
+    when:
+    new RewriteArchive({ false }, { File file -> }).apply(jar)
+    then:
+    describe(jar) == before
+  }
+
+  def 'rewrites included entries'() {
+    given:
+    String name = 'gradle-wrapper-classpath.properties'
+    when:
+    new RewriteArchive({ it == name }, { File file -> file.text = 'rewritten' }).apply(jar)
+    then:
+    new ZipFile(jar).withCloseable { it.getInputStream(it.getEntry(name)).text } == 'rewritten'
+  }
+
+  def 'original is kept when processing fails'() {
+    given:
+    byte[] before = jar.bytes
+    when:
+    new RewriteArchive({ it.endsWith('.class') }, { File file ->
+      throw new IOException('Unable to process') }, 4).apply(jar)
+    then:
+    thrown IllegalStateException
+    jar.bytes == before
+  }
+
+  Map<String, List<Long>> describe(File file) {
+    new ZipFile(file).withCloseable { ZipFile zip ->
+      zip.entries().toList().collectEntries { ZipEntry entry ->
+        [(entry.name): [entry.crc, entry.compressedSize, entry.size, entry.method as long]]
+      }
+    }
+  }
+}
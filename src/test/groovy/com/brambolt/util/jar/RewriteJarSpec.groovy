@@ -0,0 +1,129 @@
+/*
+ * Copyright 2017-2020 Brambolt ehf.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brambolt.util.jar
+
+import org.junit.Rule
+import org.junit.rules.TemporaryFolder
+import spock.lang.Specification
+
+import java.util.zip.ZipEntry
+import java.util.zip.ZipException
+import java.util.zip.ZipOutputStream
+
+import static com.brambolt.gradle.testkit.Fixtures.createFileFixture
+import static com.brambolt.util.jar.Attributes.ALL_PERMISSIONS
+
+class RewriteJarSpec extends Specification {
+
+  @Rule TemporaryFolder testProjectDir = new TemporaryFolder()
+
+  File jar
+
+  def setup() {
+    jar = createFileFixture('gradle-wrapper.jar', testProjectDir, '-rewrite')
+  }
+
+  def 'unchanged jar is not written'() {
+    given:
+    byte[] before = jar.bytes
+    when:
+    boolean changed = new RewriteJar(true, new AddAttributes([])).apply(jar)
+    then:
+    !changed
+    before == jar.bytes
+  }
+
+  def 'adds attribute and copies other entries raw'() {
+    given:
+    File output = new File(testProjectDir.root, 'output.jar')
+    when:
+    boolean changed = new RewriteJar(false, new AddAttributes([ALL_PERMISSIONS])).apply(jar, output)
+    new CheckJar(null, [ALL_PERMISSIONS]).apply(output)
+    then:
+    changed
+    rawEntries(jar).findAll { it.key != JarManifest.PATH } ==
+      rawEntries(output).findAll { it.key != JarManifest.PATH }
+  }
+
+  def 'removes signing data'() {
+    given:
+    File keyStore = createFileFixture('warsigner.keystore', testProjectDir)
+    new SignInProcess('XXX', keyStore, 'warsigner', 'warsigner', 'warsigner').apply(jar)
+    when:
+    boolean changed = new RewriteJar(true, new AddAttributes([ALL_PERMISSIONS])).apply(jar)
+    new CheckJar(null, [ALL_PERMISSIONS]).apply(jar)
+    List<String> names = ZipArchive.map(jar).withCloseable { it.entries*.name }
+    then:
+    changed
+    !names.any { it.endsWith('.SF') || it.endsWith('.RSA') }
+    names.contains(JarManifest.PATH)
+  }
+
+  def 'removes every kind of signing data, in any case'() {
+    given:
+    File signed = new File(testProjectDir.root, 'blocks.jar')
+    List<String> removed = ['META-INF/A.DSA', 'META-INF/b.ec', 'META-INF/SIG-C', 'META-INF/d.sf', 'META-INF/E.RSA']
+    List<String> kept = [JarManifest.PATH, 'META-INF/sub/F.SF', 'a/G.SF']
+    new ZipOutputStream(new FileOutputStream(signed)).withCloseable { ZipOutputStream out ->
+      (kept + removed).each { out.putNextEntry(new ZipEntry(it)); out.write('Manifest-Version: 1.0\r\n\r\n'.bytes) }
+    }
+    when:
+    boolean planned = new PlanJar(null, null, [], true).apply(signed).operations.contains(PlanJar.Operation.UNSIGN)
+    boolean changed = new RewriteJar(true, null).apply(signed)
+    then:
+    planned
+    changed
+    ZipArchive.map(signed).withCloseable { it.entries*.name } == kept
+  }
+
+  def 'fails on a damaged central directory and leaves the jar'() {
+    given:
+    File damaged = new File(testProjectDir.root, 'damaged.jar')
+    new ZipOutputStream(new FileOutputStream(damaged)).withCloseable { ZipOutputStream out ->
+      [JarManifest.PATH, 'a.txt', 'b.txt', 'c.txt'].each {
+        out.putNextEntry(new ZipEntry(it)); out.write('Manifest-Version: 1.0\r\n\r\n'.bytes)
+      }
+    }
+    byte[] bytes = damaged.bytes
+    damage(bytes)
+    damaged.bytes = bytes
+    when:
+    new RewriteJar(false, new AddAttributes([ALL_PERMISSIONS])).apply(damaged)
+    then:
+    thrown ZipException
+    damaged.bytes == bytes
+    where:
+    damage << [
+      { byte[] zip -> zip[findCentralHeaders(zip)[2]] = 0 }, // Bad signature
+      { byte[] zip -> zip[zip.length - 12] = 5; zip[zip.length - 14] = 5 } // Wrong count
+    ]
+  }
+
+  static List<Integer> findCentralHeaders(byte[] bytes) {
+    (0..<bytes.length - 3).findAll {
+      bytes[it] == 0x50 && bytes[it + 1] == 0x4b && bytes[it + 2] == 0x01 && bytes[it + 3] == 0x02
+    }
+  }
+
+  static Map<String, List<Object>> rawEntries(File file) {
+    new ZipArchive(file).withCloseable { ZipArchive archive ->
+      archive.entries.collectEntries { ZipArchive.Entry entry ->
+        [(entry.name): [entry.method, entry.crc, archive.getRawInputStream(entry).bytes.toList()]]
+      }
+    }
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2017-2020 Brambolt ehf.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brambolt.util.jar
+
+import org.junit.Rule
+import org.junit.rules.TemporaryFolder
+import spock.lang.Specification
+
+import java.nio.ByteBuffer
+import java.util.zip.ZipEntry
+import java.util.zip.ZipOutputStream
+
+import static com.brambolt.gradle.testkit.Fixtures.createFileFixture
+
+class RewriteNestedSpec extends Specification {
+
+  @Rule TemporaryFolder testProjectDir = new TemporaryFolder()
+
+  File jar
+
+  File ear
+
+  def setup() {
+    jar = createFileFixture('gradle-wrapper.jar', testProjectDir)
+    byte[] war = zip([
+      'WEB-INF/web.xml': '<web-app/>'.bytes,
+      'WEB-INF/lib/a.jar': jar.bytes,
+      'index.html': '<html/>'.bytes])
+    ear = new File(testProjectDir.root, 'fixture.ear')
+    ear.bytes = zip(['META-INF/application.xml': '<application/>'.bytes, 'a.war': war])
+  }
+
+  def 'globs match within one directory level'() {
+    expect:
+    RewriteNested.toRegex(glob).matcher(name).matches() == matches
+    where:
+    glob                 | name                   | matches
+    '*.war'              | 'a.war'                | true
+    '*.war'              | 'lib/a.war'            | false
+    'WEB-INF/lib/*.jar'  | 'WEB-INF/lib/a.jar'    | true
+    'WEB-INF/lib/*.jar'  | 'WEB-INF/lib/x/a.jar'  | false
+    '**/*.jar'           | 'a.jar'                | true
+    '**/*.jar'           | 'WEB-INF/lib/x/a.jar'  | true
+    'a?.jar'             | 'ab.jar'               | true
+    'a.jar'              | 'aXjar'                | false
+  }
+
+  def 'rewrites nested jars and copies other entries raw'() {
+    given:
+    List<String> seen = Collections.synchronizedList([])
+    ZipArchive.Entry before = read(ear.bytes, 'META-INF/application.xml')
+    when:
+    new RewriteNested(['*.war!/WEB-INF/lib/*.jar'], { ZipArchive archive, ZipWriter writer ->
+      seen.add(archive.name)
+      archive.entries.each { writer.copy(archive, it) }
+      writer.write('added.txt', 0L, ZipArchive.STORED, 'added'.bytes)
+    } as RewriteNested.Processor, 2).apply(ear)
+    ZipArchive.Entry after = read(ear.bytes, 'META-INF/application.xml')
+    byte[] war = bytes(ear.bytes, 'a.war')
+    byte[] nested = bytes(war, 'WEB-INF/lib/a.jar')
+    then:
+    seen == ['a.war!/WEB-INF/lib/a.jar']
+    [after.crc, after.compressedSize, after.method] == [before.crc, before.compressedSize, before.method]
+    new String(bytes(nested, 'added.txt')) == 'added'
+    new String(bytes(war, 'WEB-INF/web.xml')) == '<web-app/>'
+  }
+
+  def 'original is kept when processing fails'() {
+    given:
+    byte[] before = ear.bytes
+    when:
+    new RewriteNested(['*.war!/WEB-INF/lib/*.jar'], { ZipArchive archive, ZipWriter writer ->
+      throw new IOException('Unable to process')
+    } as RewriteNested.Processor, 2).apply(ear)
+    then:
+    def exception = thrown(IllegalStateException)
+    exception.message.contains('a.war!/WEB-INF/lib/a.jar')
+    ear.bytes == before
+  }
+
+  def 'rejects empty levels'() {
+    when:
+    new RewriteNested(['*.war!/'], { ZipArchive archive, ZipWriter writer -> } as RewriteNested.Processor, 1)
+    then:
+    thrown IllegalArgumentException
+  }
+
+  static byte[] zip(Map<String, byte[]> entries) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream()
+    new ZipOutputStream(bytes).withCloseable { ZipOutputStream out ->
+      entries.each { String name, byte[] content ->
+        out.putNextEntry(new ZipEntry(name))
+        out.write(content)
+        out.closeEntry()
+      }
+    }
+    bytes.toByteArray()
+  }
+
+  static ZipArchive.Entry read(byte[] archive, String name) {
+    new ZipArchive('archive', ByteBuffer.wrap(archive)).withCloseable { it.getEntry(name) }
+  }
+
+  static byte[] bytes(byte[] archive, String name) {
+    new ZipArchive('archive', ByteBuffer.wrap(archive)).withCloseable { it.readAllBytes(it.getEntry(name)) }
+  }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2017-2020 Brambolt ehf.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brambolt.util.jar
+
+import org.junit.Rule
+import org.junit.rules.TemporaryFolder
+import spock.lang.Specification
+
+import java.util.concurrent.ForkJoinPool
+import java.util.jar.JarEntry
+import java.util.jar.JarFile
+import java.util.zip.ZipEntry
+import java.util.zip.ZipOutputStream
+
+import static com.brambolt.gradle.testkit.Fixtures.createFileFixture
+import static com.brambolt.util.jar.Attributes.ALL_PERMISSIONS
+
+class SignInProcessSpec extends Specification {
+
+  @Rule TemporaryFolder testProjectDir = new TemporaryFolder()
+
+  File jar1
+
+  File jar2
+
+  File keyStore
+
+  SignInProcess signer
+
+  def setup() {
+    jar1 = createFileFixture('gradle-wrapper.jar', testProjectDir, '-1')
+    jar2 = createFileFixture('gradle-wrapper.jar', testProjectDir, '-2')
+    keyStore = createFileFixture('warsigner.keystore', testProjectDir)
+    signer = new SignInProcess(
+      'XXX',
+      keyStore,
+      'warsigner',
+      'warsigner',
+      'warsigner'
+    )
+  }
+
+  def 'signed passes check'() {
+    given:
+    when:
+    signer.apply(jar1)
+    new CheckJar('XXX', []).apply(jar1)
+    then:
+    notThrown IllegalStateException
+  }
+
+  def 'signed jar verifies'() {
+    given:
+    when:
+    signer.apply(jar2)
+    List<JarEntry> unsigned = []
+    new JarFile(jar2, true).withCloseable { JarFile jar ->
+      jar.entries().each { JarEntry entry ->
+        jar.getInputStream(entry).bytes
+        if (!entry.isDirectory() && !entry.name.startsWith('META-INF/') &&
+          null == entry.codeSigners)
+          unsigned.add(entry)
+      }
+    }
+    then:
+    unsigned.isEmpty()
+  }
+
+  def 'cleaned and resigned passes check'() {
+    given:
+    when:
+    signer.apply(jar1)
+    new RemoveSigningData().apply(jar1)
+    signer.apply(jar1)
+    new CheckJar('XXX', []).apply(jar1)
+    then:
+    notThrown IllegalStateException
+  }
+
+  def 'single pass unsigns, adds attributes and signs'() {
+    given:
+    new SignInProcess('YYY', keyStore, 'warsigner', 'warsigner', 'warsigner').apply(jar2)
+    when:
+    signer.apply(jar2, true, [ALL_PERMISSIONS])
+    new CheckJar('XXX', [ALL_PERMISSIONS]).apply(jar2)
+    List<String> names = new JarFile(jar2).withCloseable { JarFile jar ->
+      jar.entries().collect { it.name }
+    }
+    then:
+    notThrown IllegalStateException
+    !names.contains('META-INF/YYY.SF')
+    !names.contains('META-INF/YYY.RSA')
+    names.contains('META-INF/XXX.SF')
+  }
+
+  def 'resigned jar keeps earlier signature valid'() {
+    given:
+    new SignInProcess('YYY', keyStore, 'warsigner', 'warsigner', 'warsigner').apply(jar2)
+    when:
+    signer.apply(jar2, false, [])
+    List<String> names = []
+    List<JarEntry> unsigned = []
+    new JarFile(jar2, true).withCloseable { JarFile jar ->
+      jar.entries().each { JarEntry entry ->
+        jar.getInputStream(entry).bytes // Throws if any signature is invalid
+        names.add(entry.name)
+        if (!entry.isDirectory() && !entry.name.startsWith('META-INF/') &&
+          null == entry.codeSigners)
+          unsigned.add(entry)
+      }
+    }
+    then:
+    notThrown SecurityException
+    names.containsAll(['META-INF/XXX.SF', 'META-INF/YYY.SF'])
+    unsigned.isEmpty()
+  }
+
+  def 'parallel digests give the same signed jar'() {
+    given:
+    File large = new File(testProjectDir.root, 'large.jar')
+    new ZipOutputStream(new FileOutputStream(large)).withCloseable { ZipOutputStream out ->
+      (0..<2000).each { int i ->
+        out.putNextEntry(new ZipEntry("com/example/p${i % 7}/C${i}.class"))
+        out.write("class ${i}".bytes)
+        out.closeEntry()
+      }
+    }
+    File copy = new File(testProjectDir.root, 'copy.jar')
+    copy.bytes = large.bytes
+    signer.setReproducible(true)
+    when:
+    signer.apply(large)
+    signer.setPool(new ForkJoinPool(4)).apply(copy)
+    new CheckJar('XXX', []).apply(copy)
+    then:
+    notThrown IllegalStateException
+    copy.bytes == large.bytes
+  }
+}
@@ -18,8 +18,13 @@ package com.brambolt.util.jar
 
 import org.junit.Rule
 import org.junit.rules.TemporaryFolder
+import spock.lang.IgnoreIf
 import spock.lang.Specification
 
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+
 import static com.brambolt.gradle.testkit.Fixtures.createFileFixture
 
 class SignWithJarsignerSpec extends Specification {
@@ -63,4 +68,62 @@ class SignWithJarsignerSpec extends Specification {
     then:
     notThrown IllegalStateException
   }
+
+  def 'signs asynchronously'() {
+    given:
+    signer.setMaxProcesses(2)
+    when:
+    List<CompletableFuture<SignWithJarsigner.Output>> futures =
+      [jar1, jar2].collect { signer.applyAsync(it) }
+    futures*.get()
+    new CheckJar('XXX', []).apply(jar1)
+    new CheckJar('XXX', []).apply(jar2)
+    then:
+    notThrown IllegalStateException
+  }
+
+  @IgnoreIf({ os.windows })
+  def 'captures output of failed process'() {
+    given:
+    SignWithJarsigner failing = createFake('echo "bad key store" >&2; exit 1')
+    when:
+    failing.apply(jar1)
+    then:
+    def exception = thrown(Exception)
+    exception.message.contains('bad key store')
+    exception.message.contains('-storepass **** ')
+    !exception.message.contains('secret')
+  }
+
+  @IgnoreIf({ os.windows })
+  def 'destroys process after timeout'() {
+    given:
+    SignWithJarsigner slow = createFake('sleep 30').setTimeout(200, TimeUnit.MILLISECONDS)
+    when:
+    slow.apply(jar1)
+    then:
+    def exception = thrown(Exception)
+    exception.message.contains('timed out')
+    !exception.message.contains('secret')
+  }
+
+  @IgnoreIf({ os.windows })
+  def 'cancel destroys process'() {
+    given:
+    SignWithJarsigner slow = createFake('sleep 30')
+    CompletableFuture<SignWithJarsigner.Output> future = slow.applyAsync(jar1)
+    Thread.sleep(200)
+    when:
+    future.cancel(true)
+    future.get(5, TimeUnit.SECONDS)
+    then:
+    thrown(java.util.concurrent.CancellationException)
+  }
+
+  private SignWithJarsigner createFake(String script) {
+    File jarsigner = testProjectDir.newFile('jarsigner')
+    jarsigner.text = "#!/bin/sh\n${script}\n"
+    jarsigner.setExecutable(true)
+    new SignWithJarsigner('XXX', keyStore, 'store-secret', 'warsigner', 'key-secret', null, jarsigner)
+  }
 }
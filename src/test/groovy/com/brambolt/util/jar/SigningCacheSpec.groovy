@@ -0,0 +1,88 @@
+/*
+ * Copyright 2017-2020 Brambolt ehf.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brambolt.util.jar
+
+import org.junit.Rule
+import org.junit.rules.TemporaryFolder
+import spock.lang.Specification
+
+import static com.brambolt.gradle.testkit.Fixtures.createFileFixture
+
+class SigningCacheSpec extends Specification {
+
+  @Rule TemporaryFolder testProjectDir = new TemporaryFolder()
+
+  File jar1
+
+  File jar2
+
+  File keyStore
+
+  String fingerprint
+
+  def setup() {
+    jar1 = createFileFixture('gradle-wrapper.jar', testProjectDir, '-1')
+    jar2 = createFileFixture('gradle-wrapper.jar', testProjectDir, '-2')
+    keyStore = createFileFixture('warsigner.keystore', testProjectDir)
+    fingerprint = SigningCredentials.unlock(keyStore, 'warsigner', 'warsigner', 'warsigner').fingerprint
+  }
+
+  def 'can restore signed jar'() {
+    given:
+    SigningCache cache = new SigningCache(testProjectDir.newFolder('cache'), SigningCache.DEFAULT_MAX_BYTES)
+    String key = cache.key(jar1, fingerprint, 'XXX', [], false)
+    when:
+    boolean first = cache.restore(key, jar1)
+    new SignInProcess('XXX', keyStore, 'warsigner', 'warsigner', 'warsigner').apply(jar1)
+    cache.store(key, jar1)
+    String key2 = cache.key(jar2, fingerprint, 'XXX', [], false)
+    boolean second = cache.restore(key2, jar2)
+    new CheckJar('XXX', []).apply(jar2)
+    then:
+    key == key2
+    !first
+    second
+    1 == cache.hits
+    1 == cache.misses
+    jar1.bytes == jar2.bytes
+  }
+
+  def 'key depends on parameters'() {
+    given:
+    SigningCache cache = new SigningCache(testProjectDir.newFolder('cache'), SigningCache.DEFAULT_MAX_BYTES)
+    when:
+    String key = cache.key(jar1, fingerprint, 'XXX', [], false)
+    then:
+    key != cache.key(jar1, fingerprint, 'YYY', [], false)
+    key != cache.key(jar1, fingerprint, 'XXX', ['Permissions: all-permissions'], false)
+    key != cache.key(jar1, fingerprint, 'XXX', [], true)
+    key != cache.key(jar1, 'other', 'XXX', [], false)
+  }
+
+  def 'evicts least recently used'() {
+    given:
+    File dir = testProjectDir.newFolder('cache')
+    SigningCache cache = new SigningCache(dir, jar1.length() + 1)
+    when:
+    cache.store('a', jar1)
+    new File(dir, 'a.jar').setLastModified(System.currentTimeMillis() - 60000L)
+    cache.store('b', jar2)
+    then:
+    !new File(dir, 'a.jar').exists()
+    new File(dir, 'b.jar').exists()
+  }
+}
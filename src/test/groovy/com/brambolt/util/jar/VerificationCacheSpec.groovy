@@ -0,0 +1,124 @@
+/*
+ * Copyright 2017-2020 Brambolt ehf.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brambolt.util.jar
+
+import org.junit.Rule
+import org.junit.rules.TemporaryFolder
+import spock.lang.Specification
+
+import java.util.zip.ZipEntry
+
+import static com.brambolt.gradle.testkit.Fixtures.createFileFixture
+
+class VerificationCacheSpec extends Specification {
+
+  @Rule TemporaryFolder testProjectDir = new TemporaryFolder()
+
+  File signed
+
+  VerificationCache cache
+
+  def setup() {
+    signed = createFileFixture('gradle-wrapper.jar', testProjectDir, '-signed')
+    File keyStore = createFileFixture('warsigner.keystore', testProjectDir)
+    new SignInProcess('XXX', keyStore, 'warsigner', 'warsigner', 'warsigner').apply(signed)
+    cache = new VerificationCache(new File(testProjectDir.root, 'cache'))
+  }
+
+  def 'skips jar that passed before'() {
+    when:
+    new CheckJar('XXX', []).setCache(cache).apply(signed)
+    new CheckJar('XXX', []).setCache(cache).apply(signed)
+    then:
+    1 == cache.hits
+    1 == cache.misses
+    0.5d == cache.hitRate
+  }
+
+  def 'does not cache failed check'() {
+    given:
+    File unsigned = createFileFixture('gradle-wrapper.jar', testProjectDir, '-unsigned')
+    when:
+    2.times {
+      try {
+        new CheckJar('XXX', []).setCache(cache).apply(unsigned)
+      } catch (IllegalStateException ignored) {}
+    }
+    then:
+    0 == cache.hits
+    2 == cache.misses
+  }
+
+  def 'key depends on parameters'() {
+    when:
+    String key = cache.key(signed, 'XXX', [])
+    then:
+    key == cache.key(signed, 'XXX', [])
+    key != cache.key(signed, 'YYY', [])
+    key != cache.key(signed, 'XXX', [Attributes.ALL_PERMISSIONS])
+  }
+
+  def 'nested key depends on the compression method and differs from file key'() {
+    given:
+    File deflated = new File(testProjectDir.root, 'deflated.zip')
+    new ZipWriter(deflated).withCloseable { it.write('a.jar', 0L, ZipEntry.DEFLATED, signed.bytes) }
+    File raw = new File(testProjectDir.root, 'raw.jar')
+    raw.bytes = new ZipArchive(deflated).withCloseable { ZipArchive archive ->
+      archive.getRawInputStream(archive.getEntry('a.jar')).bytes
+    }
+    File stored = new File(testProjectDir.root, 'stored.zip')
+    new ZipWriter(stored).withCloseable { it.write('a.jar', 0L, ZipEntry.STORED, raw.bytes) }
+    when:
+    String deflatedKey = keyOfEntry(deflated)
+    String storedKey = keyOfEntry(stored)
+    then:
+    storedKey != deflatedKey
+    storedKey != cache.key(raw, 'XXX', [])
+  }
+
+  def 'invalidate removes entries'() {
+    given:
+    new CheckJar('XXX', []).setCache(cache).apply(signed)
+    when:
+    int removed = cache.invalidate()
+    new CheckJar('XXX', []).setCache(cache).apply(signed)
+    then:
+    1 == removed
+    0 == cache.hits
+    2 == cache.misses
+  }
+
+  def 'skips application jars that passed before'() {
+    given:
+    File war = createFileFixture('fixture.war', testProjectDir)
+    when:
+    new CheckWar(null, []).setCache(cache).apply(war)
+    int jars = cache.misses
+    Metrics metrics = new Metrics()
+    new CheckWar(null, []).setCache(cache).apply(war, metrics)
+    then:
+    0 < jars
+    jars == cache.hits
+    0 == metrics.jarCount
+  }
+
+  String keyOfEntry(File zip) {
+    new ZipArchive(zip).withCloseable { ZipArchive archive ->
+      cache.key(archive, archive.getEntry('a.jar'), 'XXX', [])
+    }
+  }
+}
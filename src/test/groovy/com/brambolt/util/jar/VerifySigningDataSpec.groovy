@@ -0,0 +1,155 @@
+/*
+ * Copyright 2017-2020 Brambolt ehf.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brambolt.util.jar
+
+import org.junit.Rule
+import org.junit.rules.TemporaryFolder
+import spock.lang.Specification
+
+import java.nio.file.FileSystem
+import java.nio.file.FileSystems
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import java.util.concurrent.ForkJoinPool
+
+import static com.brambolt.gradle.testkit.Fixtures.createFileFixture
+
+class VerifySigningDataSpec extends Specification {
+
+  @Rule TemporaryFolder testProjectDir = new TemporaryFolder()
+
+  File jar
+
+  File keyStore
+
+  def setup() {
+    jar = createFileFixture('gradle-wrapper.jar', testProjectDir, '-verify')
+    keyStore = createFileFixture('warsigner.keystore', testProjectDir)
+  }
+
+  def 'signed jar verifies'() {
+    given:
+    new SignInProcess('XXX', keyStore, 'warsigner', 'warsigner', 'warsigner').apply(jar)
+    ForkJoinPool pool = new ForkJoinPool(4)
+    when:
+    new CheckJar('XXX', []).setVerify(true).setPool(pool).apply(jar)
+    then:
+    notThrown Throwable
+    cleanup:
+    pool.shutdown()
+  }
+
+  def 'jar signed with jarsigner verifies'() {
+    given:
+    new SignWithJarsigner('XXX', keyStore, 'warsigner', 'warsigner', 'warsigner').apply(jar)
+    when:
+    ZipArchive.map(jar).withCloseable { new VerifySigningData(null).apply(it) }
+    then:
+    notThrown Throwable
+  }
+
+  def 'unsigned jar fails verification'() {
+    when:
+    new CheckJar(null, []).setVerify(true).apply(jar)
+    then:
+    def exception = thrown(IllegalStateException)
+    exception.message.startsWith('Unsigned jar')
+  }
+
+  def 'changed entry fails verification'() {
+    given:
+    new SignInProcess('XXX', keyStore, 'warsigner', 'warsigner', 'warsigner').apply(jar)
+    String name = change(jar) { Path path -> !path.toString().startsWith('/META-INF') }
+    when:
+    new CheckJar('XXX', []).setVerify(true).apply(jar)
+    then:
+    def exception = thrown(IllegalStateException)
+    exception.message == "Digest mismatch: ${name}"
+  }
+
+  def 'changed signature file fails verification'() {
+    given:
+    new SignInProcess('XXX', keyStore, 'warsigner', 'warsigner', 'warsigner').apply(jar)
+    change(jar) { Path path -> path.toString() == '/META-INF/XXX.SF' }
+    when:
+    new CheckJar('XXX', []).setVerify(true).apply(jar)
+    then:
+    def exception = thrown(IllegalStateException)
+    exception.message == 'Invalid signature: XXX'
+  }
+
+  def 'changed manifest fails verification'() {
+    given:
+    new SignInProcess('XXX', keyStore, 'warsigner', 'warsigner', 'warsigner').apply(jar)
+    change(jar) { Path path -> path.toString() == '/META-INF/MANIFEST.MF' }
+    when:
+    new CheckJar('XXX', []).setVerify(true).apply(jar)
+    then:
+    def exception = thrown(IllegalStateException)
+    exception.message.startsWith('Invalid XXX.SF')
+  }
+
+  def 'added entry fails verification'() {
+    given:
+    new SignInProcess('XXX', keyStore, 'warsigner', 'warsigner', 'warsigner').apply(jar)
+    withFileSystem(jar) { FileSystem fs -> Files.write(fs.getPath('added.txt'), 'added'.bytes) }
+    when:
+    new CheckJar('XXX', []).setVerify(true).apply(jar)
+    then:
+    def exception = thrown(IllegalStateException)
+    exception.message == 'Unsigned entry: added.txt'
+  }
+
+  def 'file system verifies through an archive'() {
+    given:
+    new SignInProcess('XXX', keyStore, 'warsigner', 'warsigner', 'warsigner').apply(jar)
+    when:
+    withFileSystem(jar) { FileSystem fs -> new CheckJar('XXX', []).setVerify(true).apply(fs) }
+    then:
+    notThrown Throwable
+    when:
+    String name = change(jar) { Path path -> !path.toString().startsWith('/META-INF') }
+    withFileSystem(jar) { FileSystem fs -> new CheckJar('XXX', []).setVerify(true).apply(fs) }
+    then:
+    def exception = thrown(IllegalStateException)
+    exception.message == "Digest mismatch: ${name}"
+  }
+
+  /**
+   * Appends a line to the first file in the jar accepted by the filter.
+   * @return The name of the changed entry
+   */
+  static String change(File jar, Closure<Boolean> filter) {
+    withFileSystem(jar) { FileSystem fs ->
+      Path path = Files.walk(fs.getPath('/')).withCloseable { paths ->
+        paths.filter { Files.isRegularFile(it) && filter(it) }.findFirst().get()
+      }
+      Files.write(path, 'Changed: true\r\n\r\n'.bytes, StandardOpenOption.APPEND)
+      path.toString().substring(1)
+    }
+  }
+
+  static <T> T withFileSystem(File jar, Closure<T> closure) {
+    FileSystem fs = FileSystems.newFileSystem(jar.toPath(), null as ClassLoader)
+    try {
+      closure(fs)
+    } finally {
+      fs.close()
+    }
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2017-2020 Brambolt ehf.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brambolt.util.jar
+
+import org.junit.Rule
+import org.junit.rules.TemporaryFolder
+import spock.lang.Specification
+
+import static com.brambolt.gradle.testkit.Fixtures.createFileFixture
+
+class ZipDirectorySpec extends Specification {
+
+  @Rule TemporaryFolder testProjectDir = new TemporaryFolder()
+
+  File war
+
+  File dir
+
+  def setup() {
+    war = createFileFixture('fixture.war', testProjectDir)
+    dir = testProjectDir.newFolder('expanded')
+    unzip(war, dir)
+  }
+
+  def 'keeps entry order and methods'() {
+    given:
+    List<List<Object>> before = entries(war)
+    when:
+    new ZipDirectory(new Compression()).apply(dir, war)
+    then:
+    entries(war) == before
+  }
+
+  def 'stores nested jars'() {
+    when:
+    new ZipDirectory(new Compression().setJarMethod(Compression.JarMethod.STORE)).apply(dir, war)
+    then:
+    entries(war).findAll { it[0].endsWith('.jar') }.every { it[1] == ZipArchive.STORED }
+    new CheckWar(null, []).apply(war)
+  }
+
+  def 'parallel compression writes the same entries'() {
+    given:
+    File copy = new File(testProjectDir.root, 'copy.war')
+    copy.bytes = war.bytes
+    Compression compression = new Compression()
+      .setJarMethod(Compression.JarMethod.DEFLATE).setLevel(9)
+    when:
+    new ZipDirectory(compression).apply(dir, war)
+    new ZipDirectory(compression.setParallelism(4)).apply(dir, copy)
+    then:
+    RewriteJarSpec.rawEntries(copy) == RewriteJarSpec.rawEntries(war)
+  }
+
+  def 'adds new files in name order'() {
+    given:
+    new File(dir, 'b.txt').text = 'b'
+    new File(dir, 'a.txt').text = 'a'
+    List<String> before = entries(war).collect { it[0] }
+    when:
+    new ZipDirectory(new Compression()).apply(dir, war)
+    then:
+    entries(war).collect { it[0] } == before + ['a.txt', 'b.txt']
+  }
+
+  static void unzip(File file, File dir) {
+    new ZipArchive(file).withCloseable { ZipArchive archive ->
+      archive.entries.each { ZipArchive.Entry entry ->
+        File target = new File(dir, entry.name)
+        if (entry.isDirectory())
+          target.mkdirs()
+        else {
+          target.parentFile.mkdirs()
+          target.bytes = archive.readAllBytes(entry)
+        }
+      }
+    }
+  }
+
+  static List<List<Object>> entries(File file) {
+    new ZipArchive(file).withCloseable { ZipArchive archive ->
+      archive.entries.collect { ZipArchive.Entry entry -> [entry.name, entry.method, entry.crc] }
+    }
+  }
+}